@@ -202,6 +202,25 @@ public class BackendHandler {
 		return provider.bulkRequest(ctx, node);
 	}
 
+	/**
+	 * Starts a batch of operations on the calling thread when the provider implements {@link IBatchProvider}.
+	 */
+	public void beginBatch() {
+		checkProvider();
+		if (provider instanceof IBatchProvider)
+			((IBatchProvider) provider).beginBatch();
+	}
+
+	/**
+	 * Commits the batch started by {@link #beginBatch()}. Does nothing if the provider does not support batches.
+	 * @throws BackendException if the provider could not make the batch durable
+	 */
+	public void commitBatch() throws BackendException {
+		checkProvider();
+		if (provider instanceof IBatchProvider)
+			((IBatchProvider) provider).commitBatch();
+	}
+
 	public ScimResponse delete(RequestCtx ctx) throws ScimException, BackendException {
 		checkProvider();
 		return provider.delete(ctx);
@@ -227,7 +246,7 @@ public class BackendHandler {
 		return provider.getTransactionRecord(transid);
 	}
 
-	public void storeTransactionRecord(TransactionRecord record) throws DuplicateTxnException {
+	public void storeTransactionRecord(TransactionRecord record) throws DuplicateTxnException, BackendException {
 		checkProvider();
 		provider.storeTransactionRecord(record);
 	}
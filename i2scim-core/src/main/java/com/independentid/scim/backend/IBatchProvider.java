@@ -0,0 +1,37 @@
+/*
+ * Copyright 2021.  Independent Identity Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.independentid.scim.backend;
+
+/**
+ * IBatchProvider is an optional interface for an {@link IScimProvider} that can group-commit its persistence (e.g. a
+ * write-ahead log fsync) for a series of operations, such as those of a SCIM Bulk request, that run on the calling
+ * thread. Only making the changes durable is deferred until the batch is committed: each operation is still fully
+ * applied, indexed and checked for uniqueness, and visible to later operations, as it runs.
+ */
+public interface IBatchProvider {
+
+    /**
+     * Starts a batch on the calling thread. Batches may be nested; only the outermost commit completes the work.
+     */
+    void beginBatch();
+
+    /**
+     * Ends the batch started on the calling thread and makes all changes made within it durable.
+     * @throws BackendException if the changes could not be made durable
+     */
+    void commitBatch() throws BackendException;
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2021.  Independent Identity Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.independentid.scim.backend;
+
+import com.independentid.scim.resource.ScimResource;
+
+import java.util.Collection;
+
+/**
+ * IGroupMembership is an optional interface for an {@link IScimProvider} that maintains a reverse index of group
+ * membership (member id to groups). When the provider implements it, {@link com.independentid.scim.resource.GroupsValue}
+ * reads the index instead of searching Groups for each resource.
+ */
+public interface IGroupMembership {
+
+    /**
+     * @param memberId The identifier of a member resource (e.g. a User)
+     * @return The Group resources that list memberId in members.value. The resources returned must not be modified.
+     */
+    Collection<ScimResource> getDirectGroups(String memberId);
+
+    /**
+     * @param memberId The identifier of a member resource (e.g. a User)
+     * @return The Group resources that contain memberId only through nested groups. Empty when the provider does not
+     * calculate transitive membership.
+     */
+    Collection<ScimResource> getIndirectGroups(String memberId);
+}
@@ -184,8 +184,9 @@ public interface IScimProvider {
      * This method is typically called by a CreateOp, DeleteOp, Put or Patch Op, after any write transaction.
      * @param record A {@link TransactionRecord} containing information about the update.
      * @throws DuplicateTxnException if the transactionId already exists in the provider, an exception is thrown.
+     * @throws BackendException if the record could not be stored durably
      */
-    void storeTransactionRecord(TransactionRecord record) throws DuplicateTxnException;
+    void storeTransactionRecord(TransactionRecord record) throws DuplicateTxnException, BackendException;
 
 
 }
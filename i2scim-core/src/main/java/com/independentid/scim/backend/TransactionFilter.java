@@ -0,0 +1,165 @@
+/*
+ * Copyright 2021.  Independent Identity Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.independentid.scim.backend;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * TransactionFilter is a time partitioned Bloom filter of recently seen transaction ids. A provider consults it before
+ * querying its transaction store: a negative answer means the id was not added within the filter window and the query
+ * can be skipped. A positive answer may be false and must be confirmed by the provider.
+ * <p>The window is divided into partitions. Ids are added to the newest partition and the oldest partition is dropped
+ * as time advances so that ids age out without rebuilding the filter. The false positive rate for a lookup is roughly
+ * the per-partition rate multiplied by the number of partitions.</p>
+ */
+public class TransactionFilter {
+    private static final double LN2 = Math.log(2);
+
+    private final long spanMillis;
+    private final int bitCount;
+    private final int hashCount;
+    private final LongSupplier clock;
+    private volatile Partition[] partitions;
+
+    private static class Partition {
+        final long start;
+        final AtomicLongArray bits;
+
+        Partition(long start, int bitCount) {
+            this.start = start;
+            this.bits = new AtomicLongArray((bitCount + 63) >>> 6);
+        }
+    }
+
+    /**
+     * @param windowMillis The period over which added ids are remembered
+     * @param partitionCnt The number of partitions the window is divided into
+     * @param expected     The expected number of ids added per partition
+     * @param fpp          The false positive probability of a partition holding the expected ids (e.g. 0.01)
+     */
+    public TransactionFilter(long windowMillis, int partitionCnt, int expected, double fpp) {
+        this(windowMillis, partitionCnt, expected, fpp, System::currentTimeMillis);
+    }
+
+    /**
+     * @param windowMillis The period over which added ids are remembered
+     * @param partitionCnt The number of partitions the window is divided into
+     * @param expected     The expected number of ids added per partition
+     * @param fpp          The false positive probability of a partition holding the expected ids (e.g. 0.01)
+     * @param clock        Supplies the current time in milliseconds
+     */
+    public TransactionFilter(long windowMillis, int partitionCnt, int expected, double fpp, LongSupplier clock) {
+        if (partitionCnt < 1 || expected < 1 || fpp <= 0 || fpp >= 1)
+            throw new IllegalArgumentException("Invalid transaction filter parameters");
+        this.spanMillis = Math.max(1, windowMillis / partitionCnt);
+        long bits = (long) Math.ceil(-expected * Math.log(fpp) / (LN2 * LN2));
+        this.bitCount = (int) Math.min(Integer.MAX_VALUE - 64, Math.max(64, bits));
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expected * LN2));
+        this.clock = clock;
+        this.partitions = new Partition[partitionCnt];
+        this.partitions[0] = new Partition(clock.getAsLong(), bitCount);
+    }
+
+    /**
+     * Convenience constructor using 4 partitions per window and a 1% false positive rate per partition.
+     * @param windowHours The number of hours ids are remembered
+     * @param expected    The expected number of ids added per window
+     */
+    public TransactionFilter(int windowHours, int expected) {
+        this(TimeUnit.MILLISECONDS.convert(windowHours, TimeUnit.HOURS), 4, Math.max(1, expected / 4), 0.01);
+    }
+
+    /**
+     * Records a transaction id in the newest partition.
+     * @param tranId The transaction id
+     */
+    public void add(String tranId) {
+        AtomicLongArray bits = current(clock.getAsLong()).bits;
+        long h1 = mix(fnv(tranId));
+        long h2 = mix(h1) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            int bit = (int) Math.floorMod(h1 + i * h2, (long) bitCount);
+            long mask = 1L << (bit & 63);
+            if ((bits.get(bit >>> 6) & mask) == 0)
+                bits.getAndAccumulate(bit >>> 6, mask, (a, b) -> a | b);
+        }
+    }
+
+    /**
+     * @param tranId The transaction id
+     * @return false if the id was definitely not added within the window, true if it may have been
+     */
+    public boolean mightContain(String tranId) {
+        current(clock.getAsLong());
+        long h1 = mix(fnv(tranId));
+        long h2 = mix(h1) | 1;
+        for (Partition part : partitions) {
+            if (part != null && contains(part.bits, h1, h2))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean contains(AtomicLongArray bits, long h1, long h2) {
+        for (int i = 0; i < hashCount; i++) {
+            int bit = (int) Math.floorMod(h1 + i * h2, (long) bitCount);
+            if ((bits.get(bit >>> 6) & (1L << (bit & 63))) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the newest partition, first rotating out partitions that have aged past the window.
+     */
+    private Partition current(long now) {
+        Partition head = partitions[0];
+        if (now < head.start + spanMillis)
+            return head;
+        synchronized (this) {
+            Partition[] parts = partitions;
+            head = parts[0];
+            if (now < head.start + spanMillis)
+                return head;
+            long elapsed = (now - head.start) / spanMillis;
+            int shift = (int) Math.min(parts.length, elapsed);
+            Partition[] next = new Partition[parts.length];
+            // periods with no activity are left empty
+            System.arraycopy(parts, 0, next, shift, parts.length - shift);
+            next[0] = new Partition(head.start + elapsed * spanMillis, bitCount);
+            partitions = next;
+            return next[0];
+        }
+    }
+
+    private static long fnv(String val) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < val.length(); i++) {
+            h ^= val.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+}
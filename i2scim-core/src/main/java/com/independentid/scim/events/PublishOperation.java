@@ -16,6 +16,7 @@
 
 package com.independentid.scim.events;
 
+import com.independentid.scim.backend.BackendException;
 import com.independentid.scim.backend.BackendHandler;
 import com.independentid.scim.backend.IScimProvider;
 import com.independentid.scim.core.err.DuplicateTxnException;
@@ -50,6 +51,9 @@ public class PublishOperation extends RecursiveAction {
         } catch (DuplicateTxnException e) {
             logger.error("Error publishing transaction record("+rec.getId()+"). Event will not be published.");
             return;
+        } catch (BackendException e) {
+            logger.error("Unable to store transaction record("+rec.getId()+"). Event will not be published: "+e.getMessage(), e);
+            return;
         }
 
         while (handlers.hasNext())
@@ -16,7 +16,9 @@
 package com.independentid.scim.op;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.independentid.scim.backend.BackendException;
 import com.independentid.scim.core.err.ConflictException;
+import com.independentid.scim.core.err.InternalException;
 import com.independentid.scim.core.err.ScimException;
 import com.independentid.scim.core.err.TooLargeException;
 import com.independentid.scim.protocol.RequestCtx;
@@ -342,19 +344,31 @@ public class BulkOps extends Operation implements IBulkIdResolver {
 		if (logger.isDebugEnabled()) {
 			logger.debug("Processing BATCH request with "+this.ops.size()+" operations.");
 		}
-		for (Operation op : this.ops) {
-			if (!op.isDone()) {
-				OpStat stat = op.getStats();
-				stat.setBulkExecNumber(batchExecNum++);
-				op.compute();
-			}
+		// Operations run on this thread, so the provider can group-commit their persistence (e.g. one journal fsync)
+		// once all have been applied. Each operation is otherwise processed in full.
+		backendHandler.beginBatch();
+		try {
+			for (Operation op : this.ops) {
+				if (!op.isDone()) {
+					OpStat stat = op.getStats();
+					stat.setBulkExecNumber(batchExecNum++);
+					op.compute();
+				}
 
-			if (op.isError())
-				this.opFailed++;
-			else
-				this.opCompleted++;
-			if (this.opFailed >= this.failOnErrors)
-				break; // stop processing as we have had too many errors
+				if (op.isError())
+					this.opFailed++;
+				else
+					this.opCompleted++;
+				if (this.opFailed >= this.failOnErrors)
+					break; // stop processing as we have had too many errors
+			}
+		} finally {
+			try {
+				backendHandler.commitBatch();
+			} catch (BackendException e) {
+				logger.error("Error committing bulk request: " + e.getMessage(), e);
+				setCompletionError(new InternalException("Unable to commit bulk request: " + e.getMessage(), e));
+			}
 		}
 		
 		if (logger.isDebugEnabled()) {
@@ -60,6 +60,9 @@ public class ListResponse extends ScimResponse {
 
     protected ArrayList<ScimResource> entries = new ArrayList<>();
 
+    // attributes not readable by the requester, left out when serializing so that stored resources are not modified
+    protected final Set<Attribute> hiddenAttrs = new HashSet<>();
+
     /**
      * Constructor used to create an empty SCIM List Response.
      * @param ctx        A {@link RequestCtx} object containing the original request information.
@@ -136,41 +139,91 @@ public class ListResponse extends ScimResponse {
             this.ctx.count = this.smax;
 
         this.totalRes = vals.size();
-        if (this.totalRes > this.smax) {
+        if (ctx.isCountOnly()) {
+            setResultLocation();  // only totalResults is returned
+        } else if (this.totalRes > this.smax) {
             setError(new TooManyException());
 
         } else {
-            List<ScimResource> sorted = doSort(vals);
-
             int start = ctx.startIndex - 1;
 
             int stop = start + ctx.count;
 
-            if (stop > this.totalRes) {
-                stop = this.totalRes;
-            }
+            // Only the entries up to the end of the requested page need to be in sorted order
+            List<ScimResource> sorted = doSort(vals, stop);
 
-            for (int i = start; (i < stop && i < this.totalRes); i++) {
-                ScimResource resource = sorted.get(i);
-                Meta meta = resource.getMeta();
-                if (meta != null) {
-                    Date mdate = meta.getLastModifiedDate();
-                    if (mdate != null && (lastMod == null || mdate.after(lastMod)))
-                        lastMod = mdate;
-                }
-                this.entries.add(resource);
+            if (stop > sorted.size()) {
+                stop = sorted.size();
             }
 
+            for (int i = start; i < stop; i++)
+                addEntry(sorted.get(i));
+
             sorted = null;
 
+            setResultLocation();
+        }
+
+    }
+
+    /**
+     * Creates a response from a page of results that the provider has already sorted and paged (e.g. by walking an
+     * ordered index).
+     * @param page         The resources to be returned, in order, beginning at the requested startIndex
+     * @param totalResults The total number of resources matching the request
+     * @param ctx          The {@link RequestCtx} containing the original request/search.
+     * @param maxResults   The maximum results that can be returned to the client
+     */
+    public ListResponse(final List<ScimResource> page, int totalResults, RequestCtx ctx, int maxResults) {
+        this(page, totalResults, ctx, maxResults, maxResults);
+    }
+
+    /**
+     * Creates a response from a page of results that the provider has already sorted and paged, where the provider
+     * allows clients to page through more results than fit in one response.
+     * @param page         The resources to be returned, in order, beginning at the requested startIndex
+     * @param totalResults The total number of resources matching the request
+     * @param ctx          The {@link RequestCtx} containing the original request/search.
+     * @param maxResults   The maximum results that can be returned to the client in one response
+     * @param maxTotal     The maximum totalResults before the request is rejected with {@link TooManyException}
+     */
+    public ListResponse(final List<ScimResource> page, int totalResults, RequestCtx ctx, int maxResults, int maxTotal) {
+        super();
+        this.ctx = ctx;
+        this.smax = maxResults;
+        this.id = null;
+        initSort(ctx);
+        if (this.ctx.count == 0 || this.ctx.count > maxResults)
+            this.ctx.count = this.smax;
+
+        this.totalRes = totalResults;
+        if (ctx.isCountOnly()) {
+            setResultLocation();  // only totalResults is returned
+        } else if (this.totalRes > maxTotal) {
+            setError(new TooManyException());
+        } else {
+            for (int i = 0; i < page.size() && i < this.ctx.count; i++)
+                addEntry(page.get(i));
+            setResultLocation();
+        }
+    }
 
-            if (this.entries.size() == 1 && ctx.getPathId() != null) {
-                this.etag = this.entries.get(0).getMeta().getVersion();
-                setLocation(this.entries.get(0).getMeta().getLocation());
-            } else setLocation(ctx.getPath());
-            //setLocation(this.ctx.sctx.getRealPath(ctx.path));
+    private void addEntry(ScimResource resource) {
+        Meta meta = resource.getMeta();
+        if (meta != null) {
+            Date mdate = meta.getLastModifiedDate();
+            if (mdate != null && (lastMod == null || mdate.after(lastMod)))
+                lastMod = mdate;
         }
+        this.entries.add(resource);
+    }
 
+    private void setResultLocation() {
+        if (this.entries.size() == 1 && ctx.getPathId() != null) {
+            this.etag = this.entries.get(0).getMeta().getVersion();
+            setLocation(this.entries.get(0).getMeta().getLocation());
+        } else setLocation(ctx.getPath());
+        //setLocation(this.ctx.sctx.getRealPath(ctx.path));
     }
 
     public List<ScimResource> getResults() {
@@ -213,7 +266,46 @@ public class ListResponse extends ScimResponse {
             return vals; // sort not requested.
 
         ScimResource[] resources = vals.toArray(new ScimResource[0]);
-        Arrays.sort(resources, (o1, o2) -> {
+        Arrays.sort(resources, getSortComparator());
+
+        ArrayList<ScimResource> res = new ArrayList<>();
+        res.addAll(Arrays.asList(resources));
+        return res;
+    }
+
+    /**
+     * Sorts only the first <code>limit</code> results using a bounded heap rather than sorting every result. Used
+     * when only one page of a large result set is returned.
+     * @param vals  The results to be sorted
+     * @param limit The number of leading results needed in sorted order
+     * @return The first <code>limit</code> results in sort order (or all results if fewer)
+     */
+    public List<ScimResource> doSort(List<ScimResource> vals, int limit) {
+        if (this.sortAttrs == null)
+            return vals; // sort not requested.
+        if (limit <= 0)
+            return new ArrayList<>();
+        if (limit >= vals.size())
+            return doSort(vals);
+
+        Comparator<ScimResource> comparator = getSortComparator();
+        // The head of the queue is the worst of the best entries seen so far
+        PriorityQueue<ScimResource> heap = new PriorityQueue<>(limit, comparator.reversed());
+        for (ScimResource val : vals) {
+            if (heap.size() < limit)
+                heap.add(val);
+            else if (comparator.compare(val, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(val);
+            }
+        }
+        ArrayList<ScimResource> res = new ArrayList<>(heap);
+        res.sort(comparator);
+        return res;
+    }
+
+    protected Comparator<ScimResource> getSortComparator() {
+        return (o1, o2) -> {
             List<Attribute> sortAttrs = ListResponse.this.sortAttrs;
             for (Attribute attr : sortAttrs) {
                 Value val1 = o1.getValue(attr);
@@ -235,11 +327,7 @@ public class ListResponse extends ScimResponse {
                 return res;
             }
             return 0;
-        });
-
-        ArrayList<ScimResource> res = new ArrayList<>();
-        res.addAll(Arrays.asList(resources));
-        return res;
+        };
     }
 
     /* (non-Javadoc)
@@ -273,7 +361,7 @@ public class ListResponse extends ScimResponse {
         while (iter.hasNext()) {
             ScimResource resource = iter.next();
             try {
-                resource.serialize(gen, ctx, false);
+                resource.serialize(gen, ctx, false, hiddenAttrs);
             } catch (ScimException e) {
                 //TODO This should not happen
                 logger.error("Unexpected exception serializing a response value: " + e.getMessage(), e);
@@ -291,7 +379,7 @@ public class ListResponse extends ScimResponse {
             Set<Attribute> attrs = res.getAttributesPresent();
             for (Attribute attr : attrs) {
                 if (set.isAttrNotReturnable(attr))
-                    res.removeValue(attr);
+                    hiddenAttrs.add(attr);
             }
         }
     }
@@ -95,6 +95,8 @@ public class RequestCtx {
 
     protected int count = 0; // number of results to return
 
+    protected boolean countOnly = false; // count=0 was requested (totalResults only)
+
     protected String etag = null;
 
     protected String match = null;
@@ -516,6 +518,27 @@ public class RequestCtx {
 
     }
 
+    /**
+     * @return The 1-based index of the first result to be returned
+     */
+    public int getStartIndex() {
+        return startIndex;
+    }
+
+    /**
+     * @return The requested sortBy attribute(s) or null if sorting was not requested
+     */
+    public String getSortBy() {
+        return sortBy;
+    }
+
+    /**
+     * @return true if sortOrder requests a descending sort
+     */
+    public boolean isSortDescending() {
+        return sortOrder != null && sortOrder.toLowerCase(Locale.ROOT).startsWith("d");
+    }
+
     /**
      * @return The number of items per page to be returned. 0 means unlimited.
      */
@@ -524,14 +547,23 @@ public class RequestCtx {
     }
 
     /**
-     * @param ind A String value indicating the requested number of items per page. Null or "0" means unlimited.
+     * @param ind A String value indicating the requested number of items per page. Null means unlimited. "0" requests
+     *            only totalResults (see {@link #isCountOnly()}).
      */
     public void setCount(String ind) {
         if (ind != null)
             count = Integer.parseInt(ind);
         else
             count = 0;
+        countOnly = ind != null && count == 0;
+    }
 
+    /**
+     * @return true if the client requested count=0, in which case no resources are returned, only totalResults (RFC7644
+     * Sec 3.4.2.4)
+     */
+    public boolean isCountOnly() {
+        return countOnly;
     }
 
     public void parsePath() {
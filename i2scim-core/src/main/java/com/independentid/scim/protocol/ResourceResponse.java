@@ -29,6 +29,7 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Set;
 
 /**
@@ -48,6 +49,9 @@ public class ResourceResponse extends ScimResponse {
 	protected String id;
 
 	protected ArrayList<ScimResource> entries = new ArrayList<>();
+
+	// attributes not readable by the requester, left out when serializing so that stored resources are not modified
+	protected final Set<Attribute> hiddenAttrs = new HashSet<>();
 	
 	
 	public ResourceResponse(ScimResource val, RequestCtx ctx) {
@@ -102,7 +106,7 @@ public class ResourceResponse extends ScimResponse {
 		// For single results, just return the object itself.
 		ScimResource resource = getResultResource();
 		try {
-			resource.serialize(gen, ctx, false);
+			resource.serialize(gen, ctx, false, hiddenAttrs);
 		} catch (ScimException e) {
 			//TODO This should not happen
 			logger.error("Unexpected exception serializing a response value: "+e.getMessage(),e);
@@ -131,7 +135,7 @@ public class ResourceResponse extends ScimResponse {
 			Set<Attribute> attrs = res.getAttributesPresent();
 			for (Attribute attr: attrs) {
 				if (set.isAttrNotReturnable(attr))
-					res.blockAttribute(attr);
+					hiddenAttrs.add(attr);
 			}
 		}
 	}
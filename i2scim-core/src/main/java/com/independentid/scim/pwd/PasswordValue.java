@@ -61,6 +61,11 @@ public class PasswordValue extends StringValue implements IVirtualValue {
         }
     }
 
+    @Override
+    public PasswordValue copy() {
+        return new PasswordValue(res, this);
+    }
+
     public PasswordToken getToken() {
         if (this.tkn == null)
             try {
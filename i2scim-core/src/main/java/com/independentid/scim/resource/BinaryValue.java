@@ -111,6 +111,14 @@ public class BinaryValue extends Value {
         return this.value;
     }
 
+    /**
+     * Returns a copy of this value with its own copy of the raw binary
+     */
+    @Override
+    public BinaryValue copy() {
+        return new BinaryValue(attr, value == null ? null : value.clone());
+    }
+
     /**
      * Returns the base64 encoded binary value
      */
@@ -64,6 +64,11 @@ public class BooleanValue extends Value {
 		return parent;
 	}
 
+	@Override
+	public BooleanValue copy() {
+		return new BooleanValue(attr, value);
+	}
+
 	@Override
 	public Boolean getRawValue() {
 		return this.value;
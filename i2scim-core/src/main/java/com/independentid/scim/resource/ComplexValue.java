@@ -74,6 +74,20 @@ public class ComplexValue extends Value {
         this.attr = attr;
     }
 
+    protected ComplexValue(ComplexValue val) {
+        this.jtype = val.jtype;
+        this.attr = val.attr;
+        this.resolver = val.resolver;
+        this.vals = new LinkedHashMap<>();
+        for (Map.Entry<Attribute, Value> entry : val.vals.entrySet())
+            this.vals.put(entry.getKey(), entry.getValue().copy());
+    }
+
+    @Override
+    public ComplexValue copy() {
+        return new ComplexValue(this);
+    }
+
     public void addValue(Attribute attr, Value val) {
         this.vals.put(attr, val);
     }
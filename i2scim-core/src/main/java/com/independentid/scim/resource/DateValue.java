@@ -66,6 +66,11 @@ public class DateValue extends Value {
 		return parent;
 	}
 	
+	@Override
+	public DateValue copy() {
+		return new DateValue(attr, value == null ? null : new Date(value.getTime()));
+	}
+
 	public String getRawValue() {
 		return Meta.ScimDateFormat.format(this.value);
 	}
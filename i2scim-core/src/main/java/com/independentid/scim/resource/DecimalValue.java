@@ -64,6 +64,11 @@ public class DecimalValue extends Value {
 		return parent;
 	}
 
+	@Override
+	public DecimalValue copy() {
+		return new DecimalValue(attr, value);
+	}
+
 	@Override
 	public BigDecimal getRawValue() {
 		return this.value;
@@ -70,6 +70,21 @@ public class ExtensionValues implements ScimSerializer, IBulkIdTarget {
 	}
 
 
+	private ExtensionValues(ExtensionValues ext) {
+		this.sname = ext.sname;
+		this.eSchema = ext.eSchema;
+		this.resolver = ext.resolver;
+		for (Map.Entry<Attribute, Value> entry : ext.attrs.entrySet())
+			this.attrs.put(entry.getKey(), entry.getValue().copy());
+	}
+
+	/**
+	 * @return A deep copy of the extension values (blocked attributes are not copied)
+	 */
+	public ExtensionValues copy() {
+		return new ExtensionValues(this);
+	}
+
 	public void parseJson(JsonNode node) throws ConflictException, SchemaException, ParseException {
 
 		//this.eSchema = this.cfg.getSchemaByName(this.sname);
@@ -90,6 +105,20 @@ public class ExtensionValues implements ScimSerializer, IBulkIdTarget {
 	@Override
 	public void serialize(JsonGenerator gen, RequestCtx ctx,
 						  boolean forHash) throws IOException, ScimException {
+		serialize(gen, ctx, forHash, blockedAttrs);
+	}
+
+	/**
+	 * Serializes the extension values omitting the blocked attributes.
+	 * @param gen     The JsonGenerator to write to
+	 * @param ctx     The request context used for attribute filtering, or null
+	 * @param forHash When true, the output is used for a version hash
+	 * @param blocked Attributes that are not to be returned
+	 * @throws IOException   Thrown when writing to the generator fails
+	 * @throws ScimException Thrown when a value fails to serialize
+	 */
+	public void serialize(JsonGenerator gen, RequestCtx ctx,
+						  boolean forHash, Set<Attribute> blocked) throws IOException, ScimException {
 
 		if (getSize() == 0)
 			return;
@@ -102,7 +131,7 @@ public class ExtensionValues implements ScimSerializer, IBulkIdTarget {
 		gen.writeStartObject();
 
 		for (Attribute attr : attrs.keySet()) {
-			if (blockedAttrs.contains(attr))
+			if (blocked.contains(attr))
 				continue;
 			if (ValueUtil.isReturnable(attr, ctx)) {
 				gen.writeFieldName(attr.getName());
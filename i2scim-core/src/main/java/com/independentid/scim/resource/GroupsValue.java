@@ -21,6 +21,8 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.independentid.scim.backend.BackendException;
 import com.independentid.scim.backend.BackendHandler;
+import com.independentid.scim.backend.IGroupMembership;
+import com.independentid.scim.backend.IScimProvider;
 import com.independentid.scim.core.err.BadFilterException;
 import com.independentid.scim.core.err.ConflictException;
 import com.independentid.scim.core.err.ScimException;
@@ -38,6 +40,7 @@ import java.io.IOException;
 import java.text.ParseException;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -54,6 +57,7 @@ public class GroupsValue extends MultiValue implements IVirtualValue {
     static Attribute valAttr;
     static Attribute typeAttr;
     static StringValue typeDirectValue;
+    static StringValue typeIndirectValue;
 
     ScimResource res;
     boolean loaded = false;
@@ -80,6 +84,14 @@ public class GroupsValue extends MultiValue implements IVirtualValue {
         this.res = parent;
     }
 
+    /**
+     * @return A copy of the currently held values bound to the same parent resource. The copy is not marked loaded.
+     */
+    @Override
+    public GroupsValue copy() {
+        return new GroupsValue(res, super.copy());
+    }
+
     public static void init(SchemaManager schemaManger,BackendHandler handler) {
         GroupsValue.handler = handler;
         GroupsValue.smgr = schemaManger;
@@ -89,6 +101,7 @@ public class GroupsValue extends MultiValue implements IVirtualValue {
         valAttr = attr.getSubAttribute("value");
         typeAttr = attr.getSubAttribute("type");
         typeDirectValue = new StringValue(typeAttr,"direct");
+        typeIndirectValue = new StringValue(typeAttr,"indirect");
 
         dispNameAttr = smgr.findAttribute("Group:displayName",null);
     }
@@ -104,6 +117,17 @@ public class GroupsValue extends MultiValue implements IVirtualValue {
      */
     private void loadValues() {
         if (loaded) return;
+        IScimProvider provider = handler.getProvider();
+        if (provider instanceof IGroupMembership) {
+            // The provider maintains a reverse membership index so no search is needed
+            IGroupMembership index = (IGroupMembership) provider;
+            for (ScimResource item : index.getDirectGroups(res.getId()))
+                processGroup(item, typeDirectValue);
+            for (ScimResource item : index.getIndirectGroups(res.getId()))
+                processGroup(item, typeIndirectValue);
+            loaded = true;
+            return;
+        }
         try {
             RequestCtx ctx = new RequestCtx("/Groups",null,"Group:members.value eq "+res.getId(),smgr);
             ctx.setAttributes("displayName");
@@ -112,7 +136,7 @@ public class GroupsValue extends MultiValue implements IVirtualValue {
             if (resp instanceof ListResponse) {
                 ListResponse lresp = (ListResponse) resp;
                 for(ScimResource item : lresp.getResults())
-                    processGroup(item);
+                    processGroup(item, typeDirectValue);
             }
         } catch (ScimException | BackendException e) {
             System.err.println("Error looking up group membership: "+e.getMessage());
@@ -121,7 +145,7 @@ public class GroupsValue extends MultiValue implements IVirtualValue {
         loaded = true;
     }
 
-    private void processGroup(ScimResource res) {
+    private void processGroup(ScimResource res, StringValue type) {
         Map<Attribute,Value> map = new HashMap<>();
         try {
             Value displayName =  res.getValue(dispNameAttr);
@@ -133,7 +157,7 @@ public class GroupsValue extends MultiValue implements IVirtualValue {
                 Value display = new StringValue(displayAttr,displayName.toString());
                 map.put(displayAttr, display);
             }
-            map.put(typeAttr,typeDirectValue);
+            map.put(typeAttr,type);
             ComplexValue cval = new ComplexValue(this.attr,map);
             addValue(cval);
         } catch (SchemaException e) {
@@ -179,6 +203,12 @@ public class GroupsValue extends MultiValue implements IVirtualValue {
         return super.getMatchValue(filter);
     }
 
+    @Override
+    public List<Value> getMatchValues(Filter filter) throws BadFilterException {
+        loadValues();
+        return super.getMatchValues(filter);
+    }
+
     @Override
     public Collection<Value> values() {
         loadValues();
@@ -66,6 +66,11 @@ public class IntegerValue extends Value {
 			
 	}
 
+	@Override
+	public IntegerValue copy() {
+		return new IntegerValue(attr, value);
+	}
+
 	@Override
 	public Integer getRawValue() {
 		return this.value;
@@ -88,6 +88,18 @@ public class Meta extends ComplexValue implements ScimSerializer {
 		this.parseJson(node);
 	}
             
+    @Override
+    public Meta copy() {
+        Meta copy = new Meta();
+        copy.location = location;
+        copy.resourceType = resourceType;
+        copy.created = created == null ? null : new Date(created.getTime());
+        copy.lastModified = lastModified == null ? null : new Date(lastModified.getTime());
+        copy.revisions = revisions == null ? null : revisions.copy();
+        copy.version = version;
+        return copy;
+    }
+
     public String getLocation() {
         return this.location;
     }
@@ -425,4 +437,46 @@ public class Meta extends ComplexValue implements ScimSerializer {
 		return this.revisions;
 	}
 
+	/**
+	 * Bounds the revision history by count and age. The most recent revision is always kept. Only call this on a
+	 * version of the resource that has not yet been stored, as the revisions value is replaced.
+	 * @param max The maximum number of revisions to keep (0 for no limit)
+	 * @param cutoff Revisions dated before the cutoff are removed (null for no age limit)
+	 * @return true if one or more revisions were removed
+	 */
+	public boolean trimRevisions(int max, Date cutoff) {
+		if (this.revisions == null || this.revisions.size() <= 1)
+			return false;
+		Attribute dateAttr = attr.getSubAttribute(META_REVISIONS).getSubAttribute("date");
+		List<Value> vals = new ArrayList<>(Arrays.asList(this.revisions.getRawValue()));
+		vals.sort(Comparator.comparing((Value val) -> revisionDate(val, dateAttr)).reversed());
+
+		List<Value> keep = new ArrayList<>();
+		for (Value val : vals) {
+			// sorted newest first, so everything after the first excluded revision is excluded too
+			if (!keep.isEmpty() && ((max > 0 && keep.size() >= max)
+					|| (cutoff != null && revisionDate(val, dateAttr).before(cutoff))))
+				break;
+			keep.add(val);
+		}
+		if (keep.size() == vals.size())
+			return false;
+		try {
+			this.revisions = new MultiValue(this.revisions.getAttribute(), keep);
+		} catch (SchemaException e) {
+			logger.error("Unable to trim revisions: " + e.getMessage(), e);
+			return false;
+		}
+		return true;
+	}
+
+	private static Date revisionDate(Value revision, Attribute dateAttr) {
+		if (revision instanceof ComplexValue) {
+			Value date = ((ComplexValue) revision).getValue(dateAttr);
+			if (date instanceof DateValue)
+				return ((DateValue) date).getDateValue();
+		}
+		return new Date(0);
+	}
+
 }
@@ -69,6 +69,20 @@ public class MultiValue extends Value {
         this.attr = attr;
     }
 
+    protected MultiValue(MultiValue val) {
+        this.jtype = val.jtype;
+        this.attr = val.attr;
+        this.resolver = val.resolver;
+        this.values = new HashSet<>();
+        for (Value aval : val.values)
+            this.values.add(aval.copy());
+    }
+
+    @Override
+    public MultiValue copy() {
+        return new MultiValue(this);
+    }
+
     @Override
     public void serialize(JsonGenerator gen, RequestCtx ctx) throws IOException, ScimException {
         gen.writeStartArray();
@@ -223,6 +237,19 @@ public class MultiValue extends Value {
         return null;
     }
 
+    /**
+     * @param filter The value filter
+     * @return All values that match the filter, or an empty list if none match
+     */
+    public List<Value> getMatchValues(Filter filter) throws BadFilterException {
+        List<Value> matches = new ArrayList<>();
+        for (Value val : this.values) {
+            if (filter.isMatch(val))
+                matches.add(val);
+        }
+        return matches;
+    }
+
     public Collection<Value> values() {
         return this.values;
     }
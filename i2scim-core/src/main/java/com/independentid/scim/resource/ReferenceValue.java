@@ -116,6 +116,13 @@ public class ReferenceValue extends Value implements IBulkIdTarget  {
 		}
 	}
 
+	@Override
+	public ReferenceValue copy() {
+		ReferenceValue copy = new ReferenceValue(attr, value);
+		copy.resolver = resolver;
+		return copy;
+	}
+
 	@Override
 	public URI getRawValue() {
 		return this.value;
@@ -598,6 +598,26 @@ public class ScimResource implements IResourceModifier, IBulkIdTarget {
 
     public void serialize(JsonGenerator gen, RequestCtx ctx, boolean forHash)
             throws IOException, ScimException {
+        serialize(gen, ctx, forHash, null);
+    }
+
+    /**
+     * Serializes the resource leaving out attributes that are hidden from the requester. Hidden attributes are applied
+     * as a projection at serialization time so that a shared (stored) resource is not modified by access control.
+     * @param gen     The JsonGenerator to write to
+     * @param ctx     The request context (used for attribute filtering), or null
+     * @param forHash When true, the output is used to calculate the version hash (meta and acis excluded)
+     * @param hidden  Attributes not to be returned in addition to those blocked on the resource, or null
+     * @throws IOException   Thrown when writing to the generator fails
+     * @throws ScimException Thrown when a value fails to serialize
+     */
+    public void serialize(JsonGenerator gen, RequestCtx ctx, boolean forHash, Set<Attribute> hidden)
+            throws IOException, ScimException {
+        Set<Attribute> blocked = this.blockedAttrs;
+        if (hidden != null && !hidden.isEmpty()) {
+            blocked = new HashSet<>(hidden);
+            blocked.addAll(this.blockedAttrs);
+        }
 
         gen.writeStartObject();
 
@@ -614,7 +634,7 @@ public class ScimResource implements IResourceModifier, IBulkIdTarget {
 
         if (this.externalId != null &&
                 ValueUtil.isReturnable(commonSchema, ScimParams.ATTR_EXTID, ctx)
-                && isNotBlocked(commonSchema.getAttribute(ScimParams.ATTR_EXTID)))
+                && !blocked.contains(commonSchema.getAttribute(ScimParams.ATTR_EXTID)))
 
             gen.writeStringField(ScimParams.ATTR_EXTID, this.externalId);
 
@@ -622,7 +642,7 @@ public class ScimResource implements IResourceModifier, IBulkIdTarget {
         // Meta will not be used for hash calculations.
         if (this.meta != null && !forHash &&
                 ValueUtil.isReturnable(commonSchema, ScimParams.ATTR_META, ctx) &&
-                isNotBlocked(commonSchema.getAttribute(ScimParams.ATTR_META))) {
+                !blocked.contains(commonSchema.getAttribute(ScimParams.ATTR_META))) {
             gen.writeFieldName(ScimParams.ATTR_META);
             this.meta.serialize(gen, ctx, false);
         }
@@ -636,7 +656,7 @@ public class ScimResource implements IResourceModifier, IBulkIdTarget {
         for (Attribute attr : coreAttrVals.keySet()) {
             if (!ValueUtil.isReturnable(attr, ctx))
                 continue;
-            if (isNotBlocked(attr)) {
+            if (!blocked.contains(attr)) {
                 Value val = this.coreAttrVals.get(attr);
                 gen.writeFieldName(attr.getName());
                 val.serialize(gen, ctx);
@@ -648,10 +668,8 @@ public class ScimResource implements IResourceModifier, IBulkIdTarget {
             //if (ctx != null)
             //	ValueUtil.mapVirtualVals(getId(),ext.getSchema(),ext.getValueMap());
 
-            if (ValueUtil.isReturnable(ext, ctx)) {
-                ext.setBlockedAttrs(blockedAttrs);
-                ext.serialize(gen, ctx, forHash);
-            }
+            if (ValueUtil.isReturnable(ext, ctx))
+                ext.serialize(gen, ctx, forHash, blocked);
         }
 
         // Write out the end of object for the resource
@@ -899,9 +917,10 @@ public class ScimResource implements IResourceModifier, IBulkIdTarget {
         ScimResource target = this;
         Attribute targetAttr = path.getTargetAttribute();
         MultiValue mval = (MultiValue) target.getValue(targetAttr);
-        Value targetValue = null;
+        // A value path filter selects every matching value (RFC7644 Sec 3.5.2)
+        List<Value> targetValues = Collections.emptyList();
         if (path.getTargetValueFilter() != null)
-            targetValue = mval.getMatchValue(path.getTargetValueFilter());
+            targetValues = mval.getMatchValues(path.getTargetValueFilter());
 
         switch (op.op) {
             case JsonPatchOp.OP_ACTION_ADD:
@@ -916,11 +935,15 @@ public class ScimResource implements IResourceModifier, IBulkIdTarget {
                     }
                 }
                 if (path.hasVpathSubAttr() && !op.jsonValue.isObject()) {
-                    if (targetValue == null)
+                    if (targetValues.isEmpty())
                         throw new NoTargetException("No value match found for the valuepath filter.");
 
-                    // the reuqest is to add a sub attribute to an existing value
-                    if (targetValue instanceof ComplexValue) {
+                    // the reuqest is to add a sub attribute to the existing values
+                    for (Value targetValue : targetValues) {
+                        if (!(targetValue instanceof ComplexValue))
+                            // There was a sub attribute specified, but the parent does not support sub-attributes.
+                            // TODO what about simple "value" for mv attributes.
+                            throw new InvalidValueException("A sub-attribute was specified, but the value was a JSON object: " + op.path);
                         ComplexValue cval = (ComplexValue) targetValue;
 
                         Attribute sattr = path.getSubAttribute();
@@ -938,12 +961,8 @@ public class ScimResource implements IResourceModifier, IBulkIdTarget {
                         } catch (SchemaException | ParseException e) {
                             throw new InvalidValueException("JSON parsing error parsing value parameter.", e);
                         }
-                        return;
                     }
-
-                    // There was a sub attribute specified, but the parent does not support sub-attributes.
-                    // TODO what about simple "value" for mv attributes.
-                    throw new InvalidValueException("A sub-attribute was specified, but the value was a JSON object: " + op.path);
+                    return;
 
                 }
 				/*  Note clear what this case is addressing
@@ -975,34 +994,40 @@ public class ScimResource implements IResourceModifier, IBulkIdTarget {
 
 				 */
             case JsonPatchOp.OP_ACTION_REMOVE:
-                if (targetValue == null && path.hasVpathSubAttr())
+                if (targetValues.isEmpty() && path.hasVpathSubAttr())
                     throw new NoTargetException("Unable to to match a record value");
-                if (targetValue == null) {
+                if (targetValues.isEmpty()) {
                     if (path.getTargetValueFilter() == null)
                         removeValue(targetAttr);  // remove the entire attribute otherwise nothing to do
                     return;
                 }
                 if (path.hasVpathSubAttr()) {
-                    if (targetValue instanceof ComplexValue) {
+                    for (Value targetValue : targetValues) {
+                        if (!(targetValue instanceof ComplexValue))
+                            // There was a sub attribute specified, but the parent does not support sub-attributes.
+                            // TODO what about simple "value" for mv attributes.
+                            throw new InvalidValueException("A sub-attribute was specified for a parent attribute that is not complex: " + op.path);
                         ComplexValue cval = (ComplexValue) targetValue;
                         //TODO do we care if the attribute didn't exist? Probably not
                         cval.removeValue(path.getSubAttribute());
-                        return;
                     }
-                    // There was a sub attribute specified, but the parent does not support sub-attributes.
-                    // TODO what about simple "value" for mv attributes.
-                    throw new InvalidValueException("A sub-attribute was specified for a parent attribute that is not complex: " + op.path);
+                    return;
                 }
-                // No sub-attribute specified, remove the entire value
-                mval.removeValue(targetValue);
+                // No sub-attribute specified, remove the entire values
+                for (Value targetValue : targetValues)
+                    mval.removeValue(targetValue);
                 return;
 
             case JsonPatchOp.OP_ACTION_REPLACE:
 
                 if (path.hasVpathSubAttr() && !op.jsonValue.isObject()) {
-                    if (targetValue == null)
+                    if (targetValues.isEmpty())
                         throw new NoTargetException("No matching value found to replace " + path.getSubAttrName());
-                    if (targetValue instanceof ComplexValue) {
+                    for (Value targetValue : targetValues) {
+                        if (!(targetValue instanceof ComplexValue))
+                            // There was a sub attribute specified, but the parent does not support sub-attributes.
+                            // TODO what about simple "value" for mv attributes.
+                            throw new InvalidValueException("A sub-attribute was specified, but the value was a JSON object: " + op.path);
                         ComplexValue cval = (ComplexValue) targetValue;
                         //Attribute sattr = target.getAttribute(path.getTargetAttrName()+"."+path.getSubAttrName(), ctx);
                         Attribute sattr = path.getSubAttribute();
@@ -1019,20 +1044,16 @@ public class ScimResource implements IResourceModifier, IBulkIdTarget {
                         } catch (SchemaException | ParseException e) {
                             throw new InvalidValueException("JSON parsing error parsing value parameter.", e);
                         }
-                        return;
                     }
-
-                    // There was a sub attribute specified, but the parent does not support sub-attributes.
-                    // TODO what about simple "value" for mv attributes.
-                    throw new InvalidValueException("A sub-attribute was specified, but the value was a JSON object: " + op.path);
+                    return;
 
                 } else if (op.jsonValue.isObject() &&
                         path.getTargetAttribute().getType()
                                 .equalsIgnoreCase(Attribute.TYPE_Complex)) {
                     try {
                         Value cval = ValueUtil.parseJson(this, path.getTargetAttribute(), op.jsonValue, null);
-                        if (targetValue != null)
-                            mval.removeValue(targetValue);// remove the current value if it exists
+                        for (Value targetValue : targetValues)
+                            mval.removeValue(targetValue);// remove the current values if they exist
                         mval.addValue(cval); // add the replacement
                         return;
                     } catch (SchemaException | ParseException e) {
@@ -1291,17 +1312,83 @@ public class ScimResource implements IResourceModifier, IBulkIdTarget {
      * Copies the current ScimResource and returns a new ScimResource object. Include a {@link RequestCtx} to do
      * attribute filtering.
      * @param requestCtx A RequestCtx object which may be used to filter included/excluded attributes and security
-     *                   filtering.
-     * @return a New ScimResource based on a JsonNode copied result.
+     *                   filtering. When null, the values are deep copied directly without a JSON round trip.
+     * @return a New ScimResource copied from this resource.
      * @throws SchemaException Thrown when an invalid value is parsed compared to the defined attribute
      * @throws ParseException  Thrown due to JSON parsing error
      */
     public ScimResource copy(RequestCtx requestCtx) throws ScimException, ParseException {
+        if (requestCtx == null)
+            return new ScimResource(this);
         JsonNode node = toJsonNode(requestCtx);
         return new ScimResource(smgr, node, this.type.getTypePath());
 
     }
 
+    /**
+     * Creates a deep copy of a resource value by value. Virtual attribute values are re-created so that they are bound
+     * to the new resource. Blocked attributes and the bulk id resolver are not copied.
+     * @param res The ScimResource to be copied
+     */
+    protected ScimResource(ScimResource res) {
+        this(res.smgr);
+        this.id = res.id;
+        this.externalId = res.externalId;
+        this.schemas = new ArrayList<>(res.schemas);
+        this.mainSchema = res.mainSchema;
+        this.type = res.type;
+        this.container = res.container;
+        if (res.meta != null)
+            this.meta = res.meta.copy();
+        this.attrsInUse.addAll(res.attrsInUse);
+
+        for (Map.Entry<Attribute, Value> entry : res.coreAttrVals.entrySet()) {
+            Attribute attr = entry.getKey();
+            Value val = entry.getValue().copy();
+            if (smgr.isVirtualAttr(attr)) {
+                Value vval = ValueUtil.mapVirtualValue(this, attr, val);
+                if (vval != null)
+                    val = vval;
+            }
+            this.coreAttrVals.put(attr, val);
+        }
+        for (Map.Entry<String, ExtensionValues> entry : res.extAttrVals.entrySet())
+            this.extAttrVals.put(entry.getKey(), entry.getValue().copy());
+    }
+
+    /**
+     * Returns a view of this resource for a reader. The view shares the stored values without copying them, except that
+     * calculated virtual attributes (e.g. groups) are re-created for the view so the reader sees current values without
+     * the stored resource being modified. The view and its values must be treated as read-only.
+     * @return A read-only view, or this resource when it has no calculated virtual attributes
+     */
+    public ScimResource getReadView() {
+        ScimResource view = null;
+        for (Map.Entry<Attribute, Value> entry : coreAttrVals.entrySet()) {
+            Attribute attr = entry.getKey();
+            if (smgr.getAttributeCalcConstructor(attr) == null)
+                continue;
+            if (view == null) {
+                view = new ScimResource(smgr);
+                view.id = id;
+                view.externalId = externalId;
+                view.schemas = schemas;
+                view.mainSchema = mainSchema;
+                view.type = type;
+                view.container = container;
+                view.meta = meta;
+                view.attrsInUse = attrsInUse;
+                view.blockedAttrs = blockedAttrs;
+                view.coreAttrVals = new LinkedHashMap<>(coreAttrVals);
+                view.extAttrVals = extAttrVals;
+            }
+            Value val = ValueUtil.mapVirtualValue(view, attr, null);
+            if (val != null)
+                view.coreAttrVals.put(attr, val);
+        }
+        return view == null ? this : view;
+    }
+
     /**
      * This method often used by ACIs to evaluate whether the current resource attributes are authorized.
      * @return A set of Attribute definitions that are present in the current resource. Includes core and extension
@@ -64,6 +64,20 @@ public class StringValue extends Value implements IBulkIdTarget {
 		this.attr = attr;
 	}
 	
+	protected StringValue(StringValue val) {
+		super();
+		this.jtype = val.jtype;
+		this.attr = val.attr;
+		this.value = val.value == null ? null : val.value.clone();
+		this.resolver = val.resolver;
+		this.isBulkId = val.isBulkId;
+	}
+
+	@Override
+	public StringValue copy() {
+		return new StringValue(this);
+	}
+
 	public String getBulkId() {
 		if (this.value == null || !isBulkId)
 			return null;
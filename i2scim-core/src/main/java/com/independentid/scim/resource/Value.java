@@ -52,6 +52,13 @@ public abstract class Value implements Comparable<Value> {
 	
 	public abstract JsonNode toJsonNode(ObjectNode parent, String aname);
 
+	/**
+	 * Makes a deep copy of the value without serializing it. Mutable state (arrays, dates and sub-values) is not
+	 * shared with the original.
+	 * @return A new Value of the same type and Attribute
+	 */
+	public abstract Value copy();
+
 	public  String toString(Attribute attr) {
 		return toJsonNode(null,attr.getName()).toString();
 	}
@@ -0,0 +1,450 @@
+/*
+ * Copyright 2021.  Independent Identity Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.independentid.scim.backend.memory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * DocBitmap is a compressed bitmap of internal document numbers (see {@link DocIdMap}) used for index posting lists.
+ * Following the Roaring bitmap layout, the 32-bit space is split into chunks of 65536 keyed by the high 16 bits. A
+ * chunk holding up to 4096 entries is stored as a sorted array of the low 16 bits; a denser chunk is stored as a
+ * 1024 word bitmap. Intersection, union and difference operate chunk by chunk, using word-level operations where both
+ * chunks are dense.
+ * <p>DocBitmap is not synchronized.</p>
+ */
+public class DocBitmap {
+    static final int ARRAY_MAX = 4096;
+    static final int WORDS = 1024;
+
+    static final class Chunk {
+        final int key;
+        char[] array;  // sorted low 16 bits when sparse (bits == null)
+        long[] bits;   // when dense (array == null)
+        int card;
+
+        Chunk(int key) {
+            this.key = key;
+            this.array = new char[4];
+        }
+
+        Chunk(Chunk src) {
+            this.key = src.key;
+            this.card = src.card;
+            if (src.bits != null)
+                this.bits = src.bits.clone();
+            else
+                this.array = Arrays.copyOf(src.array, src.card);
+        }
+
+        boolean contains(char low) {
+            if (bits != null)
+                return (bits[low >>> 6] & (1L << low)) != 0;
+            return Arrays.binarySearch(array, 0, card, low) >= 0;
+        }
+
+        boolean add(char low) {
+            if (bits != null) {
+                long mask = 1L << low;
+                if ((bits[low >>> 6] & mask) != 0)
+                    return false;
+                bits[low >>> 6] |= mask;
+                card++;
+                return true;
+            }
+            int pos = Arrays.binarySearch(array, 0, card, low);
+            if (pos >= 0)
+                return false;
+            pos = -pos - 1;
+            if (card == ARRAY_MAX) {
+                toBits();
+                return add(low);
+            }
+            if (card == array.length)
+                array = Arrays.copyOf(array, Math.min(ARRAY_MAX, Math.max(4, card * 2)));
+            System.arraycopy(array, pos, array, pos + 1, card - pos);
+            array[pos] = low;
+            card++;
+            return true;
+        }
+
+        boolean remove(char low) {
+            if (bits != null) {
+                long mask = 1L << low;
+                if ((bits[low >>> 6] & mask) == 0)
+                    return false;
+                bits[low >>> 6] &= ~mask;
+                card--;
+                if (card <= ARRAY_MAX / 2)
+                    toArray();
+                return true;
+            }
+            int pos = Arrays.binarySearch(array, 0, card, low);
+            if (pos < 0)
+                return false;
+            System.arraycopy(array, pos + 1, array, pos, card - pos - 1);
+            card--;
+            return true;
+        }
+
+        void toBits() {
+            long[] words = new long[WORDS];
+            for (int i = 0; i < card; i++)
+                words[array[i] >>> 6] |= 1L << array[i];
+            bits = words;
+            array = null;
+        }
+
+        void toArray() {
+            char[] vals = new char[Math.max(card, 4)];
+            int n = 0;
+            for (int w = 0; w < WORDS; w++) {
+                long word = bits[w];
+                while (word != 0) {
+                    vals[n++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            array = vals;
+            bits = null;
+        }
+
+        /* Returns the chunk as a dense bitmap without converting it */
+        long[] words() {
+            if (bits != null)
+                return bits;
+            long[] words = new long[WORDS];
+            for (int i = 0; i < card; i++)
+                words[array[i] >>> 6] |= 1L << array[i];
+            return words;
+        }
+
+        /* Builds a chunk from words, choosing the representation by cardinality. Returns null if empty */
+        static Chunk fromWords(int key, long[] words) {
+            int card = 0;
+            for (long word : words)
+                card += Long.bitCount(word);
+            if (card == 0)
+                return null;
+            Chunk chunk = new Chunk(key);
+            chunk.bits = words;
+            chunk.array = null;
+            chunk.card = card;
+            if (card <= ARRAY_MAX)
+                chunk.toArray();
+            return chunk;
+        }
+
+        static Chunk fromArray(int key, char[] vals, int card) {
+            if (card == 0)
+                return null;
+            Chunk chunk = new Chunk(key);
+            chunk.array = vals;
+            chunk.card = card;
+            return chunk;
+        }
+    }
+
+    private final ArrayList<Chunk> chunks;
+
+    public DocBitmap() {
+        chunks = new ArrayList<>();
+    }
+
+    private DocBitmap(ArrayList<Chunk> chunks) {
+        this.chunks = chunks;
+    }
+
+    private int findChunk(int key) {
+        int lo = 0, hi = chunks.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int mkey = chunks.get(mid).key;
+            if (mkey < key)
+                lo = mid + 1;
+            else if (mkey > key)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -(lo + 1);
+    }
+
+    /**
+     * @param doc The document number to add
+     * @return true if the bitmap did not already contain the document
+     */
+    public boolean add(int doc) {
+        int key = doc >>> 16;
+        int pos = findChunk(key);
+        Chunk chunk;
+        if (pos < 0) {
+            chunk = new Chunk(key);
+            chunks.add(-pos - 1, chunk);
+        } else
+            chunk = chunks.get(pos);
+        return chunk.add((char) doc);
+    }
+
+    /**
+     * @param doc The document number to remove
+     * @return true if the bitmap contained the document
+     */
+    public boolean remove(int doc) {
+        int pos = findChunk(doc >>> 16);
+        if (pos < 0)
+            return false;
+        Chunk chunk = chunks.get(pos);
+        boolean removed = chunk.remove((char) doc);
+        if (chunk.card == 0)
+            chunks.remove(pos);
+        return removed;
+    }
+
+    public boolean contains(int doc) {
+        int pos = findChunk(doc >>> 16);
+        return pos >= 0 && chunks.get(pos).contains((char) doc);
+    }
+
+    public int getCardinality() {
+        int card = 0;
+        for (Chunk chunk : chunks)
+            card += chunk.card;
+        return card;
+    }
+
+    public boolean isEmpty() {
+        return chunks.isEmpty();
+    }
+
+    /**
+     * @return The document numbers in ascending order, e.g. to divide a candidate set between parallel tasks
+     */
+    public int[] toArray() {
+        int[] docs = new int[getCardinality()];
+        PrimitiveIterator.OfInt iter = iterator();
+        int i = 0;
+        while (iter.hasNext())
+            docs[i++] = iter.nextInt();
+        return docs;
+    }
+
+    public DocBitmap copy() {
+        ArrayList<Chunk> res = new ArrayList<>(chunks.size());
+        for (Chunk chunk : chunks)
+            res.add(new Chunk(chunk));
+        return new DocBitmap(res);
+    }
+
+    /**
+     * @param other The bitmap to intersect with
+     * @return A new bitmap containing documents present in both bitmaps
+     */
+    public DocBitmap and(DocBitmap other) {
+        ArrayList<Chunk> res = new ArrayList<>();
+        int i = 0, j = 0;
+        while (i < chunks.size() && j < other.chunks.size()) {
+            Chunk c1 = chunks.get(i), c2 = other.chunks.get(j);
+            if (c1.key < c2.key)
+                i++;
+            else if (c1.key > c2.key)
+                j++;
+            else {
+                Chunk chunk = andChunk(c1, c2);
+                if (chunk != null)
+                    res.add(chunk);
+                i++;
+                j++;
+            }
+        }
+        return new DocBitmap(res);
+    }
+
+    private static Chunk andChunk(Chunk c1, Chunk c2) {
+        if (c1.bits != null && c2.bits != null) {
+            long[] words = new long[WORDS];
+            for (int w = 0; w < WORDS; w++)
+                words[w] = c1.bits[w] & c2.bits[w];
+            return Chunk.fromWords(c1.key, words);
+        }
+        if (c1.bits != null)  // make c1 the sparse chunk
+            return andChunk(c2, c1);
+        char[] vals = new char[c1.card];
+        int n = 0;
+        for (int i = 0; i < c1.card; i++)
+            if (c2.contains(c1.array[i]))
+                vals[n++] = c1.array[i];
+        return Chunk.fromArray(c1.key, vals, n);
+    }
+
+    /**
+     * @param other The bitmap to union with
+     * @return A new bitmap containing documents present in either bitmap
+     */
+    public DocBitmap or(DocBitmap other) {
+        ArrayList<Chunk> res = new ArrayList<>(Math.max(chunks.size(), other.chunks.size()));
+        int i = 0, j = 0;
+        while (i < chunks.size() || j < other.chunks.size()) {
+            Chunk c1 = i < chunks.size() ? chunks.get(i) : null;
+            Chunk c2 = j < other.chunks.size() ? other.chunks.get(j) : null;
+            if (c2 == null || (c1 != null && c1.key < c2.key)) {
+                res.add(new Chunk(c1));
+                i++;
+            } else if (c1 == null || c1.key > c2.key) {
+                res.add(new Chunk(c2));
+                j++;
+            } else {
+                res.add(orChunk(c1, c2));
+                i++;
+                j++;
+            }
+        }
+        return new DocBitmap(res);
+    }
+
+    /**
+     * Adds all documents of another bitmap to this bitmap (in-place union).
+     * @param other The bitmap to merge into this one
+     */
+    public void addAll(DocBitmap other) {
+        for (Chunk c2 : other.chunks) {
+            int pos = findChunk(c2.key);
+            if (pos < 0)
+                chunks.add(-pos - 1, new Chunk(c2));
+            else
+                chunks.set(pos, orChunk(chunks.get(pos), c2));
+        }
+    }
+
+    private static Chunk orChunk(Chunk c1, Chunk c2) {
+        if (c1.bits == null && c2.bits == null && c1.card + c2.card <= ARRAY_MAX) {
+            char[] vals = new char[c1.card + c2.card];
+            int i = 0, j = 0, n = 0;
+            while (i < c1.card && j < c2.card) {
+                char v1 = c1.array[i], v2 = c2.array[j];
+                if (v1 < v2) {
+                    vals[n++] = v1;
+                    i++;
+                } else if (v1 > v2) {
+                    vals[n++] = v2;
+                    j++;
+                } else {
+                    vals[n++] = v1;
+                    i++;
+                    j++;
+                }
+            }
+            while (i < c1.card)
+                vals[n++] = c1.array[i++];
+            while (j < c2.card)
+                vals[n++] = c2.array[j++];
+            return Chunk.fromArray(c1.key, vals, n);
+        }
+        long[] words = c1.bits != null ? c1.bits.clone() : c1.words();
+        if (c2.bits != null)
+            for (int w = 0; w < WORDS; w++)
+                words[w] |= c2.bits[w];
+        else
+            for (int k = 0; k < c2.card; k++)
+                words[c2.array[k] >>> 6] |= 1L << c2.array[k];
+        return Chunk.fromWords(c1.key, words);
+    }
+
+    /**
+     * @param other The bitmap of documents to exclude
+     * @return A new bitmap containing documents in this bitmap that are not in other
+     */
+    public DocBitmap andNot(DocBitmap other) {
+        ArrayList<Chunk> res = new ArrayList<>(chunks.size());
+        int j = 0;
+        for (Chunk c1 : chunks) {
+            while (j < other.chunks.size() && other.chunks.get(j).key < c1.key)
+                j++;
+            if (j == other.chunks.size() || other.chunks.get(j).key != c1.key) {
+                res.add(new Chunk(c1));
+                continue;
+            }
+            Chunk c2 = other.chunks.get(j);
+            Chunk chunk;
+            if (c1.bits != null) {
+                long[] words = c1.bits.clone();
+                if (c2.bits != null)
+                    for (int w = 0; w < WORDS; w++)
+                        words[w] &= ~c2.bits[w];
+                else
+                    for (int k = 0; k < c2.card; k++)
+                        words[c2.array[k] >>> 6] &= ~(1L << c2.array[k]);
+                chunk = Chunk.fromWords(c1.key, words);
+            } else {
+                char[] vals = new char[c1.card];
+                int n = 0;
+                for (int k = 0; k < c1.card; k++)
+                    if (!c2.contains(c1.array[k]))
+                        vals[n++] = c1.array[k];
+                chunk = Chunk.fromArray(c1.key, vals, n);
+            }
+            if (chunk != null)
+                res.add(chunk);
+        }
+        return new DocBitmap(res);
+    }
+
+    /**
+     * @return An iterator returning document numbers in ascending order
+     */
+    public PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            int chunkIndex = 0;
+            int pos = 0;  // array index, or bit position for dense chunks
+
+            @Override
+            public boolean hasNext() {
+                while (chunkIndex < chunks.size()) {
+                    Chunk chunk = chunks.get(chunkIndex);
+                    if (chunk.bits == null) {
+                        if (pos < chunk.card)
+                            return true;
+                    } else {
+                        while (pos < WORDS * 64) {
+                            long word = chunk.bits[pos >>> 6] >>> (pos & 63);
+                            if (word != 0) {
+                                pos += Long.numberOfTrailingZeros(word);
+                                return true;
+                            }
+                            pos = ((pos >>> 6) + 1) << 6;
+                        }
+                    }
+                    chunkIndex++;
+                    pos = 0;
+                }
+                return false;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Chunk chunk = chunks.get(chunkIndex);
+                int low = chunk.bits == null ? chunk.array[pos] : pos;
+                pos++;
+                return (chunk.key << 16) | low;
+            }
+        };
+    }
+}
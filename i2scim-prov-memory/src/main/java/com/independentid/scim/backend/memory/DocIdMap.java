@@ -0,0 +1,174 @@
+/*
+ * Copyright 2021.  Independent Identity Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.independentid.scim.backend.memory;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Assigns dense internal document numbers to the resource ids of a container so that index postings can be kept as
+ * {@link DocBitmap}s. Numbers of removed resources are re-used so that the number space stays dense. Because a
+ * reader may still hold a bitmap evaluated before a number was re-used, each assignment carries a sequence number.
+ * Readers take {@link #getSequence()} before evaluating their candidates and map documents with
+ * {@link #getId(int, long)}, which ignores assignments made after that point.
+ */
+public class DocIdMap {
+    private final Map<String, Integer> docs = new ConcurrentHashMap<>();
+    private volatile AtomicReferenceArray<Assignment> ids = new AtomicReferenceArray<>(1024);
+    private volatile long sequence = 0;
+    private int[] free = new int[64];
+    private int freeCnt = 0;
+    private int next = 0;
+    private final DocBitmap live = new DocBitmap();
+
+    private static class Assignment {
+        final String id;
+        final long sequence;
+
+        Assignment(String id, long sequence) {
+            this.id = id;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * @param id The resource identifier
+     * @return The document number for the id, assigning a new one if necessary
+     */
+    public int assign(String id) {
+        Integer doc = docs.get(id);
+        if (doc != null)
+            return doc;  // already assigned (e.g. re-indexing after a modify) - no lock needed
+        synchronized (this) {
+            doc = docs.get(id);
+            if (doc != null)
+                return doc;
+            int num = freeCnt > 0 ? free[--freeCnt] : next++;
+            Assignment assignment = new Assignment(id, sequence + 1);
+            AtomicReferenceArray<Assignment> current = ids;
+            if (num >= current.length()) {
+                // Fill the larger array completely before publishing it
+                AtomicReferenceArray<Assignment> grown = new AtomicReferenceArray<>(current.length() * 2);
+                for (int i = 0; i < current.length(); i++)
+                    grown.set(i, current.get(i));
+                grown.set(num, assignment);
+                ids = grown;
+            } else
+                current.set(num, assignment);
+            sequence = assignment.sequence;
+            docs.put(id, num);
+            live.add(num);
+            return num;
+        }
+    }
+
+    /**
+     * Releases the document number of a removed resource. Must only be called once the resource has been removed
+     * from all postings.
+     * @param id The resource identifier
+     */
+    public synchronized void release(String id) {
+        Integer doc = docs.remove(id);
+        if (doc == null)
+            return;
+        ids.set(doc, null);
+        live.remove(doc);
+        if (freeCnt == free.length)
+            free = Arrays.copyOf(free, free.length * 2);
+        free[freeCnt++] = doc;
+    }
+
+    /**
+     * @param id The resource identifier
+     * @return The document number or -1 if the id has none
+     */
+    public int getDoc(String id) {
+        Integer doc = docs.get(id);
+        return doc == null ? -1 : doc;
+    }
+
+    /**
+     * @return The sequence of the most recent assignment. Take this before evaluating candidates to be mapped with
+     * {@link #getId(int, long)}.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @param doc A document number
+     * @return The resource id for the document number or null if not assigned
+     */
+    public String getId(int doc) {
+        return getId(doc, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param doc      A document number from a bitmap evaluated after sequence was taken
+     * @param sequence The value of {@link #getSequence()} taken before the bitmap was evaluated
+     * @return The resource id for the document number, or null if not assigned or re-used by a later assignment
+     */
+    public String getId(int doc, long sequence) {
+        AtomicReferenceArray<Assignment> current = ids;
+        if (doc < 0 || doc >= current.length())
+            return null;
+        Assignment assignment = current.get(doc);
+        return assignment == null || assignment.sequence > sequence ? null : assignment.id;
+    }
+
+    /**
+     * @return A copy of the bitmap of all assigned document numbers
+     */
+    public synchronized DocBitmap getAll() {
+        return live.copy();
+    }
+
+    public int size() {
+        return docs.size();
+    }
+
+    /**
+     * Maps a bitmap of document numbers back to resource ids.
+     * @param bitmap The documents
+     * @return The set of resource ids
+     */
+    public Set<String> toIds(DocBitmap bitmap) {
+        return toIds(bitmap, Long.MAX_VALUE);
+    }
+
+    /**
+     * Maps a bitmap of document numbers back to resource ids, ignoring numbers re-used after sequence.
+     * @param bitmap   The documents
+     * @param sequence The value of {@link #getSequence()} taken before the bitmap was evaluated
+     * @return The set of resource ids
+     */
+    public Set<String> toIds(DocBitmap bitmap, long sequence) {
+        Set<String> res = new HashSet<>();
+        PrimitiveIterator.OfInt iter = bitmap.iterator();
+        while (iter.hasNext()) {
+            String id = getId(iter.nextInt(), sequence);
+            if (id != null)
+                res.add(id);
+        }
+        return res;
+    }
+}
@@ -18,14 +18,19 @@ package com.independentid.scim.backend.memory;
 
 import com.independentid.scim.core.err.BadFilterException;
 import com.independentid.scim.protocol.*;
-import com.independentid.scim.resource.MultiValue;
-import com.independentid.scim.resource.ScimResource;
-import com.independentid.scim.resource.StringValue;
-import com.independentid.scim.resource.Value;
+import com.independentid.scim.resource.*;
 import com.independentid.scim.schema.*;
 
 import javax.validation.constraints.NotNull;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
 
 /**
  * Provides the Memory Provider indexes for a particular container ({@link ResourceType}.
@@ -37,19 +42,50 @@ public class IndexResourceType {
     ResourceType resourceType;
     Map<String,ScimResource> resMap;
 
-     List<Attribute>
+    // Replaced (never modified in place) once constructed so that an online index change is seen atomically
+    volatile List<Attribute>
             presAttrs,
             exactAttrs,
             orderAttrs,
             substrAttrs,
-            uniqueAttrs;
-
-    Map<Attribute,Map<Integer,ValResMap>> iExact;
-    Map<Attribute,SortedMap<Value,ValResMap>> iOrder;
-    Map<Attribute,SortedMap<String,ValResMap>> iSub;
+            uniqueAttrs,
+            gramAttrs;
+
+    Map<Attribute,Map<Object,ValResMap>> iExact;
+    // Ordered and substring indexes are skip lists so that range scans (tailMap/headMap) are weakly consistent and
+    // never block writers.
+    Map<Attribute,ConcurrentNavigableMap<Value,ValResMap>> iOrder;
+    Map<Attribute,ConcurrentNavigableMap<String,ValResMap>> iSub;
     Map<Attribute,ValResMap> iPres;
+    Map<Attribute,Map<String,ValResMap>> iGram;
+
+    final DocIdMap docIds = new DocIdMap();
+
+    // Index mutators hold the read lock. An online index build holds the write lock only to start recording changes
+    // and to switch the finished index in.
+    private final ReentrantReadWriteLock buildLock = new ReentrantReadWriteLock();
+    private volatile IndexBuild build = null;
+
+    // Unique values claimed by a create or modify that has not yet been indexed, by attribute then exact key
+    private final Map<Attribute,ConcurrentHashMap<Object,String>> reserved = new ConcurrentHashMap<>();
+
+    static final int GRAM_LEN = 3;
+    static final char GRAM_START = '\u0002';  // anchors used to answer sw and ew from the trigram index
+    static final char GRAM_END = '\u0003';
 
     public IndexResourceType(@NotNull SchemaManager schemaManager, @NotNull ResourceType res, Map<String, ScimResource> containerMap, List<Attribute> indexed, List<Attribute> uniques) {
+        this(schemaManager, res, containerMap, indexed, uniques, Collections.emptyList());
+    }
+
+    /**
+     * @param schemaManager The SchemaManager
+     * @param res The ResourceType (container) being indexed
+     * @param containerMap The map of resources in the container
+     * @param indexed Attributes to be indexed (presence, exact, ordered, substring as appropriate by type)
+     * @param uniques Attributes that are unique (exact index)
+     * @param grams String attributes to receive a trigram index used to answer contains (co) filters
+     */
+    public IndexResourceType(@NotNull SchemaManager schemaManager, @NotNull ResourceType res, Map<String, ScimResource> containerMap, List<Attribute> indexed, List<Attribute> uniques, List<Attribute> grams) {
 
         resourceType = res;
         resMap = containerMap;
@@ -75,6 +111,14 @@ public class IndexResourceType {
             if (!exactAttrs.contains(attr))
                 exactAttrs.add(attr);
 
+        gramAttrs = new ArrayList<>();
+        for (Attribute attr : grams)
+            if (attr.getType().equals(Attribute.TYPE_String) && isContainerAttr(attr)) {
+                gramAttrs.add(attr);
+                if (!presAttrs.contains(attr))
+                    presAttrs.add(attr);
+            }
+
         initializeIndexMaps();
 
     }
@@ -87,6 +131,8 @@ public class IndexResourceType {
     public List<Attribute> getSubstrAttrs() { return substrAttrs; }
     public SortedMap<Value,ValResMap> getOrderIndex(Attribute attr) { return iOrder.get(attr); }
     public SortedMap<String,ValResMap> getSubstrIndex(Attribute attr) { return iSub.get(attr); }
+    public List<Attribute> getGramAttrs() { return gramAttrs; }
+    public DocIdMap getDocIds() { return docIds; }
 
     /**
      * For the attributes requested, the appropriate indexes (exact, ordered, substring etc) are set up based on attribute Type.
@@ -95,8 +141,7 @@ public class IndexResourceType {
     private void catalogAttrIndexes(Attribute[] attrs) {
         for (Attribute attr: attrs) {
             presAttrs.add(attr);
-            if (attr.getSchema().equals(resourceType.getSchema())
-                || resourceType.getSchemaExtensions().containsKey(attr.getSchema())) {
+            if (isContainerAttr(attr)) {
                 switch (attr.getType()) {
                     case Attribute.TYPE_String:
                         substrAttrs.add(attr);
@@ -119,30 +164,76 @@ public class IndexResourceType {
         }
     }
 
+    private boolean isContainerAttr(Attribute attr) {
+        return attr.getSchema().equals(resourceType.getSchema())
+                || resourceType.getSchemaExtensions().containsKey(attr.getSchema());
+    }
+
     private void initializeIndexMaps() {
-        iPres = Collections.synchronizedMap(new HashMap<>());
-        iExact = Collections.synchronizedMap(new HashMap<>());
-        iOrder = Collections.synchronizedMap(new HashMap<>());
-        iSub = Collections.synchronizedMap(new HashMap<>());
+        iPres = new ConcurrentHashMap<>();
+        iExact = new ConcurrentHashMap<>();
+        iOrder = new ConcurrentHashMap<>();
+        iSub = new ConcurrentHashMap<>();
+        iGram = new ConcurrentHashMap<>();
 
         //Set up presence
         for (Attribute attr : presAttrs)
-            iPres.put(attr,new ValResMap(new StringValue(attr,"*")));
+            iPres.put(attr,new ValResMap(new StringValue(attr,"*"), docIds));
 
         //Exact indexes
         for (Attribute attr : exactAttrs)
-            iExact.put(attr,Collections.synchronizedMap(new HashMap<>()));
+            iExact.put(attr,new ConcurrentHashMap<>());
 
         for (Attribute attr : orderAttrs)
-            iOrder.put(attr, Collections.synchronizedSortedMap(new TreeMap<>()));
+            iOrder.put(attr, new ConcurrentSkipListMap<>());
 
         for (Attribute attr : substrAttrs)
-            iSub.put(attr, Collections.synchronizedSortedMap(new TreeMap<>()));
+            iSub.put(attr, new ConcurrentSkipListMap<>());
+
+        for (Attribute attr : gramAttrs)
+            iGram.put(attr, new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Returns the key used in the exact match index for a value. String values are normalized to lower case unless the
+     * attribute is caseExact so that two keys are equal exactly when the values match per the attribute definition.
+     * @param val The value to be indexed or matched
+     * @return An object suitable for use as a hash key
+     */
+    static Object exactKey(Value val) {
+        if (val instanceof StringValue)
+            return normalize((StringValue) val);
+        if (val instanceof BinaryValue)
+            return ByteBuffer.wrap(((BinaryValue) val).getRawValue());
+        if (val instanceof ComplexValue || val instanceof MultiValue)
+            return val;
+        return val.getRawValue();
+    }
+
+    /**
+     * @param val A string value
+     * @return The raw value, lower-cased unless the attribute is caseExact.
+     */
+    static String normalize(StringValue val) {
+        String raw = val.getRawValue();
+        Attribute attr = val.getAttribute();
+        return (attr != null && attr.getCaseExact()) ? raw : raw.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Splits a string into its distinct trigrams.
+     * @param str The normalized string (including any anchor characters)
+     * @return The set of trigrams, empty if the string is shorter than 3 characters
+     */
+    static Set<String> trigrams(String str) {
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i + GRAM_LEN <= str.length(); i++)
+            grams.add(str.substring(i, i + GRAM_LEN));
+        return grams;
     }
 
     /**
-     * Checks an attribute value to see if there is a conflicting unique value. Note that this check uses a hash and thus
-     * a true does not guarantee a conflict, only a high probability of one.
+     * Checks an attribute value to see if there is a conflicting unique value.
      * @param val The Value to be checked for uniqueness conflict.  If the attribute is not classed as unique false is treturned.
      * @return True if a conflict exists
      */
@@ -151,9 +242,33 @@ public class IndexResourceType {
         if (!this.uniqueAttrs.contains(attr))
             return false;
 
-        Map<Integer, ValResMap> attrMap = iExact.get(attr);
-        int hashVal = val.hashCode();
-        return attrMap.containsKey(hashVal);
+        Map<Object, ValResMap> attrMap = iExact.get(attr);
+        if (val instanceof MultiValue) {
+            for (Value aval : ((MultiValue) val).getRawValue())
+                if (attrMap.containsKey(exactKey(aval)))
+                    return true;
+            return false;
+        }
+        return attrMap.containsKey(exactKey(val));
+    }
+
+    /**
+     * Indicates whether the candidates returned by {@link #getCandidates(Filter)} are exactly the resources
+     * matching the filter, in which case the caller does not need to re-check each candidate.
+     * @param filter The filter being evaluated
+     * @return true if the filter is answered completely by the exact match index
+     */
+    public boolean isExactMatch(Filter filter) {
+        if (!(filter instanceof AttributeFilter))
+            return false;
+        AttributeFilter afilter = (AttributeFilter) filter;
+        Attribute attr = afilter.getAttribute();
+        if (!afilter.getOperator().equals(AttributeFilter.FILTEROP_EQ)
+                || attr.getName().equals(ScimParams.ATTR_ID)
+                || !exactAttrs.contains(attr))
+            return false;
+        Value val = afilter.getValue();
+        return val != null && !(val instanceof ComplexValue) && !(val instanceof MultiValue);
     }
 
     /**
@@ -170,6 +285,90 @@ public class IndexResourceType {
         return false;
     }
 
+    /**
+     * Checks a modified resource for uniqueness conflicts. Only unique values that were added by the modification are
+     * checked; values the prior version already held are indexed under this resource and are not conflicts.
+     * @param prior The version of the resource currently indexed
+     * @param res   The modified resource
+     * @return True if a conflict exists
+     */
+    public boolean checkUniques(ScimResource prior, ScimResource res) {
+        for (Attribute attr : uniqueAttrs) {
+            Value val = res.getValue(attr);
+            if (val == null)
+                continue;
+            Map<Object, Value> oldKeys = exactKeys(valueList(prior.getValue(attr)));
+            Map<Object, ValResMap> attrMap = iExact.get(attr);
+            for (Object key : exactKeys(valueList(val)).keySet())
+                if (!oldKeys.containsKey(key) && attrMap.containsKey(key))
+                    return true;
+        }
+        return false;
+    }
+
+    /**
+     * Atomically claims the unique values a create or modification adds, then checks that no indexed resource holds
+     * them. A claim is made with putIfAbsent on the normalized value, so operations adding different values never wait
+     * on each other. The claims must be released with {@link #releaseUniques(ScimResource, ScimResource)} once the
+     * resource has been indexed (or the operation abandoned). Because a claim is only released after the value is
+     * indexed, a concurrent operation adding the same value either finds the claim or finds the indexed value.
+     * @param prior The version being replaced, or null for a create
+     * @param res   The new version of the resource
+     * @return true if the values were claimed, false (with nothing claimed) if there is a uniqueness conflict
+     */
+    public boolean reserveUniques(ScimResource prior, ScimResource res) {
+        String id = res.getId();
+        Map<Attribute,Set<Object>> taken = new HashMap<>();
+        for (Attribute attr : uniqueAttrs) {
+            Set<Object> keys = addedKeys(attr, prior, res);
+            if (keys.isEmpty())
+                continue;
+            ConcurrentHashMap<Object,String> claims = reserved.computeIfAbsent(attr, k -> new ConcurrentHashMap<>());
+            Map<Object,ValResMap> attrMap = iExact.get(attr);
+            for (Object key : keys) {
+                String holder = claims.putIfAbsent(key, id);
+                if (holder == null)
+                    taken.computeIfAbsent(attr, k -> new HashSet<>()).add(key);
+                if ((holder != null && !holder.equals(id)) || attrMap.containsKey(key)) {
+                    release(taken, id);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Releases the claims made by {@link #reserveUniques(ScimResource, ScimResource)}.
+     * @param prior The version being replaced, or null for a create
+     * @param res   The new version of the resource
+     */
+    public void releaseUniques(ScimResource prior, ScimResource res) {
+        Map<Attribute,Set<Object>> keys = new HashMap<>();
+        for (Attribute attr : uniqueAttrs)
+            keys.put(attr, addedKeys(attr, prior, res));
+        release(keys, res.getId());
+    }
+
+    private void release(Map<Attribute,Set<Object>> keys, String id) {
+        for (Map.Entry<Attribute,Set<Object>> entry : keys.entrySet()) {
+            ConcurrentHashMap<Object,String> claims = reserved.get(entry.getKey());
+            if (claims != null)
+                for (Object key : entry.getValue())
+                    claims.remove(key, id);
+        }
+    }
+
+    private Set<Object> addedKeys(Attribute attr, ScimResource prior, ScimResource res) {
+        Value val = res.getValue(attr);
+        if (val == null)
+            return Collections.emptySet();
+        Set<Object> keys = new HashSet<>(exactKeys(valueList(val)).keySet());
+        if (prior != null)
+            keys.removeAll(exactKeys(valueList(prior.getValue(attr))).keySet());
+        return keys;
+    }
+
     public boolean isAttributeIndexed(Attribute attr) {
         // Since all indexed attributes have a presence index, we can use presence to determine if an attr is indexed.
         return presAttrs.contains(attr);
@@ -182,15 +381,19 @@ public class IndexResourceType {
      * @param res The resource to be removed from the index
      */
     private void deleteId(Attribute attr, ScimResource res) {
-        String id = res.getId();
+        int id = docIds.getDoc(res.getId());
+        if (id < 0)
+            return;
         Value val = res.getValue(attr);
 
         //Remove from presence
         ValResMap vmap = iPres.get(attr);
         if (vmap != null)
-            vmap.removeId(id);
+            vmap.removeDoc(id);
+        if (val == null)
+            return;
 
-        Map<Integer, ValResMap> exact = iExact.get(attr);
+        Map<Object, ValResMap> exact = iExact.get(attr);
         Map<Value, ValResMap> order = iOrder.get(attr);
         Map<String, ValResMap> sub = iSub.get(attr);
 
@@ -203,11 +406,10 @@ public class IndexResourceType {
         //Remove from exact
         if (exact != null)
             for(Value aval : vals) {
-                ValResMap vrm = exact.get(aval.hashCode());
+                Object key = exactKey(aval);
+                ValResMap vrm = exact.get(key);
                 if (vrm != null) {
-                    vrm.removeId(id);
-                    if (vrm.size() == 0)
-                        exact.remove(aval.hashCode());
+                    removePosting(exact, key, vrm, id);
                 }
             }
 
@@ -216,12 +418,22 @@ public class IndexResourceType {
             for(Value aval : vals) {
                 ValResMap vrm = order.get(aval);
                 if (vrm != null) {
-                    vrm.removeId(id);
-                    if (vrm.size() == 0)
-                        order.remove(aval);
+                    removePosting(order, aval, vrm, id);
                 }
             }
 
+        //Remove from trigram
+        Map<String, ValResMap> gram = iGram.get(attr);
+        if (gram != null)
+            for (Value aval : vals)
+                if (aval instanceof StringValue)
+                    for (String key : trigrams(GRAM_START + normalize((StringValue) aval) + GRAM_END)) {
+                        ValResMap vrm = gram.get(key);
+                        if (vrm != null) {
+                            removePosting(gram, key, vrm, id);
+                        }
+                    }
+
         //Remove from substring
         if (sub != null)
             if (vals[0] instanceof StringValue)
@@ -229,60 +441,218 @@ public class IndexResourceType {
                 String rval = ((StringValue)aval).reverseValue();
                 ValResMap vrm = sub.get(rval);
                 if (vrm != null) {
-                    vrm.removeId(id);
-                    if (vrm.size() == 0)
-                        sub.remove(rval);
+                    removePosting(sub, rval, vrm, id);
                 }
             }
     }
 
     public void deIndexResource(ScimResource res) {
-        for (Attribute attr: res.getAttributesPresent())
-            if (isAttributeIndexed(attr))
+        buildLock.readLock().lock();
+        try {
+            IndexBuild current = build;
+            if (current != null)
+                current.log.add(new BuildEntry(res, null, docIds.getDoc(res.getId()), true));
+            // Walk all indexed attributes (including sub-attributes) so that no posting still refers to the document
+            // number once it is released for re-use.
+            for (Attribute attr: getIndexedAttrs())
                 deleteId(attr,res);
+            docIds.release(res.getId());
+        } finally {
+            buildLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return The attributes (including sub-attributes) held in any of the indexes
+     */
+    private Set<Attribute> getIndexedAttrs() {
+        Set<Attribute> attrs = new HashSet<>(presAttrs);
+        attrs.addAll(exactAttrs);
+        attrs.addAll(orderAttrs);
+        attrs.addAll(substrAttrs);
+        attrs.addAll(gramAttrs);
+        return attrs;
     }
 
-    private void addExactHash(Map<Integer,ValResMap> index,Value val, String id) {
-        int hash = val.hashCode();
-        ValResMap vrm = index.get(hash);
-        if (vrm == null) {
-            vrm = new ValResMap(val);
-            index.put(hash,vrm);
+    /**
+     * Updates the indexes for a modified resource. For each indexed attribute, the index keys of the prior and new
+     * values are compared and only postings for keys that were removed or added are changed. For example, changing the
+     * displayName of a large group does not touch its members.value postings.
+     * @param prior The version of the resource currently indexed
+     * @param res   The new version of the resource (same id)
+     */
+    public void reIndexResource(ScimResource prior, ScimResource res) {
+        buildLock.readLock().lock();
+        try {
+            int id = docIds.getDoc(prior.getId());
+            if (id < 0)
+                id = addResource(res);
+            else
+                updateResource(prior, res, id);
+            IndexBuild current = build;
+            if (current != null)
+                current.log.add(new BuildEntry(res, prior, id, false));
+        } finally {
+            buildLock.readLock().unlock();
         }
-        vrm.addId(id);
     }
 
-    private void addOrderValue(Map<Value,ValResMap> index, Value val, String id) {
-        ValResMap vrm = index.get(val);
-        if (vrm == null) {
-            vrm = new ValResMap(val);
-            index.put(val,vrm);
+    private void updateResource(ScimResource prior, ScimResource res, int id) {
+        for (Attribute attr : getIndexedAttrs()) {
+            Value oldVal = prior.getValue(attr);
+            Value newVal = res.getValue(attr);
+            if (oldVal == null && newVal == null)
+                continue;
+
+            ValResMap pres = iPres.get(attr);
+            if (pres != null) {
+                if (newVal == null)
+                    pres.removeDoc(id);
+                else if (oldVal == null)
+                    pres.addDoc(id);
+            }
+
+            List<Value> olds = valueList(oldVal), news = valueList(newVal);
+            Map<Object, ValResMap> exact = iExact.get(attr);
+            if (exact != null)
+                applyDelta(exact, exactKeys(olds), exactKeys(news), id);
+
+            // ordered keys are compared the same way as the skip list (compareTo) rather than by equals
+            Map<Value, ValResMap> order = iOrder.get(attr);
+            if (order != null)
+                applyDelta(order, orderKeys(olds), orderKeys(news), id);
+
+            Map<String, ValResMap> sub = iSub.get(attr);
+            if (sub != null)
+                applyDelta(sub, reverseKeys(olds), reverseKeys(news), id);
+
+            Map<String, ValResMap> gram = iGram.get(attr);
+            if (gram != null)
+                applyDelta(gram, gramKeys(attr, olds), gramKeys(attr, news), id);
         }
-        vrm.addId(id);
     }
 
-    private void addSubStrValue(Map<String,ValResMap> index, Value val, String id) {
-        if (val instanceof StringValue) {
-            String rval = ((StringValue) val).reverseValue();
-            ValResMap vrm = index.get(rval);
-            if (vrm == null) {
-                vrm = new ValResMap(val);
-                index.put(rval, vrm);
+    /**
+     * Removes the document from postings whose key is only in the prior keys and adds it to postings whose key is only
+     * in the new keys.
+     */
+    private <K> void applyDelta(Map<K,ValResMap> index, Map<K,Value> oldKeys, Map<K,Value> newKeys, int id) {
+        for (K key : oldKeys.keySet())
+            if (!newKeys.containsKey(key)) {
+                ValResMap vrm = index.get(key);
+                if (vrm != null)
+                    removePosting(index, key, vrm, id);
             }
-            vrm.addId(id);
+        for (Map.Entry<K,Value> entry : newKeys.entrySet())
+            if (!oldKeys.containsKey(entry.getKey()))
+                addPosting(index, entry.getKey(), entry.getValue(), id);
+    }
+
+    private static List<Value> valueList(Value val) {
+        if (val == null)
+            return Collections.emptyList();
+        if (val instanceof MultiValue)
+            return Arrays.asList(((MultiValue) val).getRawValue());
+        return Collections.singletonList(val);
+    }
+
+    private static Map<Object,Value> exactKeys(List<Value> vals) {
+        Map<Object,Value> keys = new HashMap<>();
+        for (Value val : vals)
+            if (val != null)
+                keys.put(exactKey(val), val);
+        return keys;
+    }
+
+    private static Map<Value,Value> orderKeys(List<Value> vals) {
+        Map<Value,Value> keys = new TreeMap<>();
+        for (Value val : vals)
+            if (val != null)
+                keys.put(val, val);
+        return keys;
+    }
+
+    private static Map<String,Value> reverseKeys(List<Value> vals) {
+        Map<String,Value> keys = new HashMap<>();
+        for (Value val : vals)
+            if (val instanceof StringValue)
+                keys.put(((StringValue) val).reverseValue(), val);
+        return keys;
+    }
+
+    private static Map<String,Value> gramKeys(Attribute attr, List<Value> vals) {
+        Map<String,Value> keys = new HashMap<>();
+        for (Value val : vals)
+            if (val instanceof StringValue)
+                for (String key : trigrams(GRAM_START + normalize((StringValue) val) + GRAM_END))
+                    keys.computeIfAbsent(key, k -> new StringValue(attr, k));
+        return keys;
+    }
+
+    /**
+     * Adds a document to the posting for a key, creating the posting if necessary. If the posting found was
+     * concurrently retired by {@link #removePosting}, it is unlinked and a new posting is created.
+     */
+    private <K> void addPosting(Map<K,ValResMap> index, K key, Value val, int id) {
+        while (true) {
+            ValResMap vrm = index.computeIfAbsent(key, k -> new ValResMap(val, docIds));
+            if (vrm.addDoc(id))
+                return;
+            index.remove(key, vrm);
+        }
+    }
+
+    /**
+     * Removes a document from a posting, unlinking the posting from the index once it is empty.
+     */
+    private <K> void removePosting(Map<K,ValResMap> index, K key, ValResMap vrm, int id) {
+        if (vrm.removeDoc(id) && vrm.retireIfEmpty())
+            index.remove(key, vrm);
+    }
+
+    private void addExactValue(Map<Object,ValResMap> index,Value val, int id) {
+        addPosting(index, exactKey(val), val, id);
+    }
+
+    private void addOrderValue(Map<Value,ValResMap> index, Value val, int id) {
+        addPosting(index, val, val, id);
+    }
+
+    private void addSubStrValue(Map<String,ValResMap> index, Value val, int id) {
+        if (val instanceof StringValue) {
+            addPosting(index, ((StringValue) val).reverseValue(), val, id);
         } else  // This shouldn't happen. Just here for debugging
             System.err.println("Unexpected value was not StringValue: "+val.toString());
     }
 
+    private void addGramValues(Attribute attr, Map<String,ValResMap> index, Value val, int id) {
+        if (!(val instanceof StringValue))
+            return;
+        for (String key : trigrams(GRAM_START + normalize((StringValue) val) + GRAM_END))
+            addPosting(index, key, new StringValue(attr, key), id);
+    }
+
     public void indexResource(ScimResource res) {
-        String id = res.getId();
+        buildLock.readLock().lock();
+        try {
+            int id = addResource(res);
+            IndexBuild current = build;
+            if (current != null)
+                current.log.add(new BuildEntry(res, null, id, false));
+        } finally {
+            buildLock.readLock().unlock();
+        }
+    }
+
+    private int addResource(ScimResource res) {
+        int id = docIds.assign(res.getId());
 
         // Presence Index
         for (Attribute attr : presAttrs) {
             Value val = res.getValue(attr);
             if (val != null) {
                 ValResMap vrm = iPres.get(attr);
-                vrm.addId(id);
+                vrm.addDoc(id);
             }
         }
 
@@ -290,13 +660,13 @@ public class IndexResourceType {
         for (Attribute attr : exactAttrs) {
             Value val = res.getValue(attr);
             if (val != null) {
-                Map<Integer,ValResMap> attrIndex = iExact.get(attr);
+                Map<Object,ValResMap> attrIndex = iExact.get(attr);
                 if (val instanceof MultiValue) {
                     MultiValue mval = (MultiValue) val;
                     for (Value aval : mval.getRawValue())
-                        addExactHash(attrIndex, aval, id);
+                        addExactValue(attrIndex, aval, id);
                 } else {
-                   addExactHash(attrIndex, val, id);
+                   addExactValue(attrIndex, val, id);
                 }
             }
         }
@@ -331,62 +701,356 @@ public class IndexResourceType {
             }
         }
 
+        // Trigram Index
+        for (Attribute attr : gramAttrs) {
+            Value val = res.getValue(attr);
+            if (val != null) {
+                Map<String,ValResMap> attrIndex = iGram.get(attr);
+                if (val instanceof MultiValue) {
+                    for (Value aval : ((MultiValue) val).getRawValue())
+                        addGramValues(attr, attrIndex, aval, id);
+                } else
+                    addGramValues(attr, attrIndex, val, id);
+            }
+        }
+        return id;
     }
 
-    public Set<String> notList(Set<String> source, Set<String> subtracts) {
-        Set<String> res = new HashSet<>(source);
-        for (String id : subtracts)
-            res.remove(id);
-        return res;
+    /*
+     Online index changes. An index is added by scanning the container into a separate set of index maps while writers
+     carry on against the existing indexes and queries keep using the existing plan. Every change made while the scan
+     runs is recorded. Once the scan completes, the write lock is taken: each recorded change is undone from the new
+     index (covering any version the scan may have read), the current version of each changed resource is added back,
+     and the new index is switched in.
+     */
+
+    /**
+     * The index maps for a single attribute being built.
+     */
+    private static class AttrIndex {
+        final Attribute attr;
+        final ValResMap pres;
+        Map<Object,ValResMap> exact = null;
+        ConcurrentNavigableMap<Value,ValResMap> order = null;
+        ConcurrentNavigableMap<String,ValResMap> sub = null;
+        Map<String,ValResMap> gram = null;
+
+        AttrIndex(Attribute attr, DocIdMap docIds) {
+            this.attr = attr;
+            this.pres = new ValResMap(new StringValue(attr, "*"), docIds);
+        }
     }
 
-    public Set<String> getPotentialMatches(AttributeFilter filter) throws BadFilterException {
+    private static class BuildEntry {
+        final ScimResource res;
+        final ScimResource prior;
+        final int doc;
+        final boolean removed;
+
+        BuildEntry(ScimResource res, ScimResource prior, int doc, boolean removed) {
+            this.res = res;
+            this.prior = prior;
+            this.doc = doc;
+            this.removed = removed;
+        }
+    }
+
+    private static class IndexBuild {
+        final AttrIndex index;
+        final ConcurrentLinkedQueue<BuildEntry> log = new ConcurrentLinkedQueue<>();
+        final AtomicInteger scanned = new AtomicInteger();
+        volatile int total = 0;
+
+        IndexBuild(AttrIndex index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * @param attr An attribute
+     * @return true if the attribute belongs to this container and is not already indexed
+     */
+    public boolean canAddIndex(Attribute attr) {
+        return isContainerAttr(attr) && !isAttributeIndexed(attr);
+    }
+
+    /**
+     * Builds an index for an attribute from the resources in the container and switches it in when complete. The
+     * indexes created (exact, ordered, substring) depend on the attribute type, as for indexes configured at startup.
+     * The calling thread performs the build.
+     * @param attr    The attribute to be indexed
+     * @param trigram true to also build a trigram index (String attributes only) used to answer contains filters
+     * @return true if the index was added, false if the attribute cannot be indexed or another build is in progress
+     */
+    public boolean addIndex(Attribute attr, boolean trigram) {
+        if (!canAddIndex(attr))
+            return false;
+        AttrIndex index = new AttrIndex(attr, docIds);
+        switch (attr.getType()) {
+            case Attribute.TYPE_String:
+                index.sub = new ConcurrentSkipListMap<>();
+                if (trigram)
+                    index.gram = new ConcurrentHashMap<>();
+            case Attribute.TYPE_Complex:
+            case Attribute.TYPE_Reference:
+            case Attribute.TYPE_Date:
+            case Attribute.TYPE_Integer:
+            case Attribute.TYPE_Decimal:
+                index.order = new ConcurrentSkipListMap<>();
+            case Attribute.TYPE_Boolean:
+            case Attribute.TYPE_Binary:
+                index.exact = new ConcurrentHashMap<>();
+        }
+
+        IndexBuild current = new IndexBuild(index);
+        buildLock.writeLock().lock();
+        try {
+            if (build != null)
+                return false;
+            build = current;
+        } finally {
+            buildLock.writeLock().unlock();
+        }
+
+        boolean done = false;
+        try {
+            current.total = resMap.size();
+            for (ScimResource res : resMap.values()) {
+                int doc = docIds.getDoc(res.getId());
+                if (doc >= 0)
+                    addKeys(index, res.getValue(attr), doc);
+                current.scanned.incrementAndGet();
+            }
+
+            buildLock.writeLock().lock();
+            try {
+                Map<String,BuildEntry> latest = new HashMap<>();
+                for (BuildEntry entry : current.log) {
+                    removeKeys(index, entry.res.getValue(attr), entry.doc);
+                    if (entry.prior != null)
+                        removeKeys(index, entry.prior.getValue(attr), entry.doc);
+                    latest.put(entry.res.getId(), entry);
+                }
+                for (BuildEntry entry : latest.values())
+                    if (!entry.removed)
+                        addKeys(index, entry.res.getValue(attr), docIds.getDoc(entry.res.getId()));
+                installIndex(index);
+                done = true;
+            } finally {
+                build = null;
+                buildLock.writeLock().unlock();
+            }
+        } finally {
+            if (!done)
+                build = null;
+        }
+        return true;
+    }
+
+    /**
+     * Removes an attribute's indexes. Indexes of common attributes and of unique attributes (needed to check
+     * uniqueness) cannot be dropped.
+     * @param attr The indexed attribute
+     * @return true if the indexes were removed
+     */
+    public boolean dropIndex(Attribute attr) {
+        if (!isAttributeIndexed(attr) || uniqueAttrs.contains(attr)
+                || attr.getSchema().equals(ScimParams.SCHEMA_SCHEMA_Common))
+            return false;
+        buildLock.writeLock().lock();
+        try {
+            presAttrs = without(presAttrs, attr);
+            exactAttrs = without(exactAttrs, attr);
+            orderAttrs = without(orderAttrs, attr);
+            substrAttrs = without(substrAttrs, attr);
+            gramAttrs = without(gramAttrs, attr);
+            iPres.remove(attr);
+            iExact.remove(attr);
+            iOrder.remove(attr);
+            iSub.remove(attr);
+            iGram.remove(attr);
+        } finally {
+            buildLock.writeLock().unlock();
+        }
+        return true;
+    }
+
+    /**
+     * @return The percentage of the container scanned by the index build in progress, or 100 if there is none
+     */
+    public int getBuildProgress() {
+        IndexBuild current = build;
+        if (current == null || current.total == 0)
+            return 100;
+        return Math.min(100, current.scanned.get() * 100 / current.total);
+    }
+
+    private void installIndex(AttrIndex index) {
+        Attribute attr = index.attr;
+        // maps before lists so a reader that sees the attribute listed finds its index
+        iPres.put(attr, index.pres);
+        if (index.exact != null)
+            iExact.put(attr, index.exact);
+        if (index.order != null)
+            iOrder.put(attr, index.order);
+        if (index.sub != null)
+            iSub.put(attr, index.sub);
+        if (index.gram != null)
+            iGram.put(attr, index.gram);
+
+        if (index.exact != null)
+            exactAttrs = with(exactAttrs, attr);
+        if (index.order != null)
+            orderAttrs = with(orderAttrs, attr);
+        if (index.sub != null)
+            substrAttrs = with(substrAttrs, attr);
+        if (index.gram != null)
+            gramAttrs = with(gramAttrs, attr);
+        presAttrs = with(presAttrs, attr);
+    }
+
+    private static List<Attribute> with(List<Attribute> attrs, Attribute attr) {
+        List<Attribute> copy = new ArrayList<>(attrs);
+        copy.add(attr);
+        return copy;
+    }
+
+    private static List<Attribute> without(List<Attribute> attrs, Attribute attr) {
+        List<Attribute> copy = new ArrayList<>(attrs);
+        copy.remove(attr);
+        return copy;
+    }
+
+    private void addKeys(AttrIndex index, Value val, int doc) {
+        List<Value> vals = valueList(val);
+        if (vals.isEmpty() || doc < 0)
+            return;
+        index.pres.addDoc(doc);
+        if (index.exact != null)
+            for (Map.Entry<Object,Value> entry : exactKeys(vals).entrySet())
+                addPosting(index.exact, entry.getKey(), entry.getValue(), doc);
+        if (index.order != null)
+            for (Map.Entry<Value,Value> entry : orderKeys(vals).entrySet())
+                addPosting(index.order, entry.getKey(), entry.getValue(), doc);
+        if (index.sub != null)
+            for (Map.Entry<String,Value> entry : reverseKeys(vals).entrySet())
+                addPosting(index.sub, entry.getKey(), entry.getValue(), doc);
+        if (index.gram != null)
+            for (Map.Entry<String,Value> entry : gramKeys(index.attr, vals).entrySet())
+                addPosting(index.gram, entry.getKey(), entry.getValue(), doc);
+    }
+
+    private void removeKeys(AttrIndex index, Value val, int doc) {
+        List<Value> vals = valueList(val);
+        if (vals.isEmpty() || doc < 0)
+            return;
+        index.pres.removeDoc(doc);
+        if (index.exact != null)
+            removeKeys(index.exact, exactKeys(vals).keySet(), doc);
+        if (index.order != null)
+            removeKeys(index.order, orderKeys(vals).keySet(), doc);
+        if (index.sub != null)
+            removeKeys(index.sub, reverseKeys(vals).keySet(), doc);
+        if (index.gram != null)
+            removeKeys(index.gram, gramKeys(index.attr, vals).keySet(), doc);
+    }
+
+    private <K> void removeKeys(Map<K,ValResMap> map, Set<K> keys, int doc) {
+        for (K key : keys) {
+            ValResMap vrm = map.get(key);
+            if (vrm != null)
+                removePosting(map, key, vrm, doc);
+        }
+    }
+
+    /**
+     * @param attr The sortBy attribute
+     * @return true if results can be returned in attribute order by walking its ordered index
+     */
+    public boolean isSortIndexed(Attribute attr) {
+        // a multi-valued attribute has an index entry per value so a resource would appear more than once
+        return orderAttrs.contains(attr) && !attr.isMultiValued() && presAttrs.contains(attr);
+    }
+
+    /**
+     * Returns candidate documents grouped in the order of an attribute's ordered index. Groups are produced lazily so
+     * a caller that stops after one page does not visit the rest of the index. Documents without a value for the
+     * attribute come last when ascending and first when descending (matching the sort in ListResponse).
+     * @param attr     An attribute for which {@link #isSortIndexed(Attribute)} is true
+     * @param descend  true to walk the index in descending order
+     * @param candidates The documents to be returned
+     * @return An iterator of non-empty document groups in sort order
+     */
+    public Iterator<DocBitmap> getSortedCandidates(Attribute attr, boolean descend, DocBitmap candidates) {
+        ConcurrentNavigableMap<Value,ValResMap> map = iOrder.get(attr);
+        Stream<DocBitmap> groups = (descend ? map.descendingMap() : map).values().stream()
+                .map(vrm -> vrm.and(candidates));
+        Stream<DocBitmap> missing = Stream.of(iPres.get(attr)).map(vrm -> vrm.andNot(candidates));
+        groups = descend ? Stream.concat(missing, groups) : Stream.concat(groups, missing);
+        return groups.filter(docs -> !docs.isEmpty()).iterator();
+    }
+
+    /**
+     * Returns the candidate documents for an attribute filter clause.
+     * @param filter The attribute filter clause
+     * @return A bitmap of candidate documents (a new bitmap that may be modified by the caller)
+     */
+    public DocBitmap getCandidates(AttributeFilter filter) throws BadFilterException {
         Attribute attr = filter.getAttribute();
-        Set<String> res = new HashSet<>();
+        DocBitmap res = new DocBitmap();
 
         if (!isAttributeIndexed(attr) && !attr.getName().equals(ScimParams.ATTR_ID))
-            return new HashSet<>(resMap.keySet());  // return all entities if not indexed
+            return docIds.getAll();  // return all entities if not indexed
 
         switch (filter.getOperator()) {
             case AttributeFilter.FILTEROP_PRESENCE:
                 if(presAttrs.contains(attr)) {
                     ValResMap vrm = iPres.get(attr);
-                    res.addAll(vrm.getIds());
+                    vrm.orInto(res);
                     return res;
                 }
                 break;
 
             case AttributeFilter.FILTEROP_EQ:
                 if (attr.getName().equals(ScimParams.ATTR_ID)) {
-                    res.add(filter.asString());
-                    break;
+                    int doc = docIds.getDoc(filter.asString());
+                    if (doc >= 0)
+                        res.add(doc);
+                    return res;
                 }
                 if(exactAttrs.contains(attr)) {
-                    Map<Integer,ValResMap> map = iExact.get(attr);
-                    ValResMap vrm = map.get(filter.getValue().hashCode());
-                    return (vrm == null) ? res : vrm.getIds();
+                    Map<Object,ValResMap> map = iExact.get(attr);
+                    ValResMap vrm = map.get(exactKey(filter.getValue()));
+                    if (vrm != null)
+                        vrm.orInto(res);
+                    return res;
                 }
                 break;
 
             case AttributeFilter.FILTEROP_NE:
                 if(exactAttrs.contains(attr)) {
-                    Map<Integer,ValResMap> map = iExact.get(attr);
-                    ValResMap vrm = map.get(filter.getValue().hashCode());
+                    Map<Object,ValResMap> map = iExact.get(attr);
+                    ValResMap vrm = map.get(exactKey(filter.getValue()));
                     if (vrm == null)
                         break;  // return everythign
-                    return notList(resMap.keySet(),vrm.getIds());
+                    return vrm.andNot(docIds.getAll());
                 }
                 break;
 
 
             case AttributeFilter.FILTEROP_CONTAINS:
+                if (gramAttrs.contains(attr) && filter.getValue() instanceof StringValue) {
+                    DocBitmap docs = getGramMatches(attr, normalize((StringValue) filter.getValue()));
+                    if (docs != null)
+                        return docs;
+                }
                 // loop through all indexed values to find matches
                 if (substrAttrs.contains(attr)) {
                     Map<Value,ValResMap> map = iOrder.get(attr);
 
-                    for(Value val : map.keySet()) {
-                        if (filter.isMatch(val))
-                           res.addAll(map.get(val).getIds());
+                    for(ValResMap vrm : map.values()) {
+                        if (filter.isMatch(vrm.getKey()))
+                           vrm.orInto(res);
                     }
                     return res;
                 }
@@ -400,12 +1064,17 @@ public class IndexResourceType {
 
                     for (ValResMap vrm : tailmap.values()) {
                         if (filter.isMatch(vrm.getKey()))
-                            res.addAll(vrm.getIds());
+                            vrm.orInto(res);
                         else
                             break;
                     }
                     return res;
                 }
+                if (gramAttrs.contains(attr) && filter.getValue() instanceof StringValue) {
+                    DocBitmap docs = getGramMatches(attr, GRAM_START + normalize((StringValue) filter.getValue()));
+                    if (docs != null)
+                        return docs;
+                }
                 break;
 
             case AttributeFilter.FILTEROP_ENDSWITH:
@@ -418,25 +1087,25 @@ public class IndexResourceType {
 
                         for (ValResMap vrm : tailmap.values()) {
                             if (filter.isMatch(vrm.getKey()))
-                                res.addAll(vrm.getIds());
+                                vrm.orInto(res);
                             else
                                 break;
                         }
                         return res;
                     }
                 }
+                if (gramAttrs.contains(attr) && filter.getValue() instanceof StringValue) {
+                    DocBitmap docs = getGramMatches(attr, normalize((StringValue) filter.getValue()) + GRAM_END);
+                    if (docs != null)
+                        return docs;
+                }
                 break;
 
             case AttributeFilter.FILTEROP_GREATER:
                 if (orderAttrs.contains(attr)) {
-                    SortedMap<Value,ValResMap> map = iOrder.get(attr);
-                    Value filterval = filter.getValue();
-                    SortedMap<Value, ValResMap> tailmap = map.tailMap(filterval);
-                    for (ValResMap vrm : tailmap.values()) {
-                        if (vrm.val.equals(filterval))
-                            continue; // tail returns great or equal
-                        res.addAll(vrm.getIds());
-                    }
+                    ConcurrentNavigableMap<Value,ValResMap> map = iOrder.get(attr);
+                    for (ValResMap vrm : map.tailMap(filter.getValue(), false).values())
+                        vrm.orInto(res);
                     return res;
                 }
                 break;
@@ -446,7 +1115,7 @@ public class IndexResourceType {
                     SortedMap<Value,ValResMap> map = iOrder.get(attr);
                     SortedMap<Value, ValResMap> tailmap = map.tailMap(filter.getValue());
                     for (ValResMap vrm : tailmap.values()) {
-                        res.addAll(vrm.getIds());
+                        vrm.orInto(res);
                     }
                     return res;
                 }
@@ -458,8 +1127,7 @@ public class IndexResourceType {
                     SortedMap<Value, ValResMap> map = iOrder.get(attr);
                     ValResMap vrm = map.get(filter.getValue());
                     if (vrm != null)
-                        res.addAll(vrm.getIds());
-                    return res;
+                        vrm.orInto(res);
                 }
                 // continue on and do the less than entries
             case AttributeFilter.FILTEROP_LESS:
@@ -468,53 +1136,298 @@ public class IndexResourceType {
                     SortedMap<Value,ValResMap> map = iOrder.get(attr);
                     SortedMap<Value, ValResMap> headmap = map.headMap(filter.getValue());
                     for (ValResMap vrm : headmap.values()) {
-                        res.addAll(vrm.getIds());
+                        vrm.orInto(res);
                     }
                     return res;
                 }
                 break;
         }
         // If no index match found, we simply return all as candidates
-        return new HashSet<>(resMap.keySet());
+        return docIds.getAll();
+    }
+
+    /**
+     * Intersects the trigram postings for a search string. The result is a candidate set that must still be checked
+     * with the filter since trigrams may occur in a different order within a value.
+     * @param attr The attribute with a trigram index
+     * @param search The normalized search string (with anchor characters for sw/ew)
+     * @return The candidate documents, or null if the search string is too short to use the index
+     */
+    private DocBitmap getGramMatches(Attribute attr, String search) {
+        Set<String> grams = trigrams(search);
+        if (grams.isEmpty())
+            return null;
+        Map<String, ValResMap> index = iGram.get(attr);
+        List<ValResMap> postings = new ArrayList<>(grams.size());
+        for (String gram : grams) {
+            ValResMap vrm = index.get(gram);
+            if (vrm == null)
+                return new DocBitmap();  // a trigram with no values means no matches
+            postings.add(vrm);
+        }
+        // Start with the smallest posting list to minimize the work in each intersection
+        postings.sort(Comparator.comparingInt(ValResMap::size));
+        DocBitmap res = postings.get(0).getDocs();
+        for (int i = 1; i < postings.size() && !res.isEmpty(); i++)
+            res = postings.get(i).and(res);
+        return res;
+    }
+
+    /**
+     * Returns the index used to answer a filter clause. Used for estimates and {@link #explain(Filter)}.
+     * @param filter The attribute filter clause
+     * @return A short name of the access path (e.g. exact, trigram) or "scan" if the clause cannot use an index.
+     */
+    String getAccessPath(AttributeFilter filter) {
+        Attribute attr = filter.getAttribute();
+        String op = filter.getOperator();
+        if (attr.getName().equals(ScimParams.ATTR_ID) && op.equals(AttributeFilter.FILTEROP_EQ))
+            return "id";
+        if (!isAttributeIndexed(attr))
+            return "scan";
+        switch (op) {
+            case AttributeFilter.FILTEROP_PRESENCE:
+                return "presence";
+            case AttributeFilter.FILTEROP_EQ:
+            case AttributeFilter.FILTEROP_NE:
+                return exactAttrs.contains(attr) ? "exact" : "scan";
+            case AttributeFilter.FILTEROP_CONTAINS:
+                if (gramAttrs.contains(attr) && filter.getValue() instanceof StringValue
+                        && filter.getValue().toString().length() >= GRAM_LEN)
+                    return "trigram";
+                return substrAttrs.contains(attr) ? "ordered-scan" : "scan";
+            case AttributeFilter.FILTEROP_STARTSWITH:
+                if (substrAttrs.contains(attr))
+                    return "ordered";
+                return gramAttrs.contains(attr) ? "trigram" : "scan";
+            case AttributeFilter.FILTEROP_ENDSWITH:
+                if (substrAttrs.contains(attr))
+                    return "substring";
+                return gramAttrs.contains(attr) ? "trigram" : "scan";
+            default:
+                return orderAttrs.contains(attr) ? "ordered" : "scan";
+        }
+    }
+
+    /**
+     * Estimates the number of candidates a filter will produce using index statistics. Exact, presence and trigram
+     * estimates come from posting list sizes. Where no statistic is available (e.g. ranges) a fixed selectivity is
+     * assumed. Unindexed clauses are estimated as the whole container.
+     * @param filter The filter to be estimated
+     * @return The estimated number of candidate resources
+     */
+    public int estimate(Filter filter) {
+        int total = resMap.size();
+        if (filter instanceof AttributeFilter) {
+            AttributeFilter afilter = (AttributeFilter) filter;
+            Attribute attr = afilter.getAttribute();
+            switch (getAccessPath(afilter)) {
+                case "id":
+                    return 1;
+                case "presence":
+                    return iPres.get(attr).size();
+                case "exact":
+                    ValResMap vrm = iExact.get(attr).get(exactKey(afilter.getValue()));
+                    int eq = vrm == null ? 0 : vrm.size();
+                    return afilter.getOperator().equals(AttributeFilter.FILTEROP_EQ) ? eq : total - eq;
+                case "trigram":
+                    int min = total;
+                    String search = normalize((StringValue) afilter.getValue());
+                    Map<String, ValResMap> index = iGram.get(attr);
+                    for (String gram : trigrams(search)) {
+                        ValResMap gvrm = index.get(gram);
+                        if (gvrm == null)
+                            return 0;
+                        min = Math.min(min, gvrm.size());
+                    }
+                    return min;
+                case "ordered":
+                case "substring":
+                    if (afilter.getOperator().equals(AttributeFilter.FILTEROP_STARTSWITH)
+                            || afilter.getOperator().equals(AttributeFilter.FILTEROP_ENDSWITH))
+                        return Math.min(total, total / 10 + 1);
+                    return Math.min(total, total / 3 + 1);
+                default:
+                    return total;
+            }
+        }
+        if (filter instanceof LogicFilter) {
+            LogicFilter lfilter = (LogicFilter) filter;
+            int e1 = estimate(lfilter.getValue1());
+            int e2 = estimate(lfilter.getValue2());
+            return lfilter.isAnd() ? Math.min(e1, e2) : Math.min(total, e1 + e2);
+        }
+        if (filter instanceof PrecedenceFilter) {
+            PrecedenceFilter pfilter = (PrecedenceFilter) filter;
+            if (pfilter.isNot())
+                return isExactMatch(pfilter.getChildFilter()) ? total - estimate(pfilter.getChildFilter()) : total;
+            return estimate(pfilter.getChildFilter());
+        }
+        if (filter instanceof ValuePathFilter) {
+            ValuePathFilter vfilter = (ValuePathFilter) filter;
+            if (!presAttrs.contains(vfilter.getAttribute()))
+                return total;
+            return estimate(vfilter.getValueFilter());
+        }
+        return total;
     }
 
-    public Set<String> getPotentialMatches(LogicFilter filter) throws BadFilterException {
-        Set<String> f1ids = getPotentialMatches(filter.getValue1());
-        Set<String> f2ids = getPotentialMatches(filter.getValue2());
-        if (filter.isAnd())
-            f1ids.removeIf(id -> !f2ids.contains(id));
+    /**
+     * Collects the terms of a conjunction, flattening nested and clauses (including parenthesized ones).
+     */
+    private void flattenAnd(Filter filter, List<Filter> terms) {
+        if (filter instanceof LogicFilter && ((LogicFilter) filter).isAnd()) {
+            flattenAnd(((LogicFilter) filter).getValue1(), terms);
+            flattenAnd(((LogicFilter) filter).getValue2(), terms);
+        } else if (filter instanceof PrecedenceFilter && !((PrecedenceFilter) filter).isNot())
+            flattenAnd(((PrecedenceFilter) filter).getChildFilter(), terms);
         else
-            f1ids.addAll(f2ids);
-        return f1ids;
+            terms.add(filter);
+    }
+
+    /**
+     * Selects the term of a conjunction with the lowest estimated cardinality.
+     * @param terms The flattened terms of the conjunction
+     * @param estimates Receives the estimate for each term
+     * @return The index of the most selective term
+     */
+    private int selectDriver(List<Filter> terms, int[] estimates) {
+        int best = 0;
+        for (int i = 0; i < terms.size(); i++) {
+            estimates[i] = estimate(terms.get(i));
+            if (estimates[i] < estimates[best])
+                best = i;
+        }
+        return best;
+    }
+
+    /**
+     * For a conjunction, only the most selective term is evaluated against the indexes. The remaining terms are
+     * left to be verified by {@link Filter#isMatch} on each candidate. An empty term short-circuits the evaluation.
+     * For a disjunction, if either side cannot be narrowed by an index, the whole container is returned without
+     * evaluating the other side.
+     */
+    public DocBitmap getCandidates(LogicFilter filter) throws BadFilterException {
+        if (filter.isAnd()) {
+            List<Filter> terms = new ArrayList<>();
+            flattenAnd(filter, terms);
+            int[] estimates = new int[terms.size()];
+            int best = selectDriver(terms, estimates);
+            if (estimates[best] == 0)
+                return new DocBitmap();
+            return getCandidates(terms.get(best));
+        }
+
+        int total = resMap.size();
+        if (estimate(filter.getValue1()) >= total || estimate(filter.getValue2()) >= total)
+            return docIds.getAll();
+        DocBitmap f1docs = getCandidates(filter.getValue1());
+        f1docs.addAll(getCandidates(filter.getValue2()));
+        return f1docs;
     }
 
-    public Set<String> getPotentialMatches(PrecedenceFilter filter) throws BadFilterException {
-        Set<String> res = getPotentialMatches(filter.getChildFilter());
+    public DocBitmap getCandidates(PrecedenceFilter filter) throws BadFilterException {
         if (filter.isNot()) {
-            return notList(resMap.keySet(),res);
+            // The complement of a candidate (superset) list would drop matches. Only exact results can be negated.
+            if (!isExactMatch(filter.getChildFilter()))
+                return docIds.getAll();
+            return docIds.getAll().andNot(getCandidates(filter.getChildFilter()));
         }
-        return res;
+        return getCandidates(filter.getChildFilter());
     }
 
-    public Set<String> getPotentialMatches(ValuePathFilter filter) throws BadFilterException {
+    /**
+     * Describes how a filter will be evaluated against this container's indexes, including the estimated number of
+     * candidates at each step.
+     * @param filter The filter to be explained
+     * @return A multi-line description of the plan
+     */
+    public String explain(Filter filter) {
+        StringBuilder buf = new StringBuilder();
+        buf.append("Container: ").append(resourceType.getTypePath())
+                .append(" (").append(resMap.size()).append(" resources)\n");
+        explain(filter, buf, 1);
+        return buf.toString();
+    }
+
+    private void explain(Filter filter, StringBuilder buf, int depth) {
+        String indent = "  ".repeat(depth);
+        if (filter instanceof AttributeFilter) {
+            buf.append(indent).append(getAccessPath((AttributeFilter) filter)).append(": ").append(filter)
+                    .append(" est=").append(estimate(filter)).append('\n');
+        } else if (filter instanceof LogicFilter && ((LogicFilter) filter).isAnd()) {
+            List<Filter> terms = new ArrayList<>();
+            flattenAnd(filter, terms);
+            int[] estimates = new int[terms.size()];
+            int best = selectDriver(terms, estimates);
+            buf.append(indent).append("AND est=").append(estimates[best]);
+            if (estimates[best] == 0)
+                buf.append(" (short-circuit: empty)");
+            buf.append('\n');
+            buf.append(indent).append(" use:\n");
+            explain(terms.get(best), buf, depth + 2);
+            for (int i = 0; i < terms.size(); i++)
+                if (i != best)
+                    buf.append(indent).append(" verify: ").append(terms.get(i))
+                            .append(" est=").append(estimates[i]).append('\n');
+        } else if (filter instanceof LogicFilter) {
+            LogicFilter lfilter = (LogicFilter) filter;
+            int est = estimate(filter);
+            buf.append(indent).append("OR est=").append(est);
+            if (est >= resMap.size())
+                buf.append(" (full scan)");
+            buf.append('\n');
+            explain(lfilter.getValue1(), buf, depth + 1);
+            explain(lfilter.getValue2(), buf, depth + 1);
+        } else if (filter instanceof PrecedenceFilter) {
+            PrecedenceFilter pfilter = (PrecedenceFilter) filter;
+            buf.append(indent).append(pfilter.isNot() ? "NOT" : "()").append(" est=").append(estimate(filter));
+            if (pfilter.isNot() && !isExactMatch(pfilter.getChildFilter()))
+                buf.append(" (full scan)");
+            buf.append('\n');
+            explain(pfilter.getChildFilter(), buf, depth + 1);
+        } else if (filter instanceof ValuePathFilter) {
+            ValuePathFilter vfilter = (ValuePathFilter) filter;
+            buf.append(indent).append("valuePath ").append(vfilter.getAttributeName()).append(" est=")
+                    .append(estimate(filter)).append('\n');
+            explain(vfilter.getValueFilter(), buf, depth + 1);
+        }
+    }
+
+    public DocBitmap getCandidates(ValuePathFilter filter) throws BadFilterException {
         Attribute attr = filter.getAttribute();
         if (!presAttrs.contains(attr))
-            return new HashSet<>(resMap.keySet());
+            return docIds.getAll();
         // TODO not sure if this will work!
-        return getPotentialMatches(filter.getValueFilter());
+        return getCandidates(filter.getValueFilter());
     }
 
-    public Set<String> getPotentialMatches(Filter filter) throws BadFilterException {
+    /**
+     * Evaluates a filter against the indexes returning candidate documents. Use {@link DocIdMap#getId(int, long)},
+     * with the sequence taken before the call, to map a candidate back to its resource.
+     * @param filter The search filter
+     * @return A bitmap of candidate documents
+     */
+    public DocBitmap getCandidates(Filter filter) throws BadFilterException {
         if (filter instanceof AttributeFilter)
-            return getPotentialMatches((AttributeFilter) filter);
+            return getCandidates((AttributeFilter) filter);
         if (filter instanceof LogicFilter)
-            return getPotentialMatches((LogicFilter) filter);
+            return getCandidates((LogicFilter) filter);
         if (filter instanceof PrecedenceFilter)
-            return getPotentialMatches((PrecedenceFilter) filter);
+            return getCandidates((PrecedenceFilter) filter);
         if (filter instanceof ValuePathFilter)
-            return getPotentialMatches((ValuePathFilter) filter);
+            return getCandidates((ValuePathFilter) filter);
+
+        return new DocBitmap();
+    }
 
-        return new HashSet<>();
+    /**
+     * @param filter The search filter
+     * @return The set of candidate resource ids
+     */
+    public Set<String> getPotentialMatches(Filter filter) throws BadFilterException {
+        long sequence = docIds.getSequence();
+        return docIds.toIds(getCandidates(filter), sequence);
     }
 
 }
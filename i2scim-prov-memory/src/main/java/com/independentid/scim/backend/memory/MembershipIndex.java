@@ -0,0 +1,95 @@
+/*
+ * Copyright 2021.  Independent Identity Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.independentid.scim.backend.memory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maintains a reverse index from a member id to the ids of the groups that list it in members.value. Updates are
+ * applied as a difference against the group's previous member list. Lookups do not lock.
+ */
+public class MembershipIndex {
+    private final Map<String, Set<String>> memberGroups = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> groupMembers = new ConcurrentHashMap<>();
+
+    /**
+     * Replaces the members recorded for a group.
+     * @param groupId The group identifier
+     * @param members The current member ids of the group
+     */
+    public synchronized void update(String groupId, Set<String> members) {
+        Set<String> current = new HashSet<>(members);
+        Set<String> old = groupMembers.put(groupId, current);
+        if (old != null)
+            for (String member : old)
+                if (!current.contains(member))
+                    unlink(member, groupId);
+        for (String member : current)
+            if (old == null || !old.contains(member))
+                memberGroups.computeIfAbsent(member, k -> ConcurrentHashMap.newKeySet()).add(groupId);
+    }
+
+    /**
+     * Removes a deleted group from the index.
+     * @param groupId The group identifier
+     */
+    public synchronized void remove(String groupId) {
+        Set<String> old = groupMembers.remove(groupId);
+        if (old != null)
+            for (String member : old)
+                unlink(member, groupId);
+    }
+
+    private void unlink(String member, String groupId) {
+        Set<String> groups = memberGroups.get(member);
+        if (groups != null) {
+            groups.remove(groupId);
+            if (groups.isEmpty())
+                memberGroups.remove(member);
+        }
+    }
+
+    /**
+     * @param memberId A member id
+     * @return The ids of groups listing the member directly
+     */
+    public Set<String> getGroups(String memberId) {
+        Set<String> groups = memberGroups.get(memberId);
+        return groups == null ? Collections.emptySet() : new HashSet<>(groups);
+    }
+
+    /**
+     * Walks group nesting upward from the member's direct groups.
+     * @param memberId A member id
+     * @return The ids of groups containing the member only through nested groups (direct groups are excluded)
+     */
+    public Set<String> getIndirectGroups(String memberId) {
+        Set<String> direct = getGroups(memberId);
+        Set<String> visited = new HashSet<>(direct);
+        Set<String> indirect = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>(direct);
+        while (!pending.isEmpty()) {
+            for (String parent : getGroups(pending.pop()))
+                if (visited.add(parent)) {  // guards against membership cycles
+                    indirect.add(parent);
+                    pending.push(parent);
+                }
+        }
+        return indirect;
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright 2021.  Independent Identity Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.independentid.scim.backend.memory;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.independentid.scim.core.err.ScimException;
+import com.independentid.scim.resource.ScimResource;
+import com.independentid.scim.serializer.JsonUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * MemoryJournal is an append-only write-ahead log used by {@link MemoryProvider} to make each individual change
+ * durable without re-writing the entire data file. Each create, put, patch, or delete appends a single compact JSON
+ * record (one per line) to the current segment file. Segments are rolled when they exceed the configured size or when
+ * a compaction (full snapshot) begins. Once a snapshot has been written, all segments that pre-date it are removed.
+ * <p>Because put records contain the complete resource and delete records are keyed by id, replaying a segment that
+ * overlaps a snapshot is idempotent.</p>
+ */
+public class MemoryJournal {
+    private static final Logger logger = LoggerFactory.getLogger(MemoryJournal.class);
+
+    public static final String JOURNAL_DIR = "journal";
+    public static final String SEGMENT_PREFIX = "segment-";
+    public static final String SEGMENT_SUFFIX = ".log";
+
+    public static final String REC_OP = "op";
+    public static final String REC_ID = "id";
+    public static final String REC_CONTAINER = "container";
+    public static final String REC_DATA = "data";
+    public static final String OP_PUT = "put";
+    public static final String OP_DELETE = "del";
+
+    private final File journalDir;
+    private final long maxSegmentBytes;
+    private final int syncMillis;
+
+    private volatile FileChannel channel = null;
+    private long segmentSeq = 0;
+    private long segmentSize = 0;
+
+    // Group commit state. writtenPos counts all bytes appended over the life of the journal, durablePos counts bytes
+    // known to have been forced to disk.
+    private volatile long writtenPos = 0;
+    private long durablePos = 0;
+    private final Object syncLock = new Object();
+
+    /**
+     * Interface used to apply journal records to the provider during recovery.
+     */
+    public interface IReplayHandler {
+        void replayPut(JsonNode resourceNode) throws ScimException, ParseException;
+
+        void replayDelete(String container, String id);
+    }
+
+    /**
+     * @param storeDir        The memory provider data directory. Segments are kept in a "journal" sub-directory.
+     * @param maxSegmentBytes The size in bytes after which a new segment is started.
+     * @param syncMillis      When 0, every append waits until it has been forced to disk (concurrent writers share a
+     *                        single fsync). When greater than 0, the journal is forced to disk in the background every
+     *                        syncMillis milliseconds (see {@link #sync()}). When less than 0, fsync is left to the OS.
+     */
+    public MemoryJournal(File storeDir, long maxSegmentBytes, int syncMillis) {
+        this.journalDir = new File(storeDir, JOURNAL_DIR);
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.syncMillis = syncMillis;
+    }
+
+    public File getJournalDir() {
+        return journalDir;
+    }
+
+    /**
+     * Opens a new segment for writing. Any existing segments are left in place so that they may be replayed (see
+     * {@link #replay(IReplayHandler)}) prior to opening.
+     * @throws IOException if the journal directory or segment could not be created
+     */
+    public synchronized void open() throws IOException {
+        if (!journalDir.exists() && !journalDir.mkdirs())
+            throw new IOException("Unable to create journal directory: " + journalDir);
+        List<File> segments = listSegments();
+        if (!segments.isEmpty())
+            segmentSeq = parseSeq(segments.get(segments.size() - 1));
+        startSegment();
+    }
+
+    private void startSegment() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+        }
+        segmentSeq++;
+        File segFile = new File(journalDir, segmentName(segmentSeq));
+        channel = FileChannel.open(segFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentSize = channel.size();
+        logger.debug("\tStarted journal segment: " + segFile);
+    }
+
+    private static String segmentName(long seq) {
+        return String.format("%s%012d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX);
+    }
+
+    private static long parseSeq(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * @return The list of segment files in ascending sequence order.
+     */
+    public List<File> listSegments() {
+        File[] files = journalDir.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        List<File> segments = new ArrayList<>();
+        if (files == null)
+            return segments;
+        segments.addAll(Arrays.asList(files));
+        segments.sort((f1, f2) -> Long.compare(parseSeq(f1), parseSeq(f2)));
+        return segments;
+    }
+
+    /**
+     * Appends a record indicating the resource was created or replaced.
+     * @param res The ScimResource in its final (stored) form.
+     * @throws IOException if the record could not be written
+     */
+    public void appendPut(ScimResource res) throws IOException {
+        appendPut(res, false);
+    }
+
+    /**
+     * Appends a record indicating the resource was created or replaced.
+     * @param res       The ScimResource in its final (stored) form.
+     * @param deferSync When true, the record is not forced to disk until {@link #commit()} is called.
+     * @throws IOException if the record could not be written
+     */
+    public void appendPut(ScimResource res, boolean deferSync) throws IOException {
+        StringWriter writer = new StringWriter();
+        JsonGenerator gen = JsonUtil.getGenerator(writer, true);
+        gen.writeStartObject();
+        gen.writeStringField(REC_OP, OP_PUT);
+        gen.writeFieldName(REC_DATA);
+        try {
+            res.serialize(gen, null, false);
+        } catch (ScimException e) {
+            throw new IOException("Unable to serialize resource " + res.getId() + " for journal: " + e.getMessage(), e);
+        }
+        gen.writeEndObject();
+        gen.close();
+        append(writer.toString(), deferSync);
+    }
+
+    /**
+     * Appends a record indicating the resource was removed.
+     * @param container The resource container (e.g. Users)
+     * @param id        The identifier of the removed resource
+     * @throws IOException if the record could not be written
+     */
+    public void appendDelete(String container, String id) throws IOException {
+        appendDelete(container, id, false);
+    }
+
+    /**
+     * Appends a record indicating the resource was removed.
+     * @param container The resource container (e.g. Users)
+     * @param id        The identifier of the removed resource
+     * @param deferSync When true, the record is not forced to disk until {@link #commit()} is called.
+     * @throws IOException if the record could not be written
+     */
+    public void appendDelete(String container, String id, boolean deferSync) throws IOException {
+        StringWriter writer = new StringWriter();
+        JsonGenerator gen = JsonUtil.getGenerator(writer, true);
+        gen.writeStartObject();
+        gen.writeStringField(REC_OP, OP_DELETE);
+        gen.writeStringField(REC_CONTAINER, container);
+        gen.writeStringField(REC_ID, id);
+        gen.writeEndObject();
+        gen.close();
+        append(writer.toString(), deferSync);
+    }
+
+    private void append(String record, boolean deferSync) throws IOException {
+        byte[] bytes = (record + '\n').getBytes(StandardCharsets.UTF_8);
+        long pos;
+        synchronized (this) {
+            if (channel == null)
+                throw new IOException("Journal is not open");
+            ByteBuffer buf = ByteBuffer.wrap(bytes);
+            while (buf.hasRemaining())
+                channel.write(buf);
+            segmentSize += bytes.length;
+            writtenPos += bytes.length;
+            pos = writtenPos;
+            if (segmentSize >= maxSegmentBytes)
+                startSegment();
+        }
+        if (syncMillis == 0 && !deferSync)
+            syncTo(pos);
+    }
+
+    /**
+     * Forces all records written so far to disk, including those appended with deferred sync. Unlike
+     * {@link #sync()}, errors are returned to the caller.
+     * @throws IOException if the journal could not be forced to disk
+     */
+    public void commit() throws IOException {
+        if (syncMillis == 0)
+            syncTo(writtenPos);
+    }
+
+    /**
+     * Group commit. The first writer to arrive forces everything written so far; writers whose records were covered
+     * by that force return without issuing another fsync.
+     * @param pos The journal position that must be durable before returning.
+     */
+    private void syncTo(long pos) throws IOException {
+        synchronized (syncLock) {
+            if (durablePos >= pos)
+                return;
+            // Read the position before the channel. A segment roll forces the old channel before closing it, so if
+            // the channel read here has since been closed, everything up to target is already durable.
+            long target = writtenPos;
+            FileChannel chan = channel;
+            try {
+                if (chan != null)
+                    chan.force(false);
+            } catch (ClosedChannelException ignore) {
+            }
+            durablePos = target;
+        }
+    }
+
+    /**
+     * Forces any un-synced records to disk. Called periodically when syncMillis is greater than 0.
+     */
+    public void sync() {
+        try {
+            syncTo(writtenPos);
+        } catch (IOException e) {
+            logger.error("Error syncing memory journal: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Called at the start of a compaction. Closes the current segment and starts a new one so that all records
+     * preceding the snapshot are contained in segments with a sequence less than or equal to the returned value.
+     * @return The sequence number of the last segment that the snapshot will supersede.
+     * @throws IOException if a new segment could not be created
+     */
+    public synchronized long checkpoint() throws IOException {
+        long last = segmentSeq;
+        startSegment();
+        return last;
+    }
+
+    /**
+     * Removes all segments up to and including the checkpoint sequence. Must only be called once the snapshot
+     * started after {@link #checkpoint()} has been safely written.
+     * @param checkpointSeq The value returned by {@link #checkpoint()}
+     */
+    public void purge(long checkpointSeq) {
+        for (File segment : listSegments()) {
+            if (parseSeq(segment) <= checkpointSeq) {
+                logger.debug("\tRemoving compacted journal segment: " + segment);
+                if (!segment.delete())
+                    logger.warn("Unable to remove compacted journal segment: " + segment);
+            }
+        }
+    }
+
+    /**
+     * Replays all existing segments in order. A damaged record (e.g. a partial write at the tail of the last segment
+     * following a crash) is logged and skipped.
+     * @param handler The handler that applies each record
+     * @return The number of records replayed
+     * @throws IOException if a segment could not be read
+     */
+    public int replay(IReplayHandler handler) throws IOException {
+        int cnt = 0;
+        for (File segment : listSegments()) {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(segment), StandardCharsets.UTF_8))) {
+                String line;
+                int lineNum = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNum++;
+                    if (line.isEmpty())
+                        continue;
+                    try {
+                        JsonNode rec = JsonUtil.getJsonTree(line);
+                        String op = rec.get(REC_OP).asText();
+                        if (op.equals(OP_PUT))
+                            handler.replayPut(rec.get(REC_DATA));
+                        else if (op.equals(OP_DELETE))
+                            handler.replayDelete(rec.get(REC_CONTAINER).asText(), rec.get(REC_ID).asText());
+                        cnt++;
+                    } catch (IOException | ScimException | ParseException | NullPointerException e) {
+                        logger.warn("Skipping unreadable journal record " + segment.getName() + ":" + lineNum + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+        return cnt;
+    }
+
+    public synchronized void close() {
+        if (channel == null)
+            return;
+        try {
+            channel.force(false);
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Error closing memory journal: " + e.getMessage(), e);
+        }
+        channel = null;
+    }
+}
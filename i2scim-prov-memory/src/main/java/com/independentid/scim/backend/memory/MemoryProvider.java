@@ -21,8 +21,9 @@ import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.independentid.scim.backend.BackendException;
+import com.independentid.scim.backend.IBatchProvider;
+import com.independentid.scim.backend.IGroupMembership;
 import com.independentid.scim.backend.IScimProvider;
 import com.independentid.scim.core.ConfigMgr;
 import com.independentid.scim.core.err.*;
@@ -32,6 +33,8 @@ import com.independentid.scim.schema.*;
 import com.independentid.scim.serializer.JsonUtil;
 import io.quarkus.runtime.Startup;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,13 +43,29 @@ import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.Format;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * @author pjdhunt
@@ -56,7 +75,7 @@ import java.util.concurrent.TimeUnit;
 @Startup // this is required or configproperty injection won't pick up application.properties ??!!
 @Priority(50)
 @Named("MemoryProvider")
-public class MemoryProvider implements IScimProvider {
+public class MemoryProvider implements IScimProvider, IGroupMembership, IBatchProvider {
 
     private static final Logger logger = LoggerFactory.getLogger(MemoryProvider.class);
     public static final String SCHEMA_JSON = "schema.json";
@@ -70,11 +89,14 @@ public class MemoryProvider implements IScimProvider {
     public final static String DEFAULT_PERSIST_DIR = "./scimdata";
     public final static String PARAM_PERSIST_FILE = "scim.prov.memory.persist.file";
     public final static String DEFAULT_FILE = "scimdata.json";
+    public final static String FORMAT_BINARY = "binary";
+    public final static String FORMAT_JSON = "json";
 
     protected final ConcurrentHashMap<String, ScimResource> mainMap;
     protected final HashMap<String, Map<String, ScimResource>> containerMaps;
     //protected final HashMap<Attribute,Map<Object,String>> indexes;
-    protected final List<Attribute> indexAttrs = new ArrayList<>();
+    protected final List<Attribute> indexAttrs = new CopyOnWriteArrayList<>();
+    protected final List<Attribute> gramAttrs = new CopyOnWriteArrayList<>();
 
     @Inject
     SchemaManager schemaManager;
@@ -110,10 +132,90 @@ public class MemoryProvider implements IScimProvider {
     @ConfigProperty(name = "scim.prov.memory.indexes", defaultValue = "User:userName,User:emails.value,Group:displayName")
     String[] indexCfg;
 
+    @ConfigProperty(name = "scim.prov.memory.indexes.trigram", defaultValue = "User:userName,User:displayName,Group:displayName")
+    String[] gramIndexCfg;
+
+    @ConfigProperty(name = "scim.prov.memory.journal.enable", defaultValue = "false")
+    protected boolean journalEnable;
+
+    @ConfigProperty(name = "scim.prov.memory.journal.sync.ms", defaultValue = "0")
+    protected int journalSyncMs;
+
+    @ConfigProperty(name = "scim.prov.memory.journal.segment.mb", defaultValue = "64")
+    protected int journalSegmentMb;
+
+    MemoryJournal journal = null;
+
+    // Depth of the batch open on each thread (see IBatchProvider). Journal records written within a batch are
+    // forced to disk once when the outermost batch commits. Batches have no effect unless the journal is enabled.
+    private final ThreadLocal<int[]> batchDepth = ThreadLocal.withInitial(() -> new int[1]);
+
+    @ConfigProperty(name = "scim.prov.memory.snapshot.format", defaultValue = "binary")
+    protected String snapshotFormat;
+
+    @ConfigProperty(name = "scim.prov.memory.load.threads", defaultValue = "0")
+    protected int loadThreads;
+
+    @ConfigProperty(name = "scim.prov.memory.groups.transitive", defaultValue = "false")
+    protected boolean transitiveGroups;
+
+    @ConfigProperty(name = "scim.prov.memory.txn.retention.hours", defaultValue = "0")
+    protected int txnRetentionHours;
+
+    @ConfigProperty(name = "scim.prov.memory.txn.retention.max", defaultValue = "0")
+    protected int txnRetentionMax;
+
+    @ConfigProperty(name = "scim.prov.memory.revisions.max", defaultValue = "0")
+    protected int revisionsMax;
+
+    @ConfigProperty(name = "scim.prov.memory.compact.mins", defaultValue = "15")
+    protected int compactMins;
+
+    @ConfigProperty(name = "scim.prov.memory.search.threads", defaultValue = "0")
+    protected int searchThreads;
+
+    @ConfigProperty(name = "scim.prov.memory.search.parallel.min", defaultValue = "4096")
+    protected int searchParallelMin;
+
+    // Verifies search candidates in parallel (see VerifyTask). Null when searches run on the calling thread only.
+    ForkJoinPool searchPool = null;
+    private static final int VERIFY_CHUNK = 1024;
+
+    // Runs index builds started by addIndex, one thread per container being built
+    ExecutorService indexPool = null;
+
+    MembershipIndex membership = new MembershipIndex();
+    Attribute memberValueAttr = null;
+
+    File snapFile = null;
+
+    /*
+     Snapshot capture. Writers hold the read lock only while changing mainMap so that a snapshot can begin at a point
+     where no change is part way through. While a capture is in progress, the first writer to change an id saves the
+     prior value in snapshotOverlay (copy-on-write) so that the capture sees the map as it was when it began.
+     */
+    private final ReentrantReadWriteLock epochLock = new ReentrantReadWriteLock();
+    private volatile ConcurrentHashMap<String, Object> snapshotOverlay = null;
+    private static final Object SNAP_ABSENT = new Object();  // id did not exist when the snapshot began
+    private static final Object SNAP_CAPTURED = new Object();  // id has already been captured by the snapshot
+    private final Object snapshotLock = new Object();
+
+    /*
+     Modifications of a resource (put, patch, delete and revision trimming) hold the lock of its id while they read the
+     stored version, journal the change and swap in the new version. Each modification is therefore applied to, and its
+     index delta computed against, the version it replaces. Locks are striped by id.
+     */
+    private static final int MODIFY_LOCKS = 256;
+    private final Object[] modifyLocks = new Object[MODIFY_LOCKS];
+
+    private volatile long snapshotMillis = 0;
+    private volatile long snapshotBytes = 0;
+    private volatile int snapshotCnt = 0;
+
 
     Timer timer = null;
 
-    boolean isModified = false;
+    volatile boolean isModified = false;
 
     Map<String, ResourceType> types = new HashMap<>();
     Map<String, IndexResourceType> containerIndexes = new HashMap<>();
@@ -122,6 +224,8 @@ public class MemoryProvider implements IScimProvider {
      *
      */
     public MemoryProvider() {
+        for (int i = 0; i < MODIFY_LOCKS; i++)
+            modifyLocks[i] = new Object();
         this.mainMap = new ConcurrentHashMap<>();
         this.containerMaps = new HashMap<>();  // Concurrency issues are not expected in the map of maps (just the internal maps)
         //this.indexes = new HashMap<>();
@@ -140,8 +244,6 @@ public class MemoryProvider implements IScimProvider {
     @Override
     //@PostConstruct  We do not want auto start..backendhandler will call this.
     public synchronized void init() {
-        JsonFactory jsonFactory = new JsonFactory();
-
         //this.configMgr = configMgr;
         if (this.ready)
             return;  // run only once!
@@ -164,61 +266,70 @@ public class MemoryProvider implements IScimProvider {
         logger.info("\tUsing storage file: " + dataFile.toString());
         logger.info("\tBackups refreshing every " + backupMins + " minutes to a max of " + maxBackups + " files.");
 
-        if (!dataFile.exists()) {
-            logger.warn("\tMemory store file not found. Initializing new file: " + dataFile.toString());
+        snapFile = new File(storeDir, snapshotFileName());
+        boolean binary = isBinarySnapshot();
+        File source;
+        if (binary)
+            source = snapFile.exists() ? snapFile : dataFile;
+        else
+            source = dataFile.exists() ? dataFile : snapFile;
+
+        boolean converted = false;
+        if (!source.exists() || source.length() == 0) {
+            logger.warn("\tMemory store file not found or empty. Initializing new file: " + (binary ? snapFile : dataFile));
             initializeIndexes();
             syncConfig(schemaManager.getSchemas(), schemaManager.getResourceTypes());
 
         } else {
-            ObjectNode node;
-
+            initializeIndexes();
+            // load the existing data
             try {
-                JsonParser parser = null;
-                ObjectMapper mapper = JsonUtil.getMapper();
-                if (dataFile.exists()) {
-                    InputStream stream = new FileInputStream(dataFile);
-                    parser = jsonFactory.createParser(stream);
-                }
+                schemaManager.loadConfigFromProvider();
+            } catch (ScimException e) {
+                logger.error("Error loading schema from MemoryProvider. Using default schema.");
+            }
+            try {
+                long start = System.currentTimeMillis();
+                int cnt;
+                if (source == snapFile)
+                    cnt = loadSnapshot(snapFile);
+                else
+                    cnt = loadJson(dataFile);
+                logger.info("\tLoaded " + cnt + " resources from " + source.getName()
+                        + " in " + (System.currentTimeMillis() - start) + "ms.");
+                // When the store was imported from the other format, write it out in the configured format.
+                converted = (source == snapFile) != binary;
+            } catch (IOException e) {
+                logger.error("Unexpected IO error reading SCIM database: " + e.getMessage(), e);
+                this.ready = false;
+                return;
+            }
+        }
+        isModified = converted;
 
-                if (parser == null || parser.isClosed()) {  // file exists but was empty
-                    logger.warn("\tMemory store file empty/invalid. Initializing new file: " + dataFile.toString());
-                    initializeIndexes();
-                    syncConfig(schemaManager.getSchemas(), schemaManager.getResourceTypes());
+        timer = new Timer("MemBackupTimer");
 
-                } else {
-                    initializeIndexes();
-                    // load the existing data
-                    try {
-                        schemaManager.loadConfigFromProvider();
-                    } catch (ScimException e) {
-                        logger.error("Error loading schema from MemoryProvider. Using default schema.");
-                    }
-                    int cnt = 0;
-                    logger.debug("\tLoading data file");
-                    if (parser.nextToken() == JsonToken.START_ARRAY) {
-                        while (parser.nextToken() != JsonToken.END_ARRAY) {
-                            String name = parser.currentName();
-                            node = mapper.readTree(parser);
-                            try {
-                                parseResource(node);
-                                cnt++;
-                            } catch (ScimException | ParseException e) {
-                                logger.error("Unexpected error parsing SCIM JSON database: " + e.getMessage(), e);
-                                this.ready = false;
-                            }
-                        }
-                        logger.info("\tLoaded " + cnt + " resources.");
-                    }
-                }
+        int threads = searchThreads > 0 ? searchThreads : Runtime.getRuntime().availableProcessors();
+        if (threads > 1) {
+            logger.debug("\tSearch candidates verified using " + threads + " threads");
+            searchPool = new ForkJoinPool(threads);
+        }
+        indexPool = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "MemIndexBuild");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (journalEnable) {
+            try {
+                initJournal();
             } catch (IOException e) {
-                logger.error("Unexpected IO error reading SCIM JSON database: " + e.getMessage(), e);
+                logger.error("Unexpected IO error initializing SCIM memory journal: " + e.getMessage(), e);
                 this.ready = false;
                 return;
             }
         }
-        isModified = false;
 
-        timer = new Timer("MemBackupTimer");
         if (backupMins == 0)
             logger.warn("\tPeriodic backups to disk *disabled* due to " + PARAM_BACKUP_MINS + " set to 0.");
         else {
@@ -229,11 +340,156 @@ public class MemoryProvider implements IScimProvider {
             long delay = milliTime.convert(backupMins, TimeUnit.MINUTES);
             timer.scheduleAtFixedRate(backupTask, delay, delay);
         }
+
+        if (compactMins > 0 && (txnRetentionHours > 0 || txnRetentionMax > 0 || revisionsMax > 0)) {
+            logger.debug("\tScheduling transaction compaction every " + compactMins + " mins.");
+            long delay = TimeUnit.MILLISECONDS.convert(compactMins, TimeUnit.MINUTES);
+            timer.scheduleAtFixedRate(new CompactTask(this), delay, delay);
+        }
         this.ready = true;
         logger.info("======SCIM Memory Provider initialized ======");
 
     }
 
+    /**
+     * Replays any journal segments written since the last snapshot and opens a new segment for writing. When journaling
+     * is enabled, the periodic backup becomes a compaction: a full snapshot is written and superseded segments are
+     * removed.
+     * @throws IOException if the journal could not be read or opened.
+     */
+    private void initJournal() throws IOException {
+        journal = new MemoryJournal(new File(storeDir), (long) journalSegmentMb * 1024 * 1024, journalSyncMs);
+        logger.info("\tJournaling enabled in: " + journal.getJournalDir() + " (sync ms: " + journalSyncMs + ")");
+
+        int cnt = journal.replay(new MemoryJournal.IReplayHandler() {
+            @Override
+            public void replayPut(JsonNode resourceNode) throws ScimException, ParseException {
+                ScimResource res = buildResource(resourceNode);
+                storeResource(res, mainMap.get(res.getId()));
+            }
+
+            @Override
+            public void replayDelete(String container, String id) {
+                removeResource(container, id);
+            }
+        });
+        if (cnt > 0) {
+            logger.info("\tReplayed " + cnt + " journal records.");
+            isModified = true;  // the snapshot on disk does not contain the replayed changes
+        }
+        journal.open();
+
+        if (journalSyncMs > 0) {
+            MemoryJournal jnl = journal;
+            timer.scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run() {
+                    jnl.sync();
+                }
+            }, journalSyncMs, journalSyncMs);
+        }
+    }
+
+    /**
+     * @return true if snapshots are written in the binary format (see {@link MemorySnapshot}). When false, the data
+     * file is written as a JSON array which may be used for import/export.
+     */
+    public boolean isBinarySnapshot() {
+        return !FORMAT_JSON.equalsIgnoreCase(snapshotFormat);
+    }
+
+    /**
+     * @return The binary snapshot file name, which is the configured data file name with a ".snap" extension.
+     */
+    private String snapshotFileName() {
+        int dot = storeFile.lastIndexOf('.');
+        String base = dot > 0 ? storeFile.substring(0, dot) : storeFile;
+        return base + MemorySnapshot.SNAPSHOT_EXT;
+    }
+
+    /**
+     * Loads a binary snapshot by memory mapping the file and parsing and indexing records in parallel.
+     * @param file The snapshot file
+     * @return The number of resources loaded
+     * @throws IOException if the file is not a valid snapshot or could not be read
+     */
+    private int loadSnapshot(File file) throws IOException {
+        int threads = loadThreads > 0 ? loadThreads : Runtime.getRuntime().availableProcessors();
+        logger.debug("\tLoading snapshot file using " + threads + " threads");
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            int cnt = MemorySnapshot.load(file, pool, resNode -> loadResource(buildResource(resNode)));
+            // Virtual attributes (e.g. groups) depend on other resources so are refreshed once all are loaded.
+            for (ScimResource res : mainMap.values())
+                res.refreshVirtualAttrs();
+            return cnt;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Loads the data file in the JSON array format (as written when format is json or by earlier versions).
+     * @param file The JSON data file
+     * @return The number of resources loaded
+     * @throws IOException if the file could not be read
+     */
+    private int loadJson(File file) throws IOException {
+        JsonFactory jsonFactory = new JsonFactory();
+        ObjectMapper mapper = JsonUtil.getMapper();
+        int cnt = 0;
+        logger.debug("\tLoading data file");
+        try (InputStream stream = new FileInputStream(file)) {
+            JsonParser parser = jsonFactory.createParser(stream);
+            if (parser.nextToken() == JsonToken.START_ARRAY) {
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    JsonNode node = mapper.readTree(parser);
+                    try {
+                        parseResource(node);
+                        cnt++;
+                    } catch (ScimException | ParseException e) {
+                        logger.error("Unexpected error parsing SCIM JSON database: " + e.getMessage(), e);
+                    }
+                }
+            }
+        }
+        return cnt;
+    }
+
+    /**
+     * Stores a resource during a parallel load. Unlike {@link #storeResource(ScimResource)} this is safe to call
+     * concurrently and does not refresh virtual attributes.
+     * @param res The ScimResource to be stored in memory
+     */
+    private void loadResource(ScimResource res) {
+        this.mainMap.put(res.getId(), res);
+        IndexResourceType index = containerIndexes.get(res.getContainer());
+        if (index != null)
+            index.indexResource(res);  // indexes are safe for concurrent writers
+        indexMembers(res);
+        Map<String, ScimResource> cmap;
+        synchronized (containerMaps) {
+            cmap = this.containerMaps.computeIfAbsent(res.getContainer(), k -> new ConcurrentHashMap<>());
+        }
+        cmap.put(res.getId(), res);
+    }
+
+    /**
+     * Appends the resource to the journal (when enabled) ahead of it being applied in memory.
+     * @param res The resource in its final form
+     * @return null if successful or journaling disabled, otherwise an error response to be returned to the client.
+     */
+    private ScimResponse journalPut(ScimResource res) {
+        if (journal == null)
+            return null;
+        try {
+            journal.appendPut(res, isBatching());
+        } catch (IOException e) {
+            return handleUnexpectedException(e);
+        }
+        return null;
+    }
+
     private void initializeIndexes() {
         for (String index : indexCfg) {
             Attribute attr = schemaManager.findAttribute(index, null);
@@ -241,11 +497,18 @@ public class MemoryProvider implements IScimProvider {
                 indexAttrs.add(attr);
 
         }
+        for (String index : gramIndexCfg) {
+            Attribute attr = schemaManager.findAttribute(index, null);
+            if (attr != null)
+                gramAttrs.add(attr);
+        }
+        membership = new MembershipIndex();
+        memberValueAttr = schemaManager.findAttribute("Group:members.value", null);
         for (ResourceType type : this.types.values()) {
             Map<String, ScimResource> map = this.containerMaps
                     .computeIfAbsent(type.getTypePath(), k -> new ConcurrentHashMap<>());
             containerIndexes.put(type.getTypePath(),
-                    new IndexResourceType(schemaManager, type, map, this.indexAttrs, schemaManager.getUniqueAttributes(type)));
+                    new IndexResourceType(schemaManager, type, map, this.indexAttrs, schemaManager.getUniqueAttributes(type), this.gramAttrs));
         }
     }
 
@@ -257,16 +520,26 @@ public class MemoryProvider implements IScimProvider {
     }
 
     /**
-     * @param res Resource to check
-     * @return true if a conflict exists
+     * Claims the unique values added by a create or modification (see {@link IndexResourceType#reserveUniques}).
+     * @param prior The stored version being replaced, or null for a create
+     * @param res   The new version of the resource
+     * @return true if the values were claimed, false if a conflict exists
      */
-    private boolean checkUniqueConflict(ScimResource res) {
+    private boolean reserveUniques(ScimResource prior, ScimResource res) {
         IndexResourceType index = containerIndexes.get(res.getContainer());
-        return index.checkUniques(res);
+        return index == null || index.reserveUniques(prior, res);
+    }
+
+    private void releaseUniques(ScimResource prior, ScimResource res) {
+        IndexResourceType index = containerIndexes.get(res.getContainer());
+        if (index != null)
+            index.releaseUniques(prior, res);
     }
 
     private void deIndexResource(ScimResource res) {
         IndexResourceType index = containerIndexes.get(res.getContainer());
+        if (index == null)
+            return;
         index.deIndexResource(res);
     }
 
@@ -278,6 +551,10 @@ public class MemoryProvider implements IScimProvider {
     }
 
     public void parseResource(JsonNode resNode) throws ScimException, ParseException {
+        storeResource(buildResource(resNode));
+    }
+
+    private ScimResource buildResource(JsonNode resNode) throws ScimException, ParseException {
         ScimResource res;
 
         JsonNode sNode = resNode.get(ScimParams.ATTR_SCHEMAS);
@@ -298,10 +575,7 @@ public class MemoryProvider implements IScimProvider {
             }
             res = new ScimResource(schemaManager, resNode, null, container);
         }
-
-
-        storeResource(res);
-
+        return res;
     }
 
     static class PersistTask extends TimerTask {
@@ -320,6 +594,22 @@ public class MemoryProvider implements IScimProvider {
         }
     }
 
+    static class CompactTask extends TimerTask {
+        MemoryProvider prov;
+
+        CompactTask(MemoryProvider handle) {
+            prov = handle;
+        }
+
+        public void run() {
+            Date cutoff = prov.getRetentionCutoff();
+            int txns = prov.compactTransactions(cutoff, prov.txnRetentionMax);
+            int revs = prov.compactRevisions(cutoff, prov.revisionsMax);
+            if (txns > 0 || revs > 0)
+                logger.debug("Compaction removed " + txns + " transaction records and trimmed revisions of " + revs + " resources.");
+        }
+    }
+
     /* (non-Javadoc)
      * @see com.independentid.scim.backend.PersistenceProvider#create(com.independentid.scim.protocol.RequestCtx, com.independentid.scim.resource.ScimResource)
      */
@@ -331,8 +621,6 @@ public class MemoryProvider implements IScimProvider {
 
         if (res.getId() == null)
             res.setId(generator.getNewIdentifier());
-        if (checkUniqueConflict(res))
-            return new ScimResponse(ScimResponse.ST_BAD_REQUEST, null, ScimResponse.ERR_TYPE_UNIQUENESS);
 
         Meta meta = res.getMeta();
         if (meta == null) {
@@ -347,6 +635,7 @@ public class MemoryProvider implements IScimProvider {
         if (!container.equals(SystemSchemas.TRANS_CONTAINER))
             try {
                 meta.addRevision(ctx, this, created);
+                meta.trimRevisions(revisionsMax, getRetentionCutoff());
             } catch (BackendException e) {
                 return handleUnexpectedException(e);
             }
@@ -359,9 +648,16 @@ public class MemoryProvider implements IScimProvider {
         if (type != null)
             meta.setResourceType(type.getName());
 
-        if (checkUniqueConflict(res))
+        if (!reserveUniques(null, res))
             return new ScimResponse(ScimResponse.ST_BAD_REQUEST, "Attribute with uniqueness conflict detected.", ScimResponse.ERR_TYPE_UNIQUENESS);
-        storeResource(res);
+        try {
+            ScimResponse jerr = journalPut(res);
+            if (jerr != null)
+                return jerr;
+            storeResource(res);
+        } finally {
+            releaseUniques(null, res);
+        }
 
         ctx.setEncodeExtensions(false);
         ResourceResponse resp = new ResourceResponse(res, ctx);
@@ -372,17 +668,125 @@ public class MemoryProvider implements IScimProvider {
         return resp;
     }
 
+    @Override
+    public void beginBatch() {
+        batchDepth.get()[0]++;
+    }
+
+    @Override
+    public void commitBatch() throws BackendException {
+        int[] depth = batchDepth.get();
+        if (depth[0] == 0 || --depth[0] > 0)
+            return;
+        batchDepth.remove();
+        if (journal != null)
+            try {
+                journal.commit();
+            } catch (IOException e) {
+                throw new BackendException("Unable to commit memory journal: " + e.getMessage(), e);
+            }
+    }
+
+    private boolean isBatching() {
+        return batchDepth.get()[0] > 0;
+    }
+
     /**
      * Stores the resource by indexing the resource adding it to the main hash set.
      * @param res The ScimResource to be stored in memory
      */
     private void storeResource(ScimResource res) {
+        storeResource(res, null);
+    }
+
+    /**
+     * Stores a new version of a resource. When the prior version is provided, the new version is only swapped in if
+     * the prior is still the stored version, and only the index postings that differ between the two versions are
+     * updated.
+     * @param res   The ScimResource to be stored in memory
+     * @param prior The version being replaced, or null if the resource is new
+     * @return false if prior was provided and is no longer the stored version, in which case nothing is changed
+     */
+    private boolean storeResource(ScimResource res, ScimResource prior) {
         res.refreshVirtualAttrs();
-        this.mainMap.put(res.getId(), res);
-        indexResource(res);
+        epochLock.readLock().lock();
+        try {
+            preserveForSnapshot(res.getId());
+            if (prior == null)
+                this.mainMap.put(res.getId(), res);
+            else {
+                boolean[] swapped = {false};
+                this.mainMap.computeIfPresent(res.getId(), (id, current) -> {
+                    if (current != prior)
+                        return current;
+                    swapped[0] = true;
+                    return res;
+                });
+                if (!swapped[0])
+                    return false;
+            }
+        } finally {
+            epochLock.readLock().unlock();
+        }
+        if (prior == null)
+            indexResource(res);
+        else {
+            IndexResourceType index = containerIndexes.get(res.getContainer());
+            if (index != null)
+                index.reIndexResource(prior, res);
+        }
+        indexMembers(res);
         Map<String, ScimResource> cmap = this.containerMaps.computeIfAbsent(res.getContainer(), k -> new ConcurrentHashMap<>());
         cmap.put(res.getId(), res);
         isModified = true;  // set memory as modified compared to disk
+        return true;
+    }
+
+    /**
+     * Updates the member to group reverse index when the resource is a Group.
+     * @param res The resource being stored
+     */
+    private void indexMembers(ScimResource res) {
+        if (!isGroup(res))
+            return;
+        Set<String> members = new HashSet<>();
+        Value val = res.getValue(memberValueAttr);
+        if (val instanceof MultiValue) {
+            for (Value member : ((MultiValue) val).getRawValue())
+                if (member != null)
+                    members.add(String.valueOf(member.getRawValue()));
+        } else if (val != null)
+            members.add(String.valueOf(val.getRawValue()));
+        membership.update(res.getId(), members);
+    }
+
+    private boolean isGroup(ScimResource res) {
+        if (memberValueAttr == null)
+            return false;
+        ResourceType type = schemaManager.getResourceTypeByPath(res.getContainer());
+        return type != null && memberValueAttr.getSchema().equals(type.getSchema());
+    }
+
+    @Override
+    public Collection<ScimResource> getDirectGroups(String memberId) {
+        return getGroupResources(membership.getGroups(memberId));
+    }
+
+    @Override
+    public Collection<ScimResource> getIndirectGroups(String memberId) {
+        if (!transitiveGroups)
+            return Collections.emptyList();
+        return getGroupResources(membership.getIndirectGroups(memberId));
+    }
+
+    private Collection<ScimResource> getGroupResources(Set<String> ids) {
+        List<ScimResource> groups = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            ScimResource group = this.mainMap.get(id);
+            if (group != null)
+                groups.add(group);
+        }
+        return groups;
     }
 
     private ScimResponse handleUnexpectedException(Exception e) {
@@ -400,6 +804,14 @@ public class MemoryProvider implements IScimProvider {
 
             Filter filter = ctx.getFilter();
 
+            // Count-only and unsorted filtered searches are answered from the index candidates
+            if (ctx.isCountOnly() || (filter != null && ctx.getSortBy() == null))
+                return getPage(ctx, filter);
+
+            ListResponse sortedPage = getSortedPage(ctx, filter);
+            if (sortedPage != null)
+                return sortedPage;
+
             ArrayList<ScimResource> results = new ArrayList<>();
             if (filter == null) {
 
@@ -408,36 +820,30 @@ public class MemoryProvider implements IScimProvider {
                     for (ScimResource res : this.mainMap.values()) {
                         if (res.getId().equals(ScimParams.SCHEMA_SCHEMA_PERSISTEDSTATE))
                             continue; // ConfigState canoot be returned externally.
-                        if (results.size() < maxResults) {
-                            res.refreshVirtualAttrs();
-                            results.add(res); // return raw copy to trigger virtual values
-                        } else
+                        if (results.size() < maxResults)
+                            results.add(res.getReadView()); // stored versions are shared, not copied
+                        else
                             break;
                     }
                 } else {
                     Map<String, ScimResource> map = this.containerMaps.get(path);
                     if (map != null)
                         for (ScimResource res : map.values()) {
-                            if (results.size() < maxResults) {
-                                res.refreshVirtualAttrs();
-                                results.add(res); // return raw copy to trigger virtual values
-                            }
+                            if (results.size() < maxResults)
+                                results.add(res.getReadView());
                         }
                 }
             } else {
                 // this method supports root base searches where path is "/"
-                Set<String> candidates = evaluateFilter(filter, ctx.getResourceContainer());
-
-                for (String id : candidates) {
-                    ScimResource candidate = this.mainMap.get(id);
-                    if (filter.isMatch(candidate)) {
-                        try {
-                            results.add(candidate.copy(null));// return raw copy to trigger virtual values and protected stored values
-                        } catch (ParseException ignore) {
-                        }
+                Map<IndexResourceType, List<ScimResource>> matches =
+                        findMatches(getSearchIndexes(ctx.getResourceContainer()), filter, maxResults + 1);
+                search:
+                for (List<ScimResource> matched : matches.values()) {
+                    for (ScimResource candidate : matched) {
+                        results.add(candidate.getReadView());
+                        if (results.size() > maxResults)
+                            break search;
                     }
-                    if (results.size() > maxResults)
-                        break;
                 }
             }
 
@@ -486,37 +892,64 @@ public class MemoryProvider implements IScimProvider {
         ScimResource res = this.mainMap.get(id);
         if (res == null) return null;
 
-        res.refreshVirtualAttrs();
-        if (Filter.checkMatch(res, ctx))
-            return res;
+        // Stored resources are immutable versions. Readers get a view with freshly calculated virtual values.
+        ScimResource view = res.getReadView();
+        if (Filter.checkMatch(view, ctx))
+            return view;
         return null;
 
     }
 
+    /**
+     * @param id The resource identifier
+     * @return The lock serializing modifications of the resource
+     */
+    private Object modifyLock(String id) {
+        return modifyLocks[id == null ? 0 : (id.hashCode() & 0x7fffffff) % MODIFY_LOCKS];
+    }
+
+    /**
+     * Returns the current stored version of the resource for modification. The version returned must not be changed,
+     * a modification is made to a copy which then replaces the stored version.
+     * @param ctx The request identifying the resource
+     * @return The stored version, or null if not found or not matched by the request filter
+     */
+    private ScimResource getStoredResource(RequestCtx ctx) throws ScimException {
+        String id = ctx.getPathId();
+        if (id == null)
+            throw new InvalidValueException("Missing resource identifier exception");
+
+        ScimResource res = this.mainMap.get(id);
+        if (res != null && Filter.checkMatch(res, ctx))
+            return res;
+        return null;
+    }
+
     /* (non-Javadoc)
      * @see com.independentid.scim.backend.PersistenceProvider#replace(com.independentid.scim.protocol.RequestCtx, com.independentid.scim.resource.ScimResource)
      */
     @Override
     public ScimResponse put(RequestCtx ctx, ScimResource replaceResource) throws ScimException {
-        ScimResource origRes = getResource(ctx);
-        if (origRes == null)
-            return new ScimResponse(ScimResponse.ST_NOTFOUND, null, null);
+        synchronized (modifyLock(ctx.getPathId())) {
+            ScimResource origRes = getStoredResource(ctx);
+            if (origRes == null)
+                return new ScimResponse(ScimResponse.ST_NOTFOUND, null, null);
 
-        if (origRes.checkModPreConditionFail(ctx))
-            return new ScimResponse(new PreconditionFailException(
-                    "Predcondition does not match"));
+            if (origRes.checkModPreConditionFail(ctx))
+                return new ScimResponse(new PreconditionFailException(
+                        "Predcondition does not match"));
 
-        ScimResource temp;
-        try {
-            temp = origRes.copy(null);
-        } catch (ParseException e) {
-            logger.error("Unexpected error creating temporary copy of " + ctx.getPath() + ", " + e.getMessage());
-            return new ScimResponse(new InternalException("Unexpected parsing error: " + e.getMessage(), e));
-        }
-        temp.replaceResAttributes(replaceResource, ctx);
-
-        return processModifyScimResponse(ctx, origRes, temp);
+            ScimResource temp;
+            try {
+                temp = origRes.copy(null);
+            } catch (ParseException e) {
+                logger.error("Unexpected error creating temporary copy of " + ctx.getPath() + ", " + e.getMessage());
+                return new ScimResponse(new InternalException("Unexpected parsing error: " + e.getMessage(), e));
+            }
+            temp.replaceResAttributes(replaceResource, ctx);
 
+            return processModifyScimResponse(ctx, origRes, temp);
+        }
     }
 
     /* (non-Javadoc)
@@ -524,46 +957,57 @@ public class MemoryProvider implements IScimProvider {
      */
     @Override
     public ScimResponse patch(RequestCtx ctx, JsonPatchRequest req) throws ScimException {
-        ScimResource origRes = getResource(ctx);
-
-        if (origRes == null)
-            return new ScimResponse(ScimResponse.ST_NOTFOUND, null, null);
-        if (origRes.checkModPreConditionFail(ctx))
-            return new ScimResponse(new PreconditionFailException(
-                    "Predcondition does not match"));
-        ScimResource temp;
-        try {
-            temp = origRes.copy(null);
-        } catch (ParseException e) {
-            logger.error("Unexpected error creating temporary copy of " + ctx.getPath() + ", " + e.getMessage());
-            return new ScimResponse(new InternalException("Unexpected parsing error: " + e.getMessage(), e));
-        }
+        synchronized (modifyLock(ctx.getPathId())) {
+            ScimResource origRes = getStoredResource(ctx);
+
+            if (origRes == null)
+                return new ScimResponse(ScimResponse.ST_NOTFOUND, null, null);
+            if (origRes.checkModPreConditionFail(ctx))
+                return new ScimResponse(new PreconditionFailException(
+                        "Predcondition does not match"));
+            ScimResource temp;
+            try {
+                temp = origRes.copy(null);
+            } catch (ParseException e) {
+                logger.error("Unexpected error creating temporary copy of " + ctx.getPath() + ", " + e.getMessage());
+                return new ScimResponse(new InternalException("Unexpected parsing error: " + e.getMessage(), e));
+            }
 
-        temp.modifyResource(req, ctx);
+            temp.modifyResource(req, ctx);
 
-        return processModifyScimResponse(ctx, origRes, temp);
+            return processModifyScimResponse(ctx, origRes, temp);
+        }
     }
 
     private ScimResponse processModifyScimResponse(RequestCtx ctx, ScimResource origRes, ScimResource modRes) {
-        deIndexResource(origRes);  // first remove old version.
-        if (checkUniqueConflict(modRes)) {
-            // As the transaction failed, restore the index on the original resource
-            indexResource(origRes);
+        // The original version stays indexed until the new version is stored; only changed postings are updated then.
+        if (!reserveUniques(origRes, modRes))
             return new ScimResponse(ScimResponse.ST_BAD_REQUEST, null, ScimResponse.ERR_TYPE_UNIQUENESS);
-        }
 
         try {
-            updateMeta(modRes, ctx);
-        } catch (DuplicateTxnException | BackendException e) {
-            DuplicateTxnException de;
-            if (e instanceof BackendException)
-                de = new DuplicateTxnException(e.getMessage());
-            else
-                de = (DuplicateTxnException) e;
-            indexResource(origRes);
-            return new ScimResponse(de);
-        }
-        storeResource(modRes);
+            try {
+                updateMeta(modRes, ctx);
+            } catch (DuplicateTxnException | BackendException e) {
+                DuplicateTxnException de;
+                if (e instanceof BackendException)
+                    de = new DuplicateTxnException(e.getMessage());
+                else
+                    de = (DuplicateTxnException) e;
+                return new ScimResponse(de);
+            }
+            // the version read must still be the stored version before the change is journaled and swapped in
+            if (this.mainMap.get(modRes.getId()) != origRes)
+                return new ScimResponse(new PreconditionFailException(
+                        "Resource was modified concurrently"));
+            ScimResponse jerr = journalPut(modRes);
+            if (jerr != null)
+                return jerr;
+            if (!storeResource(modRes, origRes))
+                return new ScimResponse(new PreconditionFailException(
+                        "Resource was modified concurrently"));
+        } finally {
+            releaseUniques(origRes, modRes);
+        }
         isModified = true;  // set memory as modified compared to disk
         return completeResponse(modRes, ctx);
     }
@@ -574,8 +1018,10 @@ public class MemoryProvider implements IScimProvider {
         Date modDate = new Date();
         meta.setLastModifiedDate(modDate);
 
-        if (!path.equals(SystemSchemas.TRANS_CONTAINER))
+        if (!path.equals(SystemSchemas.TRANS_CONTAINER)) {
             meta.addRevision(ctx, this, modDate);
+            meta.trimRevisions(revisionsMax, getRetentionCutoff());
+        }
 
         String etag = null;
         try {
@@ -612,17 +1058,51 @@ public class MemoryProvider implements IScimProvider {
      */
     @Override
     public ScimResponse delete(RequestCtx ctx) {
+        synchronized (modifyLock(ctx.getPathId())) {
+            String id = ctx.getPathId();
+            String type = ctx.getResourceContainer();
+            if (id == null || !this.mainMap.containsKey(id))
+                return new ScimResponse(ScimResponse.ST_NOTFOUND, null, null);
 
-        ScimResource res = this.mainMap.remove(ctx.getPathId());
+            if (journal != null)
+                try {
+                    journal.appendDelete(type, id, isBatching());
+                } catch (IOException e) {
+                    return handleUnexpectedException(e);
+                }
+
+            if (!removeResource(type, id))
+                return new ScimResponse(ScimResponse.ST_NOTFOUND, null, null);
+            // return success
+            return new ScimResponse(ScimResponse.ST_NOCONTENT, null, null);
+        }
+    }
 
+    /**
+     * Removes the resource from memory and its container indexes.
+     * @param container The container holding the resource
+     * @param id The resource identifier
+     * @return true if the resource was found and removed.
+     */
+    private boolean removeResource(String container, String id) {
+        ScimResource res;
+        epochLock.readLock().lock();
+        try {
+            preserveForSnapshot(id);
+            res = this.mainMap.remove(id);
+        } finally {
+            epochLock.readLock().unlock();
+        }
         if (res == null)
-            return new ScimResponse(ScimResponse.ST_NOTFOUND, null, null);
+            return false;
         deIndexResource(res);
-        String type = ctx.getResourceContainer();
-        this.containerMaps.get(type).remove(ctx.getPathId());
+        if (isGroup(res))
+            membership.remove(id);
+        Map<String, ScimResource> cmap = this.containerMaps.get(container);
+        if (cmap != null)
+            cmap.remove(id);
         isModified = true;  // set memory as modified compared to disk
-        // return success
-        return new ScimResponse(ScimResponse.ST_NOCONTENT, null, null);
+        return true;
     }
 
     /* (non-Javadoc)
@@ -633,22 +1113,49 @@ public class MemoryProvider implements IScimProvider {
         return this.ready;
     }
 
-    private void rollFile() {
-        if (dataFile.exists()) {
+    /**
+     * Forces a directory to storage so that a file renamed into it survives a crash.
+     * @param dir The directory
+     */
+    private static void syncDirectory(File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not all platforms (e.g. Windows) allow a directory to be opened and forced
+            logger.debug("Unable to sync directory " + dir + ": " + e.getMessage());
+        }
+    }
+
+    private void rollFile(File file) {
+        if (file.exists()) {
             Format formatter = new SimpleDateFormat("yyyy-MM-dd_hh-mm-ss");
 
-            String[] parts = dataFile.getName().split("\\.");
-            String newName = parts[0] + "_" + formatter.format(new Date()) + ".json";
+            String name = file.getName();
+            int dot = name.lastIndexOf('.');
+            String base = dot > 0 ? name.substring(0, dot) : name;
+            String ext = dot > 0 ? name.substring(dot) : "";
+            String newName = base + "_" + formatter.format(new Date()) + ext;
             File rollName = new File(storeDir, newName);
             logger.info("\tRolling database file to: " + rollName);
-            dataFile.renameTo(rollName);
+            // The file itself stays in place until it is replaced by the new snapshot
+            try {
+                Files.createLink(rollName.toPath(), file.toPath());
+            } catch (IOException | UnsupportedOperationException e) {
+                try {
+                    Files.copy(file.toPath(), rollName.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+                } catch (IOException ce) {
+                    logger.warn("Unable to roll database file " + file + ": " + ce.getMessage());
+                }
+            }
 
             File directory = new File(storeDir);
 
-            File[] files = directory.listFiles((f, name) -> name.startsWith(parts[0]));
+            File[] files = directory.listFiles((f, fname) -> fname.startsWith(base + "_"));
 
             if (files != null && files.length > maxBackups) {
                 logger.info("\tPurging old data files");
+                // keep the most recent backups
+                Arrays.sort(files, (f1, f2) -> Long.compare(f2.lastModified(), f1.lastModified()));
                 for (int i = maxBackups; i < files.length; i++) {
                     logger.debug("\t\tDeleteing data file " + files[i]);
                     files[i].delete();
@@ -659,44 +1166,252 @@ public class MemoryProvider implements IScimProvider {
 
     }
 
-    protected synchronized void writeDatabase() {
+    /**
+     * Called by writers (holding the epoch read lock) before changing mainMap. If a snapshot capture is in progress,
+     * the current value is saved so the capture reflects the state at the time it began.
+     * @param id The id of the resource about to be changed
+     */
+    private void preserveForSnapshot(String id) {
+        Map<String, Object> overlay = snapshotOverlay;
+        if (overlay == null)
+            return;
+        ScimResource orig = this.mainMap.get(id);
+        overlay.putIfAbsent(id, orig == null ? SNAP_ABSENT : orig);
+    }
 
-        if (dataFile.exists())
-            rollFile();
+    /**
+     * Captures a consistent point-in-time view of all resources without blocking writers for more than the instant
+     * needed to start the capture. Resources are not modified once stored (modifications replace the stored
+     * object) so the view consists of references only and may be serialized at leisure.
+     * @return The captured resources and journal checkpoint
+     * @throws IOException if the journal could not be checkpointed
+     */
+    private SnapshotView captureSnapshot() throws IOException {
+        ConcurrentHashMap<String, Object> overlay = new ConcurrentHashMap<>();
+        long checkpoint = -1;
+        epochLock.writeLock().lock();
+        try {
+            // Start a new journal segment. Everything in prior segments will be captured by this snapshot.
+            if (journal != null)
+                checkpoint = journal.checkpoint();
+            snapshotOverlay = overlay;
+        } finally {
+            epochLock.writeLock().unlock();
+        }
 
+        List<ScimResource> resources = new ArrayList<>(this.mainMap.size());
         try {
-            dataFile.createNewFile();
-            FileWriter writer = new FileWriter(dataFile);
+            for (Map.Entry<String, ScimResource> entry : this.mainMap.entrySet()) {
+                // The value is read before claiming the id. If no writer saved a prior value first, it is unchanged.
+                ScimResource res = entry.getValue();
+                if (overlay.putIfAbsent(entry.getKey(), SNAP_CAPTURED) == null)
+                    resources.add(res);
+            }
+        } finally {
+            snapshotOverlay = null;
+        }
+        // Ids changed (or removed) by writers before they were reached above
+        for (Object val : overlay.values())
+            if (val instanceof ScimResource)
+                resources.add((ScimResource) val);
+        return new SnapshotView(resources, checkpoint);
+    }
 
-            JsonGenerator gen = JsonUtil.getGenerator(writer, false);
-            gen.writeStartArray();
-            for (ScimResource scimResource : this.mainMap.values())
-                try {
+    static class SnapshotView {
+        final List<ScimResource> resources;
+        final long checkpoint;
 
-                    scimResource.serialize(gen, null, false);
-                } catch (ScimException e) {
-                    logger.error("Unexpected error serializing resource: " + e.getLocalizedMessage(), e);
-                }
-            gen.writeEndArray();
-            gen.close();
-            writer.close();
-            isModified = false;  // set memory as modified compared to disk
-            logger.info("\tMemory written to: " + this.storeFile);
+        SnapshotView(List<ScimResource> resources, long checkpoint) {
+            this.resources = resources;
+            this.checkpoint = checkpoint;
+        }
+    }
 
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+    /**
+     * @return The file snapshots are written to, which depends on the configured snapshot format.
+     */
+    public File getSnapshotFile() {
+        return isBinarySnapshot() ? snapFile : dataFile;
+    }
+
+    /**
+     * Writes a snapshot of memory to disk. Only the capture of the point-in-time view briefly coordinates with
+     * writers; serialization proceeds while requests continue to be processed.
+     */
+    public void writeDatabase() {
+        synchronized (snapshotLock) {
+            long start = System.currentTimeMillis();
+            boolean modified = isModified;
+            isModified = false;  // changes made from here on are not in this snapshot
+
+            SnapshotView view;
+            try {
+                view = captureSnapshot();
+            } catch (IOException e) {
+                logger.error("Unable to checkpoint memory journal. Skipping compaction: " + e.getMessage(), e);
+                isModified = modified;
+                return;
+            }
+
+            File target = getSnapshotFile();
+
+            // Write to a temporary file first so that a failure part way through never leaves a partial data file.
+            // The journal is only purged once the new snapshot is durable in place of the old one.
+            File tempFile = new File(storeDir, target.getName() + ".tmp");
+            try {
+                if (isBinarySnapshot())
+                    MemorySnapshot.write(tempFile, view.resources);
+                else
+                    exportJson(tempFile, view.resources);
+                long bytes = tempFile.length();
+
+                if (target.exists())
+                    rollFile(target);
+                Files.move(tempFile.toPath(), target.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                syncDirectory(new File(storeDir));
+
+                if (journal != null)
+                    journal.purge(view.checkpoint);
+
+                snapshotBytes = bytes;
+                snapshotMillis = System.currentTimeMillis() - start;
+                snapshotCnt++;
+                logger.info("\tMemory written to: " + target.getName() + " (" + view.resources.size() + " resources, "
+                        + bytes + " bytes, " + snapshotMillis + "ms)");
+
+            } catch (IOException e) {
+                isModified = true;
+                logger.error("Error writing memory snapshot: " + e.getMessage(), e);
+            }
         }
     }
 
+    @Gauge(unit = MetricUnits.MILLISECONDS, name = "Memory: Snapshot Duration")
+    public long getSnapshotMillis() {
+        return snapshotMillis;
+    }
+
+    @Gauge(unit = MetricUnits.BYTES, name = "Memory: Snapshot Bytes")
+    public long getSnapshotBytes() {
+        return snapshotBytes;
+    }
+
+    @Gauge(unit = MetricUnits.NONE, name = "Memory: Snapshot Count")
+    public int getSnapshotCnt() {
+        return snapshotCnt;
+    }
+
+    @Gauge(unit = MetricUnits.PERCENT, name = "Memory: Index Build Progress")
+    public int getIndexBuildProgress() {
+        int progress = 100;
+        for (IndexResourceType index : containerIndexes.values())
+            progress = Math.min(progress, index.getBuildProgress());
+        return progress;
+    }
+
+    /**
+     * Adds an index at runtime. The index is built in the background from the resources of every container holding
+     * the attribute; queries in each container use the existing indexes until its build completes and the new index
+     * is switched in. Progress is reported by {@link #getIndexBuildProgress()}. The change is not saved to
+     * configuration (see scim.prov.memory.indexes).
+     * @param attrName The attribute to be indexed (e.g. User:emails.value)
+     * @param trigram  true to also build a trigram index for contains filters (String attributes only)
+     * @return A future completing once all builds finish, with true if the index is in use, or false if the attribute
+     * could not be indexed
+     */
+    public CompletableFuture<Boolean> addIndex(String attrName, boolean trigram) {
+        Attribute attr = schemaManager.findAttribute(attrName, null);
+        ExecutorService pool = this.indexPool;
+        if (attr == null || pool == null)
+            return CompletableFuture.completedFuture(false);
+        List<CompletableFuture<Boolean>> builds = new ArrayList<>();
+        for (IndexResourceType index : containerIndexes.values())
+            if (index.canAddIndex(attr))
+                builds.add(CompletableFuture.supplyAsync(() -> index.addIndex(attr, trigram), pool));
+        if (builds.isEmpty())
+            return CompletableFuture.completedFuture(false);
+        logger.info("Building memory index for " + attrName + " in " + builds.size() + " container(s)");
+        return CompletableFuture.allOf(builds.toArray(new CompletableFuture[0])).thenApply(done -> {
+            boolean added = false;
+            for (CompletableFuture<Boolean> build : builds)
+                added |= build.join();
+            if (added) {
+                indexAttrs.add(attr);
+                if (trigram)
+                    gramAttrs.add(attr);
+                logger.info("Memory index for " + attrName + " is now active.");
+            }
+            return added;
+        });
+    }
+
+    /**
+     * Drops an index at runtime. Indexes on unique and common attributes cannot be dropped.
+     * @param attrName The indexed attribute (e.g. User:emails.value)
+     * @return true if the index was dropped
+     */
+    public boolean dropIndex(String attrName) {
+        Attribute attr = schemaManager.findAttribute(attrName, null);
+        if (attr == null)
+            return false;
+        boolean dropped = false;
+        for (IndexResourceType index : containerIndexes.values())
+            dropped |= index.dropIndex(attr);
+        if (dropped) {
+            indexAttrs.remove(attr);
+            gramAttrs.remove(attr);
+        }
+        return dropped;
+    }
+
+    /**
+     * Writes all resources to a file as a JSON array. This is the format used when snapshot format is set to json and
+     * may be used to export the store for import into another server. The file contents are forced to storage.
+     * @param file The file to be written
+     * @param resources The resources to be written
+     * @throws IOException if the file could not be written
+     */
+    public void exportJson(File file, Collection<ScimResource> resources) throws IOException {
+        file.createNewFile();
+        FileOutputStream fos = new FileOutputStream(file);
+        Writer writer = new OutputStreamWriter(fos);
+
+        JsonGenerator gen = JsonUtil.getGenerator(writer, false);
+        gen.writeStartArray();
+        for (ScimResource scimResource : resources)
+            try {
+
+                scimResource.serialize(gen, null, false);
+            } catch (ScimException e) {
+                logger.error("Unexpected error serializing resource: " + e.getLocalizedMessage(), e);
+            }
+        gen.writeEndArray();
+        gen.close();  // also flushes the writer
+        fos.getChannel().force(true);
+        writer.close();
+    }
+
     /* (non-Javadoc)
      * @see com.independentid.scim.backend.PersistenceProvider#shutdown()
      */
     @Override
     public synchronized void shutdown() {
         timer.cancel();
+        if (searchPool != null) {
+            searchPool.shutdown();
+            searchPool = null;
+        }
+        if (indexPool != null) {
+            indexPool.shutdownNow();
+            indexPool = null;
+        }
         if (isModified)
             writeDatabase();
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
 
         this.mainMap.clear();
         this.containerMaps.clear();
@@ -885,27 +1600,464 @@ public class MemoryProvider implements IScimProvider {
      * This method is typically called by a CreateOp, DeleteOp, Put or Patch Op, after any write transaction.
      * @param record A {@link TransactionRecord} containing information about the update.
      * @throws DuplicateTxnException if the transactionId already exists in the provider, an exception is thrown.
+     * @throws BackendException if the record could not be journaled, in which case it is not stored.
      */
     @Override
-    public void storeTransactionRecord(TransactionRecord record) throws DuplicateTxnException {
+    public void storeTransactionRecord(TransactionRecord record) throws DuplicateTxnException, BackendException {
         if (this.mainMap.containsKey(record.getId()))
             throw new DuplicateTxnException("Transactionid is not unique.");
 
+        if (journal != null)
+            try {
+                journal.appendPut(record, isBatching());
+            } catch (IOException e) {
+                throw new BackendException("Unable to journal transaction record " + record.getId() + ": " + e.getMessage(), e);
+            }
         storeResource(record);
     }
 
+    /**
+     * @return The date before which transaction records and revisions are no longer retained, or null when
+     * retention by age is disabled.
+     */
+    public Date getRetentionCutoff() {
+        if (txnRetentionHours <= 0)
+            return null;
+        return new Date(System.currentTimeMillis() - TimeUnit.MILLISECONDS.convert(txnRetentionHours, TimeUnit.HOURS));
+    }
+
+    /**
+     * Removes transaction records that fall outside the retention window. Duplicate transaction detection (see
+     * {@link #isTransactionPresent(String)}) only covers the records retained. Removals are journaled so that replay
+     * does not restore them; if the journal cannot be written, compaction stops.
+     * @param cutoff Records dated before the cutoff are removed (null for no age limit)
+     * @param max    The maximum number of records to keep, oldest removed first (0 for no limit)
+     * @return The number of transaction records removed
+     */
+    public int compactTransactions(Date cutoff, int max) {
+        Map<String, ScimResource> trans = this.containerMaps.get(SystemSchemas.TRANS_CONTAINER);
+        if (trans == null || (cutoff == null && (max <= 0 || trans.size() <= max)))
+            return 0;
+
+        List<Map.Entry<String, Date>> records = new ArrayList<>(trans.size());
+        for (ScimResource rec : trans.values())
+            records.add(new AbstractMap.SimpleEntry<>(rec.getId(), getTransactionDate(rec)));
+        records.sort(Map.Entry.comparingByValue(Comparator.reverseOrder()));
+
+        MemoryJournal journal = this.journal;
+        int removed = 0;
+        try {
+            for (int i = 0; i < records.size(); i++) {
+                Map.Entry<String, Date> rec = records.get(i);
+                if ((max > 0 && i >= max) || (cutoff != null && rec.getValue().before(cutoff))) {
+                    // A removal lost before the commit only restores a record that the next compaction removes again
+                    if (journal != null)
+                        journal.appendDelete(SystemSchemas.TRANS_CONTAINER, rec.getKey(), true);
+                    if (removeResource(SystemSchemas.TRANS_CONTAINER, rec.getKey()))
+                        removed++;
+                }
+            }
+            if (journal != null && removed > 0)
+                journal.commit();
+        } catch (IOException e) {
+            logger.error("Unable to journal transaction record removal. Compaction stopped: " + e.getMessage(), e);
+        }
+        return removed;
+    }
+
+    private Date getTransactionDate(ScimResource rec) {
+        Value val = rec.getValue(SystemSchemas.dateAttr);
+        if (val instanceof DateValue)
+            return ((DateValue) val).getDateValue();
+        Meta meta = rec.getMeta();
+        if (meta != null && meta.getCreatedDate() != null)
+            return meta.getCreatedDate();
+        return new Date(0);
+    }
+
+    /**
+     * Trims the revision history of stored resources. A resource whose revisions exceed the limits is replaced by a
+     * trimmed version. The replacement is skipped if the resource was modified since it was read; the writer will
+     * have trimmed its new version already. Trimmed versions are not journaled: a journaled replacement could be
+     * ordered after a concurrent writer's newer version and undo it on replay, whereas replaying the untrimmed
+     * version only restores revisions that are trimmed again by the next compaction.
+     * @param cutoff Revisions dated before the cutoff are removed (null for no age limit)
+     * @param max    The maximum number of revisions to keep per resource (0 for no limit)
+     * @return The number of resources trimmed
+     */
+    public int compactRevisions(Date cutoff, int max) {
+        if (cutoff == null && max <= 0)
+            return 0;
+        int trimmed = 0;
+        for (Map.Entry<String, Map<String, ScimResource>> entry : this.containerMaps.entrySet()) {
+            if (entry.getKey().equals(SystemSchemas.TRANS_CONTAINER))
+                continue;
+            for (ScimResource res : entry.getValue().values()) {
+                Meta meta = res.getMeta();
+                if (meta == null || meta.getRevisions() == null || meta.getRevisions().size() <= 1)
+                    continue;
+                ScimResource copy;
+                try {
+                    copy = res.copy(null);
+                } catch (ScimException | ParseException e) {
+                    logger.warn("Unable to copy resource " + res.getId() + " to trim revisions: " + e.getMessage(), e);
+                    continue;
+                }
+                if (copy.getMeta().trimRevisions(max, cutoff))
+                    synchronized (modifyLock(res.getId())) {
+                        if (replaceResource(res, copy))
+                            trimmed++;
+                    }
+            }
+        }
+        return trimmed;
+    }
+
+    /**
+     * Swaps a stored version for a new one only if the stored version is still current. The meta revisions are not
+     * part of the version hash so the ETag is unchanged.
+     * @param prior The version read from the store
+     * @param res   The replacement version
+     * @return true if the replacement was stored
+     */
+    private boolean replaceResource(ScimResource prior, ScimResource res) {
+        boolean[] swapped = {false};
+        epochLock.readLock().lock();
+        try {
+            preserveForSnapshot(res.getId());
+            // compare by identity as ScimResource.equals compares content only
+            this.mainMap.computeIfPresent(res.getId(), (id, current) -> {
+                if (current != prior)
+                    return current;
+                swapped[0] = true;
+                return res;
+            });
+        } finally {
+            epochLock.readLock().unlock();
+        }
+        if (!swapped[0])
+            return false;
+        IndexResourceType index = containerIndexes.get(res.getContainer());
+        if (index != null)
+            index.reIndexResource(prior, res);
+        Map<String, ScimResource> cmap = this.containerMaps.get(res.getContainer());
+        if (cmap != null)
+            cmap.computeIfPresent(res.getId(), (id, current) -> current == prior ? res : current);
+        isModified = true;
+        return true;
+    }
+
     public Set<String> evaluateFilter(Filter filter, String container) throws BadFilterException {
         Set<String> res = new HashSet<>();
         if (container == null || container.equals("/")) {
+            ForkJoinPool pool = this.searchPool;
+            if (pool == null) {
+                for (String cont : containerIndexes.keySet())
+                    res.addAll(evaluateFilter(filter, cont));
+                return res;
+            }
+            // Evaluate each container's indexes concurrently
+            List<Future<Set<String>>> parts = new ArrayList<>();
             for (String cont : containerIndexes.keySet())
-                res.addAll(evaluateFilter(filter, cont));
+                parts.add(pool.submit(() -> evaluateFilter(filter, cont)));
+            try {
+                for (Future<Set<String>> part : parts)
+                    res.addAll(part.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BadFilterException("Filter evaluation interrupted", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof BadFilterException)
+                    throw (BadFilterException) e.getCause();
+                throw new BadFilterException("Unexpected error evaluating filter: " + e.getMessage(), e.getCause());
+            }
         } else {
             IndexResourceType index = this.containerIndexes.get(container);
+            if (logger.isDebugEnabled())
+                logger.debug("Filter plan:\n" + index.explain(filter));
             res.addAll(index.getPotentialMatches(filter));
         }
         return res;
     }
 
+    /**
+     * Describes how a search filter will be evaluated using the memory indexes.
+     * @param filter    The search filter
+     * @param container The container searched, or "/" or null for all containers
+     * @return A description of the chosen plan for each container
+     */
+    public String explainFilter(Filter filter, String container) {
+        if (container == null || container.equals("/")) {
+            StringBuilder buf = new StringBuilder();
+            for (IndexResourceType index : containerIndexes.values())
+                buf.append(index.explain(filter));
+            return buf.toString();
+        }
+        IndexResourceType index = this.containerIndexes.get(container);
+        return index == null ? "No index for container: " + container : index.explain(filter);
+    }
+
+    /**
+     * Answers a sorted search by walking the ordered index of the sortBy attribute so that only the requested page is
+     * fetched. When the index answers the filter exactly, the walk stops once the page is full and totalResults is
+     * taken from the candidate bitmap; otherwise remaining matches are counted without being returned.
+     * @param ctx    The request
+     * @param filter The search filter or null for all resources in the container
+     * @return The response, or null if the sort cannot be answered from an index (e.g. multiple or unindexed sort
+     * attributes, or a search across all containers)
+     */
+    private ListResponse getSortedPage(RequestCtx ctx, Filter filter) throws ScimException {
+        String sortBy = ctx.getSortBy();
+        String container = ctx.getResourceContainer();
+        if (sortBy == null || sortBy.contains(",") || container == null || container.equals("/"))
+            return null;
+        IndexResourceType index = this.containerIndexes.get(container);
+        Attribute attr = schemaManager.findAttribute(sortBy, ctx);
+        if (index == null || attr == null || !index.isSortIndexed(attr))
+            return null;
+
+        DocIdMap docIds = index.getDocIds();
+        long sequence = docIds.getSequence();
+        DocBitmap candidates = filter == null ? docIds.getAll() : index.getCandidates(filter);
+        boolean exact = filter == null || index.isExactMatch(filter);
+        int skip = Math.max(ctx.getStartIndex() - 1, 0);
+        int count = ctx.getCount() == 0 || ctx.getCount() > maxResults ? maxResults : ctx.getCount();
+
+        ArrayList<ScimResource> page = new ArrayList<>();
+        int total = 0;
+        Iterator<DocBitmap> groups = index.getSortedCandidates(attr, ctx.isSortDescending(), candidates);
+        walk:
+        while (groups.hasNext()) {
+            PrimitiveIterator.OfInt iter = groups.next().iterator();
+            while (iter.hasNext()) {
+                if (exact && page.size() >= count)
+                    break walk;
+                String id = docIds.getId(iter.nextInt(), sequence);
+                ScimResource res = id == null ? null : this.mainMap.get(id);
+                if (res == null)
+                    continue;  // removed since the index was evaluated
+                if (!exact && !filter.isMatch(res))
+                    continue;
+                if (total >= skip && page.size() < count)
+                    page.add(res.getReadView());
+                total++;
+                if (!exact && total > maxResults)
+                    break walk;  // too many results, the response is an error
+            }
+        }
+        if (!exact)
+            return new ListResponse(page, total, ctx, maxResults);  // the walk stops once total exceeds maxResults
+        // The exact total is known, so clients may page through it. Only the page is limited by maxResults.
+        total = Math.max(total, candidates.getCardinality());
+        return new ListResponse(page, total, ctx, maxResults, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Answers an unsorted search from the index candidates returning only the resources in the requested page. Where the
+     * indexes answer the filter exactly, totalResults is the size of the candidate bitmap and resources outside the
+     * page are never fetched; otherwise each candidate is verified with the filter but only the page is returned. For
+     * count-only requests (count=0) no resources are returned.
+     * @param ctx    The request
+     * @param filter The search filter or null for all resources
+     * @return The response
+     */
+    private ListResponse getPage(RequestCtx ctx, Filter filter) throws ScimException {
+        int skip = Math.max(ctx.getStartIndex() - 1, 0);
+        int count = ctx.isCountOnly() ? 0
+                : (ctx.getCount() == 0 || ctx.getCount() > maxResults ? maxResults : ctx.getCount());
+
+        Collection<IndexResourceType> indexes = getSearchIndexes(ctx.getResourceContainer());
+        // Candidates the indexes cannot answer exactly are verified for all containers at once
+        List<IndexResourceType> inexact = new ArrayList<>();
+        if (filter != null)
+            for (IndexResourceType index : indexes)
+                if (!index.isExactMatch(filter))
+                    inexact.add(index);
+        Map<IndexResourceType, List<ScimResource>> verified = inexact.isEmpty() ? Collections.emptyMap()
+                : findMatches(inexact, filter, ctx.isCountOnly() ? Integer.MAX_VALUE : maxResults + 1);
+
+        ArrayList<ScimResource> page = new ArrayList<>();
+        int total = 0;
+        for (IndexResourceType index : indexes) {
+            List<ScimResource> matched = verified.get(index);
+            if (matched != null) {
+                for (ScimResource res : matched) {
+                    if (total >= skip && page.size() < count)
+                        page.add(res.getReadView());
+                    total++;
+                }
+                continue;
+            }
+
+            DocIdMap docIds = index.getDocIds();
+            long sequence = docIds.getSequence();
+            DocBitmap candidates = filter == null ? docIds.getAll() : index.getCandidates(filter);
+            if (logger.isDebugEnabled() && filter != null)
+                logger.debug("Filter plan:\n" + index.explain(filter));
+            int size = candidates.getCardinality();
+            if (page.size() < count && total + size > skip)
+                addPage(page, candidates, docIds, sequence, skip - total, count);
+            total += size;
+        }
+        // Verification stops after maxResults + 1 matches, in which case the total is unknown and the request is
+        // rejected. Otherwise the total is exact and only the page is limited by maxResults.
+        int verifiedCnt = 0;
+        for (List<ScimResource> matched : verified.values())
+            verifiedCnt += matched.size();
+        return new ListResponse(page, total, ctx, maxResults, verifiedCnt > maxResults ? maxResults : Integer.MAX_VALUE);
+    }
+
+    /**
+     * Verifies the index candidates of a filter, returning the matching stored resources of each index in document
+     * order. When the search pool is enabled and at least searchParallelMin candidates are to be verified, the
+     * candidates of all indexes are divided into chunks verified in parallel. Verification stops once limit matches
+     * have been found across all indexes.
+     * @param indexes The indexes of the containers searched
+     * @param filter  The search filter
+     * @param limit   The number of matches after which verification may stop
+     * @return The matched resources of each index, in the iteration order of indexes
+     */
+    private Map<IndexResourceType, List<ScimResource>> findMatches(Collection<IndexResourceType> indexes, Filter filter,
+                                                                   int limit) throws ScimException {
+        ForkJoinPool pool = this.searchPool;
+        AtomicInteger found = new AtomicInteger();
+        Map<IndexResourceType, int[]> candidates = new LinkedHashMap<>();
+        Map<IndexResourceType, Long> sequences = new HashMap<>();
+        int cnt = 0;
+        for (IndexResourceType index : indexes) {
+            if (logger.isDebugEnabled())
+                logger.debug("Filter plan:\n" + index.explain(filter));
+            sequences.put(index, index.getDocIds().getSequence());
+            int[] docs = index.getCandidates(filter).toArray();
+            candidates.put(index, docs);
+            cnt += docs.length;
+        }
+        int chunk = pool != null && cnt >= searchParallelMin ? VERIFY_CHUNK : Integer.MAX_VALUE;
+
+        Map<IndexResourceType, VerifyTask> tasks = new LinkedHashMap<>();
+        for (Map.Entry<IndexResourceType, int[]> entry : candidates.entrySet()) {
+            IndexResourceType index = entry.getKey();
+            int[] docs = entry.getValue();
+            tasks.put(index, new VerifyTask(index.getDocIds(), sequences.get(index), docs, 0, docs.length,
+                    index.isExactMatch(filter) ? null : filter, found, limit, chunk));
+        }
+
+        Map<IndexResourceType, List<ScimResource>> res = new LinkedHashMap<>();
+        try {
+            if (chunk == Integer.MAX_VALUE) {
+                for (Map.Entry<IndexResourceType, VerifyTask> entry : tasks.entrySet())
+                    res.put(entry.getKey(), entry.getValue().compute());
+            } else {
+                pool.submit(() -> ForkJoinTask.invokeAll(tasks.values())).get();
+                for (Map.Entry<IndexResourceType, VerifyTask> entry : tasks.entrySet())
+                    res.put(entry.getKey(), entry.getValue().join());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("Search interrupted", e);
+        } catch (ExecutionException | RuntimeException e) {
+            for (Throwable cause = e; cause != null; cause = cause.getCause())
+                if (cause instanceof BadFilterException)
+                    throw (BadFilterException) cause;
+            throw new InternalException("Unexpected error verifying search candidates: " + e.getMessage(), e);
+        }
+        return res;
+    }
+
+    /**
+     * Verifies a range of candidate documents with the search filter, splitting ranges larger than the chunk size
+     * into forked subtasks. Matched stored resources are returned in document order. A null filter means every
+     * candidate is a match. Document numbers re-used after sequence are skipped.
+     */
+    private class VerifyTask extends RecursiveTask<List<ScimResource>> {
+        private final DocIdMap docIds;
+        private final long sequence;
+        private final int[] docs;
+        private final int from;
+        private final int to;
+        private final Filter filter;
+        private final AtomicInteger found;
+        private final int limit;
+        private final int chunk;
+
+        VerifyTask(DocIdMap docIds, long sequence, int[] docs, int from, int to, Filter filter, AtomicInteger found,
+                   int limit, int chunk) {
+            this.docIds = docIds;
+            this.sequence = sequence;
+            this.docs = docs;
+            this.from = from;
+            this.to = to;
+            this.filter = filter;
+            this.found = found;
+            this.limit = limit;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected List<ScimResource> compute() {
+            if (to - from > chunk) {
+                int mid = (from + to) >>> 1;
+                VerifyTask left = new VerifyTask(docIds, sequence, docs, from, mid, filter, found, limit, chunk);
+                VerifyTask right = new VerifyTask(docIds, sequence, docs, mid, to, filter, found, limit, chunk);
+                invokeAll(left, right);
+                List<ScimResource> res = left.join();
+                res.addAll(right.join());
+                return res;
+            }
+
+            List<ScimResource> res = new ArrayList<>();
+            for (int i = from; i < to && found.get() < limit; i++) {
+                String id = docIds.getId(docs[i], sequence);
+                ScimResource candidate = id == null ? null : mainMap.get(id);
+                if (candidate == null)
+                    continue;  // removed since the index was evaluated
+                try {
+                    if (filter != null && !filter.isMatch(candidate))
+                        continue;
+                } catch (BadFilterException e) {
+                    throw new CompletionException(e);
+                }
+                res.add(candidate);
+                found.incrementAndGet();
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Adds the resources of an exactly matched candidate bitmap that fall within the requested page.
+     * @param page     The page being built
+     * @param docs     The matching documents
+     * @param docIds   The document id map of the index
+     * @param sequence The document id map sequence taken before docs was evaluated
+     * @param skip     The number of matching documents to skip before the page begins
+     * @param count    The page size
+     */
+    private void addPage(List<ScimResource> page, DocBitmap docs, DocIdMap docIds, long sequence, int skip, int count) {
+        PrimitiveIterator.OfInt iter = docs.iterator();
+        int pos = 0;
+        while (iter.hasNext() && page.size() < count) {
+            int doc = iter.nextInt();
+            if (pos++ < skip)
+                continue;
+            String id = docIds.getId(doc, sequence);
+            ScimResource res = id == null ? null : this.mainMap.get(id);
+            if (res != null)
+                page.add(res.getReadView());
+        }
+    }
+
+    /**
+     * @param container The container being searched, or "/" or null for all containers
+     * @return The indexes to be searched
+     */
+    private Collection<IndexResourceType> getSearchIndexes(String container) {
+        if (container == null || container.equals("/"))
+            return containerIndexes.values();
+        IndexResourceType index = this.containerIndexes.get(container);
+        return index == null ? Collections.emptyList() : Collections.singletonList(index);
+    }
+
     public int getCount() {
         return mainMap.size();
     }
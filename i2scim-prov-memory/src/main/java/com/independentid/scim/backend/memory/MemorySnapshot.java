@@ -0,0 +1,205 @@
+/*
+ * Copyright 2021.  Independent Identity Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.independentid.scim.backend.memory;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.independentid.scim.core.err.ScimException;
+import com.independentid.scim.resource.ScimResource;
+import com.independentid.scim.serializer.JsonUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * MemorySnapshot reads and writes the binary snapshot format used by {@link MemoryProvider}. The layout is:
+ * <pre>
+ *   header:  int magic, int version
+ *   records: (int length, byte[length] compact UTF-8 JSON resource) ...
+ *   table:   long offset of each record ...
+ *   trailer: long table offset, int record count, int magic
+ * </pre>
+ * The offset table allows the file to be split into independent ranges that are memory-mapped and parsed in parallel
+ * on a fork-join pool. A missing or damaged trailer (e.g. from an interrupted write) causes the load to fail rather
+ * than silently loading a partial store.
+ */
+public class MemorySnapshot {
+    private static final Logger logger = LoggerFactory.getLogger(MemorySnapshot.class);
+
+    public static final String SNAPSHOT_EXT = ".snap";
+
+    static final int MAGIC = 0x4932534E; // "I2SN"
+    static final int VERSION = 1;
+    static final int HEADER_LEN = 8;
+    static final int TRAILER_LEN = 16;
+
+    /* The number of records below which a range is parsed on the current thread rather than split further */
+    static final int SPLIT_THRESHOLD = 512;
+
+    /**
+     * Interface used to store each resource as it is parsed. Implementations must be thread-safe as records are
+     * delivered concurrently.
+     */
+    public interface IRecordLoader {
+        void loadRecord(JsonNode resourceNode) throws ScimException, ParseException;
+    }
+
+    /**
+     * Writes the resources to a new snapshot file. The file contents are forced to storage before returning.
+     * @param file      The file to be written (any existing file is replaced)
+     * @param resources The resources to be written
+     * @return The number of resources written
+     * @throws IOException if the file could not be written
+     */
+    public static int write(File file, Collection<ScimResource> resources) throws IOException {
+        long[] offsets = new long[resources.size()];
+        int cnt = 0;
+        try (FileOutputStream fos = new FileOutputStream(file);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 65536))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            long pos = HEADER_LEN;
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(4096);
+            for (ScimResource res : resources) {
+                if (cnt == offsets.length)
+                    break; // the collection grew while being written. Remaining changes are picked up by the next snapshot.
+                buf.reset();
+                JsonGenerator gen = JsonUtil.getMapper().getFactory().createGenerator(buf);
+                try {
+                    res.serialize(gen, null, false);
+                } catch (ScimException e) {
+                    logger.error("Unexpected error serializing resource: " + e.getLocalizedMessage(), e);
+                    continue;
+                }
+                gen.close();
+                offsets[cnt++] = pos;
+                out.writeInt(buf.size());
+                buf.writeTo(out);
+                pos += 4 + buf.size();
+            }
+            for (int i = 0; i < cnt; i++)
+                out.writeLong(offsets[i]);
+            out.writeLong(pos);
+            out.writeInt(cnt);
+            out.writeInt(MAGIC);
+            out.flush();
+            fos.getChannel().force(true);  // flush only hands the data to the OS
+        }
+        return cnt;
+    }
+
+    /**
+     * Memory-maps the snapshot file and parses its records in parallel.
+     * @param file   The snapshot file to load
+     * @param pool   The fork-join pool used to parse records
+     * @param loader Receives each parsed resource. Records that fail to parse are logged and skipped.
+     * @return The number of resources loaded
+     * @throws IOException if the file could not be read or is not a valid snapshot
+     */
+    public static int load(File file, ForkJoinPool pool, IRecordLoader loader) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_LEN + TRAILER_LEN)
+                throw new IOException("Snapshot file is truncated: " + file);
+
+            MappedByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_LEN);
+            if (head.getInt() != MAGIC)
+                throw new IOException("File is not an i2scim snapshot: " + file);
+            int version = head.getInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported snapshot version (" + version + "): " + file);
+
+            MappedByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - TRAILER_LEN, TRAILER_LEN);
+            long tableOffset = trailer.getLong();
+            int count = trailer.getInt();
+            if (trailer.getInt() != MAGIC || tableOffset + (long) count * 8 != size - TRAILER_LEN)
+                throw new IOException("Snapshot file trailer is invalid (incomplete write?): " + file);
+
+            long[] offsets = new long[count];
+            MappedByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, tableOffset, (long) count * 8);
+            table.asLongBuffer().get(offsets);
+
+            return pool.invoke(new LoadTask(channel, offsets, tableOffset, 0, count, loader));
+        }
+    }
+
+    static class LoadTask extends RecursiveTask<Integer> {
+        final FileChannel channel;
+        final long[] offsets;
+        final long recordsEnd;
+        final int start, end;
+        final IRecordLoader loader;
+
+        LoadTask(FileChannel channel, long[] offsets, long recordsEnd, int start, int end, IRecordLoader loader) {
+            this.channel = channel;
+            this.offsets = offsets;
+            this.recordsEnd = recordsEnd;
+            this.start = start;
+            this.end = end;
+            this.loader = loader;
+        }
+
+        private long endOf(int index) {
+            return index < offsets.length ? offsets[index] : recordsEnd;
+        }
+
+        @Override
+        protected Integer compute() {
+            long rangeLen = endOf(end) - offsets[start];
+            if (end - start > 1 && (end - start > SPLIT_THRESHOLD || rangeLen > Integer.MAX_VALUE)) {
+                int mid = (start + end) >>> 1;
+                LoadTask left = new LoadTask(channel, offsets, recordsEnd, start, mid, loader);
+                LoadTask right = new LoadTask(channel, offsets, recordsEnd, mid, end, loader);
+                left.fork();
+                int cnt = right.compute();
+                return cnt + left.join();
+            }
+            return loadRange(rangeLen);
+        }
+
+        private int loadRange(long rangeLen) {
+            MappedByteBuffer buf;
+            try {
+                buf = channel.map(FileChannel.MapMode.READ_ONLY, offsets[start], rangeLen);
+            } catch (IOException e) {
+                logger.error("Unable to map snapshot records " + start + " to " + end + ": " + e.getMessage(), e);
+                return 0;
+            }
+            int cnt = 0;
+            for (int i = start; i < end; i++) {
+                buf.position((int) (offsets[i] - offsets[start]));
+                byte[] data = new byte[buf.getInt()];
+                buf.get(data);
+                try {
+                    loader.loadRecord(JsonUtil.getJsonTree(data));
+                    cnt++;
+                } catch (IOException | ScimException | ParseException e) {
+                    logger.error("Unexpected error parsing snapshot record " + i + ": " + e.getMessage(), e);
+                }
+            }
+            return cnt;
+        }
+    }
+}
@@ -20,30 +20,107 @@ import com.independentid.scim.resource.Value;
 
 import java.util.*;
 
+/**
+ * A posting in a memory index: the documents that have a particular value. Each posting has its own lock so that
+ * writers indexing different values do not contend. Readers combine the posting into their own bitmaps while holding
+ * the lock only for the duration of the bitmap operation.
+ */
 public class ValResMap implements Comparable<ValResMap>{
 
     Value val;
 
-    Set<String> idList = new HashSet<>();
+    final DocIdMap docIds;
+
+    private final DocBitmap docs = new DocBitmap();
+
+    private boolean retired = false;
 
-    public ValResMap(Value value) {
+    public ValResMap(Value value, DocIdMap docIds) {
         this.val = value;
+        this.docIds = docIds;
+    }
+
+    /**
+     * @param doc The document number to add
+     * @return false if the posting was retired (removed from its index) and a new posting must be used
+     */
+    public synchronized boolean addDoc(int doc) {
+        if (retired)
+            return false;
+        docs.add(doc);
+        return true;
+    }
+
+    /**
+     * @param doc The document number to remove
+     * @return true if the posting is now empty
+     */
+    public synchronized boolean removeDoc(int doc) {
+        docs.remove(doc);
+        return docs.isEmpty();
+    }
+
+    /**
+     * Marks an empty posting as retired so that it no longer accepts documents and may be removed from its index.
+     * @return true if the posting was empty and is now retired
+     */
+    public synchronized boolean retireIfEmpty() {
+        if (docs.isEmpty())
+            retired = true;
+        return retired;
     }
 
     public void addId(String id) {
-        idList.add(id);
+        addDoc(docIds.assign(id));
     }
 
     public void removeId(String id) {
-        idList.remove(id);
+        int doc = docIds.getDoc(id);
+        if (doc >= 0)
+            removeDoc(doc);
+    }
+
+    public synchronized boolean containsId(String id) {
+        int doc = docIds.getDoc(id);
+        return doc >= 0 && docs.contains(doc);
+    }
+
+    /**
+     * @return A copy of the posting bitmap
+     */
+    public synchronized DocBitmap getDocs() {
+        return docs.copy();
+    }
+
+    /**
+     * Adds the documents of this posting to a result bitmap.
+     * @param target The bitmap to be updated
+     */
+    public synchronized void orInto(DocBitmap target) {
+        target.addAll(docs);
+    }
+
+    /**
+     * @param target A candidate bitmap
+     * @return A new bitmap of the candidates that are in this posting
+     */
+    public synchronized DocBitmap and(DocBitmap target) {
+        return target.and(docs);
     }
 
-    public boolean containsId(String id) {
-        return idList.contains(id);
+    /**
+     * @param target A candidate bitmap
+     * @return A new bitmap of the candidates that are not in this posting
+     */
+    public synchronized DocBitmap andNot(DocBitmap target) {
+        return target.andNot(docs);
     }
 
-    public Set<String> getIds() {
-        return idList;
+    /**
+     * @return The resource ids in this posting (materialized from the bitmap)
+     */
+    public synchronized Set<String> getIds() {
+        return docIds.toIds(docs);
     }
 
     public Value getKey() { return val;}
@@ -62,7 +139,7 @@ public class ValResMap implements Comparable<ValResMap>{
         return false;
     }
 
-    public int size() {
-        return idList.size();
+    public synchronized int size() {
+        return docs.getCardinality();
     }
 }
@@ -21,41 +21,77 @@ import com.independentid.scim.core.err.BadFilterException;
 import com.independentid.scim.core.err.ScimException;
 import com.independentid.scim.protocol.*;
 import com.independentid.scim.schema.Attribute;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.model.Collation;
+import com.mongodb.client.model.CollationStrength;
 import com.mongodb.client.model.Filters;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
 import org.bson.conversions.Bson;
 import org.bson.types.Decimal128;
 import org.bson.types.ObjectId;
 
+import java.util.Map;
+import java.util.Set;
+
 
 public class MongoFilterMapper {
 
+    /**
+     * Collation comparing strings without regard to case. Indexes on case insensitive attributes are created with it,
+     * and it is used to sort case insensitive attributes and to compare them with eq, ne and range operators.
+     */
+    public static final Collation CASE_IGNORE = Collation.builder()
+            .locale("en")
+            .collationStrength(CollationStrength.SECONDARY)
+            .build();
+
     public static Bson mapFilter(Filter filter, boolean negate, boolean isValPath)
             throws ScimException, BackendException {
+        return mapFilter(filter, negate, isValPath, false);
+    }
+
+    /**
+     * Maps a SCIM filter to a Mongo query.
+     * @param filter    The SCIM filter
+     * @param negate    True if the filter is to be negated
+     * @param isValPath True when mapping the filter of a value path (attribute names are relative to the value)
+     * @param collated  True if the query runs with the {@link #CASE_IGNORE} collation (see
+     *                  {@link #useCaseIgnoreCollation(Filter)}). Case insensitive strings are then compared with eq,
+     *                  ne and range operators, which can use their case insensitive indexes, rather than a regex.
+     * @return The Mongo query
+     */
+    public static Bson mapFilter(Filter filter, boolean negate, boolean isValPath, boolean collated)
+            throws ScimException, BackendException {
 
         if (filter instanceof AttributeFilter)
-            return MongoFilterMapper.mapFilter((AttributeFilter) filter, negate, isValPath);
+            return MongoFilterMapper.mapFilter((AttributeFilter) filter, negate, isValPath, collated);
 
         if (filter instanceof LogicFilter)
-            return MongoFilterMapper.mapFilter((LogicFilter) filter, negate, isValPath);
+            return MongoFilterMapper.mapFilter((LogicFilter) filter, negate, isValPath, collated);
 
         if (filter instanceof ValuePathFilter)
-            return MongoFilterMapper.mapFilter((ValuePathFilter) filter, negate);
+            return MongoFilterMapper.mapFilter((ValuePathFilter) filter, negate, collated);
 
         if (filter instanceof PrecedenceFilter)
-            return MongoFilterMapper.mapFilter((PrecedenceFilter) filter, negate, isValPath);
+            return MongoFilterMapper.mapFilter((PrecedenceFilter) filter, negate, isValPath, collated);
 
         throw new BackendException("Unexpected filter type: "
                 + filter.getClass().getCanonicalName());
     }
 
-    private static Bson mapStringType(String aname, AttributeFilter filter,boolean negate) {
+    private static Bson mapStringType(String aname, AttributeFilter filter, boolean negate, boolean collated) {
         Bson obj = null;
+        // Regular expressions are only given an anchored prefix and no case insensitive option where possible, as
+        // only those can use an index.
+        boolean caseExact = filter.getAttribute().getCaseExact();
         switch (filter.getOperator()) {
 
             case AttributeFilter.FILTEROP_EQ:
                 if (aname.equals("_id"))
                     obj = Filters.eq("_id",new ObjectId(filter.asString()));
-                else if (filter.getAttribute().getCaseExact())
+                else if (caseExact || collated)
                     obj = Filters.eq(aname, filter.asString());
                 else
                     obj = Filters.regex(aname,"^" + filter.asQuotedString() + "$","i");
@@ -67,7 +103,7 @@ public class MongoFilterMapper {
             case AttributeFilter.FILTEROP_NE:
                 if (aname.equals("_id"))
                     obj = Filters.eq("_id",new ObjectId(filter.asString()));
-                else if (filter.getAttribute().getCaseExact())
+                else if (caseExact || collated)
                     obj = Filters.eq(aname, filter.asString());
                 else
                     obj = Filters.regex(aname,"^" + filter.asQuotedString() + "$","i");
@@ -78,20 +114,20 @@ public class MongoFilterMapper {
 
             case AttributeFilter.FILTEROP_CONTAINS:
 
-                if (filter.getAttribute().getCaseExact())
-                    obj = Filters.regex(aname,".*"+filter.asQuotedString()+".*");
+                if (caseExact)
+                    obj = Filters.regex(aname,filter.asQuotedString());
                 else
-                    obj = Filters.regex(aname,".*"+filter.asQuotedString()+".*","i");
+                    obj = Filters.regex(aname,filter.asQuotedString(),"i");
                 if (negate)
                     obj = Filters.not(obj);
                 break;
 
             case AttributeFilter.FILTEROP_STARTSWITH:
 
-                if (filter.getAttribute().getCaseExact())
-                    obj = Filters.regex(aname,"^" + filter.asQuotedString()+".*");
+                if (caseExact)
+                    obj = Filters.regex(aname,"^" + filter.asQuotedString());
                 else
-                    obj = Filters.regex(aname,"^" + filter.asQuotedString()+".*","i");
+                    obj = Filters.regex(aname,"^" + filter.asQuotedString(),"i");
 
                 if (negate)
                     obj = Filters.not(obj);
@@ -100,10 +136,10 @@ public class MongoFilterMapper {
 
             case AttributeFilter.FILTEROP_ENDSWITH:
 
-                if (filter.getAttribute().getCaseExact())
-                    obj = Filters.regex(aname,".*"+filter.asQuotedString()+"$");
+                if (caseExact)
+                    obj = Filters.regex(aname,filter.asQuotedString()+"$");
                 else
-                    obj = Filters.regex(aname,".*"+filter.asQuotedString()+"$","i");
+                    obj = Filters.regex(aname,filter.asQuotedString()+"$","i");
 
                 if (negate)
                     obj = Filters.not(obj);
@@ -148,34 +184,17 @@ public class MongoFilterMapper {
         return obj;
     }
 
-    public static Bson mapFilter(AttributeFilter filter, boolean negate, boolean isValPath)
+    public static Bson mapFilter(AttributeFilter filter, boolean negate, boolean isValPath, boolean collated)
             throws BadFilterException {
         Bson obj = null;
         Attribute attr = filter.getAttribute();
-        String aname;
-        if (isValPath)
-            aname = attr.getName();
-        else
-            aname = attr.getRelativePath();
-
-        if (aname.contains("$ref"))
-            aname = aname.replace("$ref","href");
-        if (aname.equalsIgnoreCase("id"))
-            aname = "_id";
-
-        if (filter.isExtensionAttribute()) {
-            // In order for the mongo query to work, the extensionId object has to be added to the path.
-            String extensionIdPrefix = MongoMapUtil.mapExtensionId(attr.getSchema());
-            aname = extensionIdPrefix + "." + aname;
-        }
-
-        //String aname = attr.getRelativePath();
+        String aname = mapFieldName(attr, isValPath, filter.isExtensionAttribute());
 
         switch (attr.getType()) {
 
             case Attribute.TYPE_Reference:
             case Attribute.TYPE_String:
-                return mapStringType(aname,filter,negate);
+                return mapStringType(aname,filter,negate,collated);
 
 
             case Attribute.TYPE_Binary:
@@ -258,7 +277,7 @@ public class MongoFilterMapper {
             case Attribute.TYPE_Complex: {
                 // without a sub attribute specified, use the default "value" sub-attribute
                 aname = aname + ".value";
-                return mapStringType(aname,filter,negate);
+                return mapStringType(aname,filter,negate,collated);
             }
 
             case Attribute.TYPE_Date: {
@@ -460,48 +479,233 @@ public class MongoFilterMapper {
         return null;
     }
 
-    public static Bson mapFilter(PrecedenceFilter filter, boolean negate, boolean isValPath)
+    /**
+     * Maps a SCIM attribute to the field path used in the Mongo document.
+     * @param attr        The attribute
+     * @param isValPath   True when the attribute is matched within a value path filter (the path is relative to the
+     *                    parent value)
+     * @param isExtension True when the attribute is defined by an extension schema of the resource type
+     * @return The Mongo field path
+     */
+    public static String mapFieldName(Attribute attr, boolean isValPath, boolean isExtension) {
+        String aname;
+        if (isValPath)
+            aname = attr.getName();
+        else
+            aname = attr.getRelativePath();
+
+        if (aname.contains("$ref"))
+            aname = aname.replace("$ref","href");
+        if (aname.equalsIgnoreCase("id"))
+            aname = "_id";
+
+        if (isExtension) {
+            // In order for the mongo query to work, the extensionId object has to be added to the path.
+            String extensionIdPrefix = MongoMapUtil.mapExtensionId(attr.getSchema());
+            aname = extensionIdPrefix + "." + aname;
+        }
+        return aname;
+    }
+
+    /**
+     * Maps a value path filter to a condition on a single value of a multi-valued attribute, as used by a $pull or by
+     * the array filters of an update.
+     * @param filter     The value path filter (its attributes are sub-attributes of the multi-valued attribute)
+     * @param identifier The identifier the update path uses for matched values (e.g. "e0" in "emails.$[e0].value"),
+     *                   or null for a condition on the value itself
+     * @return The condition
+     */
+    public static BsonDocument mapElementFilter(Filter filter, String identifier)
+            throws ScimException, BackendException {
+        BsonDocument doc = mapFilter(filter, false, true)
+                .toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+        if (identifier == null)
+            return doc;
+        return prefixFields(doc, identifier + ".");
+    }
+
+    private static BsonDocument prefixFields(BsonDocument doc, String prefix) {
+        BsonDocument mapped = new BsonDocument();
+        for (Map.Entry<String, BsonValue> entry : doc.entrySet()) {
+            String key = entry.getKey();
+            BsonValue value = entry.getValue();
+            if (!key.startsWith("$")) {
+                mapped.append(prefix + key, value);
+                continue;
+            }
+            // logical operators ($and, $or, $nor) hold a list of conditions
+            if (value.isArray()) {
+                BsonArray items = new BsonArray();
+                for (BsonValue item : value.asArray())
+                    items.add(item.isDocument() ? prefixFields(item.asDocument(), prefix) : item);
+                value = items;
+            }
+            mapped.append(key, value);
+        }
+        return mapped;
+    }
+
+    /**
+     * Checks whether a mapped filter keeps its meaning when the query runs with a case insensitive collation (e.g. to
+     * sort case insensitive strings). A collation changes how strings compare with eq, ne and range operators, so
+     * these must not be used with case exact attributes. Regular expressions are not affected by collation.
+     * @param filter The SCIM filter, or null
+     * @return true if the query may use a case insensitive collation
+     */
+    public static boolean isCollationSafe(Filter filter) {
+        if (filter == null)
+            return true;
+        if (filter instanceof LogicFilter)
+            return isCollationSafe(((LogicFilter) filter).getValue1())
+                    && isCollationSafe(((LogicFilter) filter).getValue2());
+        if (filter instanceof PrecedenceFilter)
+            return isCollationSafe(((PrecedenceFilter) filter).getChildFilter());
+        if (filter instanceof ValuePathFilter)
+            return isCollationSafe(((ValuePathFilter) filter).getValueFilter());
+        if (!(filter instanceof AttributeFilter))
+            return false;
+
+        Attribute attr = ((AttributeFilter) filter).getAttribute();
+        switch (attr.getType()) {
+            case Attribute.TYPE_Reference:
+            case Attribute.TYPE_String:
+            case Attribute.TYPE_Complex:
+                break;
+            default:
+                return true;
+        }
+        if (!attr.getCaseExact() || attr.getName().equalsIgnoreCase("id"))
+            return true;
+        return !isComparison(((AttributeFilter) filter).getOperator());
+    }
+
+    /**
+     * Checks whether a search should run with the {@link #CASE_IGNORE} collation: the filter compares a case
+     * insensitive attribute with eq, ne or a range operator, which can then use the attribute's case insensitive index,
+     * and the collation does not change the meaning of the rest of the filter (see {@link #isCollationSafe(Filter)}).
+     * @param filter The SCIM filter, or null
+     * @return true if the filter is to be mapped for, and run with, the case insensitive collation
+     */
+    public static boolean useCaseIgnoreCollation(Filter filter) {
+        return hasCaseIgnoreComparison(filter) && isCollationSafe(filter);
+    }
+
+    private static boolean hasCaseIgnoreComparison(Filter filter) {
+        if (filter instanceof LogicFilter)
+            return hasCaseIgnoreComparison(((LogicFilter) filter).getValue1())
+                    || hasCaseIgnoreComparison(((LogicFilter) filter).getValue2());
+        if (filter instanceof PrecedenceFilter)
+            return hasCaseIgnoreComparison(((PrecedenceFilter) filter).getChildFilter());
+        if (filter instanceof ValuePathFilter)
+            return hasCaseIgnoreComparison(((ValuePathFilter) filter).getValueFilter());
+        if (!(filter instanceof AttributeFilter))
+            return false;
+        AttributeFilter afilter = (AttributeFilter) filter;
+        return isCaseIgnore(afilter.getAttribute()) && isComparison(afilter.getOperator());
+    }
+
+    private static boolean isComparison(String operator) {
+        switch (operator) {
+            case AttributeFilter.FILTEROP_EQ:
+            case AttributeFilter.FILTEROP_NE:
+            case AttributeFilter.FILTEROP_GREATER:
+            case AttributeFilter.FILTEROP_LESS:
+            case AttributeFilter.FILTEROP_GREATEROREQUAL:
+            case AttributeFilter.FILTEROP_LESSOREQUAL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param attr An attribute
+     * @return true if the attribute holds strings compared without regard to case (for a complex attribute, its
+     * "value" sub-attribute), which are indexed with the {@link #CASE_IGNORE} collation
+     */
+    public static boolean isCaseIgnore(Attribute attr) {
+        switch (attr.getType()) {
+            case Attribute.TYPE_Reference:
+            case Attribute.TYPE_String:
+            case Attribute.TYPE_Complex:
+                return !attr.getCaseExact();
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Adds the top level attributes referenced by a filter to a set, e.g. so that they are loaded when the filter is
+     * evaluated against a partially loaded resource.
+     * @param filter The SCIM filter, or null
+     * @param attrs  The set the attributes are added to
+     */
+    public static void collectAttributes(Filter filter, Set<Attribute> attrs) {
+        if (filter == null)
+            return;
+        if (filter instanceof LogicFilter) {
+            collectAttributes(((LogicFilter) filter).getValue1(), attrs);
+            collectAttributes(((LogicFilter) filter).getValue2(), attrs);
+        } else if (filter instanceof PrecedenceFilter)
+            collectAttributes(((PrecedenceFilter) filter).getChildFilter(), attrs);
+        else if (filter instanceof ValuePathFilter)
+            attrs.add(getRootAttribute(((ValuePathFilter) filter).getAttribute()));
+        else if (filter instanceof AttributeFilter)
+            attrs.add(getRootAttribute(((AttributeFilter) filter).getAttribute()));
+    }
+
+    /**
+     * @param attr An attribute or sub-attribute
+     * @return The top level attribute containing the attribute
+     */
+    public static Attribute getRootAttribute(Attribute attr) {
+        while (attr.getParent() != null)
+            attr = attr.getParent();
+        return attr;
+    }
+
+    public static Bson mapFilter(PrecedenceFilter filter, boolean negate, boolean isValPath, boolean collated)
             throws ScimException, BackendException {
 
         return MongoFilterMapper.mapFilter(filter.getChildFilter(),
-                (negate != filter.isNot()), isValPath);
+                (negate != filter.isNot()), isValPath, collated);
 
     }
 
-    public static Bson mapFilter(LogicFilter filter, boolean negate, boolean isValPath)
+    public static Bson mapFilter(LogicFilter filter, boolean negate, boolean isValPath, boolean collated)
             throws ScimException, BackendException {
         Bson obj;
 
         if (filter.isAnd()) {
             if (negate)  // NOT A AND NOT B
-                obj = Filters.nor(MongoFilterMapper.mapFilter(filter.getValue1(), false, isValPath),MongoFilterMapper.mapFilter(filter.getValue2(), false, isValPath));
+                obj = Filters.nor(MongoFilterMapper.mapFilter(filter.getValue1(), false, isValPath, collated),MongoFilterMapper.mapFilter(filter.getValue2(), false, isValPath, collated));
             else
-                obj = Filters.and(MongoFilterMapper.mapFilter(filter.getValue1(), false, isValPath),MongoFilterMapper.mapFilter(filter.getValue2(), false, isValPath));
+                obj = Filters.and(MongoFilterMapper.mapFilter(filter.getValue1(), false, isValPath, collated),MongoFilterMapper.mapFilter(filter.getValue2(), false, isValPath, collated));
         } else
             if (negate)  // NAND:  NOT A OR NOT B
-                obj = Filters.or(MongoFilterMapper.mapFilter(filter.getValue1(), true, isValPath),MongoFilterMapper.mapFilter(filter.getValue2(), true, isValPath));
+                obj = Filters.or(MongoFilterMapper.mapFilter(filter.getValue1(), true, isValPath, collated),MongoFilterMapper.mapFilter(filter.getValue2(), true, isValPath, collated));
             else
-                obj = Filters.or(MongoFilterMapper.mapFilter(filter.getValue1(), false, isValPath),MongoFilterMapper.mapFilter(filter.getValue2(), false, isValPath));
+                obj = Filters.or(MongoFilterMapper.mapFilter(filter.getValue1(), false, isValPath, collated),MongoFilterMapper.mapFilter(filter.getValue2(), false, isValPath, collated));
 
         return obj;
 
     }
 
-    public static Bson mapFilter(ValuePathFilter filter)
+    public static Bson mapFilter(ValuePathFilter filter, boolean collated)
             throws ScimException, BackendException {
 
         String item = filter.getAttribute().getRelativePath();
-        Bson mfilter = MongoFilterMapper.mapFilter(filter.getValueFilter(),false,true);
+        Bson mfilter = MongoFilterMapper.mapFilter(filter.getValueFilter(),false,true,collated);
         return Filters.elemMatch(item,mfilter);
     }
 
-    public static Bson mapFilter(ValuePathFilter filter, boolean invert)
+    public static Bson mapFilter(ValuePathFilter filter, boolean invert, boolean collated)
             throws ScimException, BackendException {
 
         if (invert)
-            return Filters.not(mapFilter(filter));
+            return Filters.not(mapFilter(filter, collated));
         else
-            return mapFilter(filter);
+            return mapFilter(filter, collated);
 
     }
 
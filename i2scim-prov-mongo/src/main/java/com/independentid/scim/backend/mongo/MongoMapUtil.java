@@ -23,9 +23,11 @@ import com.independentid.scim.core.err.ScimException;
 import com.independentid.scim.resource.*;
 import com.independentid.scim.schema.*;
 import com.independentid.scim.serializer.JsonUtil;
+import org.bson.BsonReader;
+import org.bson.BsonType;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.internal.Base64;
-import org.bson.json.JsonWriterSettings;
 import org.bson.types.Binary;
 import org.bson.types.Decimal128;
 import org.bson.types.ObjectId;
@@ -43,7 +45,6 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.text.ParseException;
 import java.util.*;
-import java.util.regex.Pattern;
 
 
 /**
@@ -54,8 +55,6 @@ import java.util.regex.Pattern;
 public class MongoMapUtil {
     private final static Logger logger = LoggerFactory.getLogger(MongoMapUtil.class);
 
-    public final static Pattern hrefPattern = Pattern.compile("\\\"href\\\"");
-
     @Inject
     SchemaManager schemaManager;
 
@@ -252,32 +251,6 @@ public class MongoMapUtil {
         return doc;
     }
 
-    /**
-     * Generates and converts a SCIM JsonNode value. Leaves the original document unmodified. Performs necessary "_id"
-     * to "id" conversion.
-     * @param doc The original Mongo Document to be converted
-     * @return a {@link JsonNode} object containing SCIM object (ready for using in ScimResource constructor)
-     * @throws JsonProcessingException May be thrown by Jackson JSON parser.
-     */
-    public static JsonNode toScimJsonNode(final Document doc) throws JsonProcessingException {
-
-        Document copy = Document.parse(doc.toJson());
-        copy.put("id", doc.get("_id").toString());
-        copy.remove("_id");
-
-        // Convert href attributes back to $ref
-        String jres = copy.toJson(JsonWriterSettings
-                .builder()
-                .dateTimeConverter(new MongoDateConverter())
-                .build());
-
-        if (jres.contains("\"href\""))
-            jres = hrefPattern.matcher(jres).replaceAll("\"\\$ref\"");
-        //jres = jres.replaceAll("\\\"href\\\"","\"$ref\"");
-
-        return JsonUtil.getJsonTree(jres);
-    }
-
     /**
      * Takes a container BSON Document and maps the requested Attribute to a SCIM Value.
      * @param attr  An Attribute specifying the attribute to be mapped from the Document
@@ -355,25 +328,7 @@ public class MongoMapUtil {
                 val = mapBson(attr, containerDoc.getInteger(name));
                 break;
             case Attribute.TYPE_Reference:
-                String newUri = containerDoc.getString(name);
-                URI uri;
-                try {
-                    if (newUri.startsWith("urn:"))
-                        uri = new URI(newUri);
-                    else {
-                        // the value is some form of URL
-                        URL url;
-                        if (newUri.startsWith("/"))
-                            url = new URL("http", "localhost", newUri);
-                        else
-                            url = new URL(newUri);
-                        uri = url.toURI();
-                    }
-                } catch (MalformedURLException | URISyntaxException e) {
-
-                    throw new SchemaException("Invalid url parsed: " + newUri + " for attribute: " + attr.getPath(), e);
-                }
-                val = mapBson(attr, uri);
+                val = mapBson(attr, mapReference(attr, containerDoc.getString(name)));
                 break;
             case Attribute.TYPE_Decimal:
                 Object bval = containerDoc.get(name);
@@ -387,6 +342,189 @@ public class MongoMapUtil {
         return val;
     }
 
+    private static URI mapReference(Attribute attr, String newUri) throws SchemaException {
+        try {
+            if (newUri.startsWith("urn:"))
+                return new URI(newUri);
+            // the value is some form of URL
+            URL url;
+            if (newUri.startsWith("/"))
+                url = new URL("http", "localhost", newUri);
+            else
+                url = new URL(newUri);
+            return url.toURI();
+        } catch (MalformedURLException | URISyntaxException e) {
+
+            throw new SchemaException("Invalid url parsed: " + newUri + " for attribute: " + attr.getPath(), e);
+        }
+    }
+
+    /**
+     * Reads the value of an attribute straight from a BSON reader, producing the same {@link Value} as {@link
+     * #mapBsonDocument(Attribute, Document)} without first decoding the value into a {@link Document}.
+     * @param attr   The Attribute the value belongs to
+     * @param reader A reader positioned at the value (its name has been read)
+     * @return A SCIM {@link Value} object, or null if the value could not be mapped (the value is skipped)
+     * @throws SchemaException thrown due to an invalid schema or malformed attribute error
+     */
+    public static Value readBson(final Attribute attr, final BsonReader reader) throws SchemaException {
+        BsonType btype = reader.getCurrentBsonType();
+        if (attr.isMultiValued()) {
+            if (btype == BsonType.ARRAY)
+                return readBsonArray(attr, reader);
+            return readBsonElement(attr, reader);
+        }
+
+        switch (attr.getType()) {
+            case Attribute.TYPE_String:
+                if (btype == BsonType.STRING)
+                    return new StringValue(attr, reader.readString());
+                break;
+            case Attribute.TYPE_Complex:
+                if (btype == BsonType.DOCUMENT)
+                    return readBsonComplex(attr, reader);
+                break;
+            case Attribute.TYPE_Boolean:
+                if (btype == BsonType.BOOLEAN)
+                    return new BooleanValue(attr, reader.readBoolean());
+                break;
+            case Attribute.TYPE_Date:
+                if (btype == BsonType.DATE_TIME)
+                    return new DateValue(attr, new Date(reader.readDateTime()));
+                break;
+            case Attribute.TYPE_Binary:
+                if (btype == BsonType.STRING)
+                    return new BinaryValue(attr, Base64.decode(reader.readString()));
+                break;
+            case Attribute.TYPE_Integer:
+                if (btype == BsonType.INT32)
+                    return new IntegerValue(attr, reader.readInt32());
+                break;
+            case Attribute.TYPE_Reference:
+                if (btype == BsonType.STRING)
+                    return new ReferenceValue(attr, mapReference(attr, reader.readString()));
+                break;
+            case Attribute.TYPE_Decimal:
+                if (btype == BsonType.STRING)
+                    return new DecimalValue(attr, new BigDecimal(reader.readString()));
+                break;
+        }
+        // Map any other stored form by its BSON type
+        return readBsonElement(attr, reader);
+    }
+
+    /**
+     * Reads a value by its BSON type, as {@link #mapBson(Attribute, Object)} maps the values of arrays and complex
+     * attributes.
+     */
+    private static Value readBsonElement(final Attribute attr, final BsonReader reader) throws SchemaException {
+        switch (reader.getCurrentBsonType()) {
+            case STRING:
+                return new StringValue(attr, reader.readString());
+            case ARRAY:
+                return readBsonArray(attr, reader);
+            case BOOLEAN:
+                return new BooleanValue(attr, reader.readBoolean());
+            case DATE_TIME:
+                return new DateValue(attr, new Date(reader.readDateTime()));
+            case DECIMAL128:
+                return new DecimalValue(attr, reader.readDecimal128().bigDecimalValue());
+            case INT32:
+                return new IntegerValue(attr, reader.readInt32());
+            case BINARY:
+                return new BinaryValue(attr, reader.readBinaryData().getData());
+            case DOCUMENT:
+                if (attr.getType().equals(Attribute.TYPE_Complex))
+                    return readBsonComplex(attr, reader);
+                // a document for a non-complex attribute is not mapped
+            default:
+                logger.warn("Unmapped attribute type: " + attr.getName() + ", BSON type: " + reader.getCurrentBsonType());
+                reader.skipValue();
+                return null;
+        }
+    }
+
+    private static MultiValue readBsonArray(final Attribute attr, final BsonReader reader) throws SchemaException {
+        List<Value> mvals = new ArrayList<>();
+        reader.readStartArray();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            Value val = readBsonElement(attr, reader);
+            if (val != null)
+                mvals.add(val);
+        }
+        reader.readEndArray();
+        return new MultiValue(attr, mvals);
+    }
+
+    private static ComplexValue readBsonComplex(final Attribute attr, final BsonReader reader) throws SchemaException {
+        Map<String, Attribute> attrs = attr.getSubAttributesMap();
+        Map<Attribute, Value> read = new HashMap<>();
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String docName = reader.readName();
+            Attribute sattr = attrs.get(docName.equals("href") ? "$ref" : docName);
+            if (sattr == null) {
+                reader.skipValue();
+                continue;
+            }
+            Value val = readBsonElement(sattr, reader);
+            if (val != null)
+                read.put(sattr, val);
+        }
+        reader.readEndDocument();
+
+        // values are kept in schema order
+        LinkedHashMap<Attribute, Value> vals = new LinkedHashMap<>();
+        for (Attribute sattr : attrs.values())
+            if (read.containsKey(sattr))
+                vals.put(sattr, read.get(sattr));
+        return new ComplexValue(attr, vals);
+    }
+
+    /**
+     * Reads an extension schema object (see {@link #mapBsonExtension(Schema, Document)}) straight from a BSON reader.
+     * @param schema The extension {@link Schema}
+     * @param reader A reader positioned at the extension document (its name has been read)
+     * @return A SCIM ExtensionValues object
+     */
+    public static ExtensionValues readBsonExtension(Schema schema, final BsonReader reader) {
+        Map<String, Attribute> fields = mapFieldNames(schema.getAttributes());
+        Map<Attribute, Value> read = new HashMap<>();
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            Attribute attr = fields.get(reader.readName());
+            if (attr == null) {
+                reader.skipValue();
+                continue;
+            }
+            try {
+                Value val = readBson(attr, reader);
+                if (val != null)
+                    read.put(attr, val);
+            } catch (SchemaException e) {
+                logger.warn("Error parsing Mongo document: " + e.getLocalizedMessage(), e);
+            }
+        }
+        reader.readEndDocument();
+
+        LinkedHashMap<Attribute, Value> valMap = new LinkedHashMap<>();
+        for (Attribute attr : schema.getAttributes())
+            if (read.containsKey(attr))
+                valMap.put(attr, read.get(attr));
+        return new ExtensionValues(schema, valMap);
+    }
+
+    /**
+     * @param attrs Attributes stored as document fields
+     * @return The attributes keyed by their document field name ($ref is stored as href)
+     */
+    public static Map<String, Attribute> mapFieldNames(Attribute[] attrs) {
+        Map<String, Attribute> fields = new HashMap<>();
+        for (Attribute attr : attrs)
+            fields.put(attr.getName().equals("$ref") ? "href" : attr.getName(), attr);
+        return fields;
+    }
+
     public static IntegerValue mapBson(Attribute attr, Integer value) {
         return new IntegerValue(attr, value);
     }
@@ -500,8 +638,18 @@ public class MongoMapUtil {
     }
 
     public ScimResource mapScimResource(Document res, String type) throws ScimException, BackendException {
+        return mapScimResource(res, type, false);
+    }
+
+    /**
+     * @param res     The Mongo document
+     * @param type    The container (resource type path) of the document
+     * @param partial True if the document was read with a projection (see {@link MongoScimResource#isPartial()})
+     * @return The mapped resource
+     */
+    public ScimResource mapScimResource(Document res, String type, boolean partial) throws ScimException, BackendException {
         try {
-            return new MongoScimResource(schemaManager, res, type);
+            return new MongoScimResource(schemaManager, res, type, partial);
 
         } catch (SchemaException | ParseException e) {
             throw new BackendException(
@@ -511,6 +659,24 @@ public class MongoMapUtil {
 
     }
 
+    /**
+     * Maps a resource read as raw BSON, decoding values directly from the BSON bytes.
+     * @param res     The raw Mongo document
+     * @param type    The container (resource type path) of the document
+     * @param partial True if the document was read with a projection (see {@link MongoScimResource#isPartial()})
+     * @return The mapped resource
+     */
+    public ScimResource mapScimResource(RawBsonDocument res, String type, boolean partial) throws ScimException,
+            BackendException {
+        try {
+            return new MongoScimResource(schemaManager, res, type, partial);
+        } catch (SchemaException | ParseException e) {
+            throw new BackendException(
+                    "Unknown parsing exception parsing data from MongoDB."
+                            + e.getMessage(), e);
+        }
+    }
+
     public Schema mapSchema(Document doc) throws SchemaException, JsonProcessingException {
         JsonNode jdoc = JsonUtil.getJsonTree(doc.toJson());
         return new Schema(schemaManager, jdoc);
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2021.  Independent Identity Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.independentid.scim.backend.mongo;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.independentid.scim.backend.BackendException;
+import com.independentid.scim.core.err.ScimException;
+import com.independentid.scim.protocol.*;
+import com.independentid.scim.resource.ComplexValue;
+import com.independentid.scim.resource.MultiValue;
+import com.independentid.scim.resource.ScimResource;
+import com.independentid.scim.resource.Value;
+import com.independentid.scim.resource.ValueUtil;
+import com.independentid.scim.schema.Attribute;
+import com.independentid.scim.schema.ResourceType;
+import com.independentid.scim.schema.SchemaException;
+import com.independentid.scim.schema.SchemaManager;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+import org.bson.conversions.Bson;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Translates a SCIM {@link JsonPatchRequest} into MongoDB update operators ($set, $unset, $addToSet and $pull) so that
+ * a patch can be applied by the database without loading and replacing the whole document. Values of a multi-valued
+ * attribute selected by a value path filter are updated through array filters (or removed with $pull). As when the
+ * patch is applied to a loaded {@link ScimResource}, every matching value is affected (RFC7644 Sec 3.5.2). When an operation's outcome depends on
+ * the stored values in a way an update cannot express (e.g. a patch without a path, a virtual attribute, or a new
+ * primary value), {@link #mapRequest(JsonPatchRequest)} returns false and the patch must be applied to the loaded
+ * resource instead.
+ */
+public class MongoPatchMapper {
+
+    private final SchemaManager schemaManager;
+    private final ResourceType resType;
+    private final RequestCtx ctx;
+    private final ScimResource target;
+
+    private final List<Bson> updates = new ArrayList<>();
+    private final List<Bson> arrayFilters = new ArrayList<>();
+    private final List<Bson> conditions = new ArrayList<>();
+    private final Set<String> fields = new HashSet<>();
+
+    public MongoPatchMapper(SchemaManager schemaManager, ResourceType resType, RequestCtx ctx) {
+        this.schemaManager = schemaManager;
+        this.resType = resType;
+        this.ctx = ctx;
+        // Used only to resolve paths and parse values; no attributes of the stored resource are needed
+        this.target = new ScimResource(schemaManager);
+        this.target.setResourceType(resType.getTypePath());
+    }
+
+    /**
+     * Maps each operation of the request to an update.
+     * @param req The SCIM patch request
+     * @return true if every operation was mapped, false if the patch must be applied to the loaded resource
+     * @throws ScimException    if an operation path is invalid
+     * @throws BackendException if a value path filter cannot be mapped
+     */
+    public boolean mapRequest(JsonPatchRequest req) throws ScimException, BackendException {
+        Iterator<JsonPatchOp> iter = req.iterator();
+        while (iter.hasNext())
+            if (!mapOperation(iter.next()))
+                return false;
+        return !updates.isEmpty();
+    }
+
+    /**
+     * @return The update operators, to be combined into one update
+     */
+    public List<Bson> getUpdates() {
+        return updates;
+    }
+
+    /**
+     * @return The array filters referenced by the updates (e.g. "emails.$[e0].value")
+     */
+    public List<Bson> getArrayFilters() {
+        return arrayFilters;
+    }
+
+    /**
+     * @return Conditions the document must meet for the update to apply. SCIM requires a value path with a
+     * sub-attribute to match at least one value, so these are added to the update query.
+     */
+    public List<Bson> getConditions() {
+        return conditions;
+    }
+
+    private boolean mapOperation(JsonPatchOp op) throws ScimException, BackendException {
+        // A patch without a path merges or replaces the resource's attributes
+        if (op.path == null || op.path.isEmpty())
+            return false;
+
+        JsonPath jpath = new JsonPath(target, op, ctx);
+        Attribute attr = jpath.getTargetAttribute();
+        Attribute root = MongoFilterMapper.getRootAttribute(attr);
+        if (root.getSchema().equals(ScimParams.SCHEMA_SCHEMA_Common)
+                || schemaManager.isVirtualAttr(root) || schemaManager.isVirtualAttr(attr))
+            return false;
+
+        boolean isExtension = resType.getSchemaExtensions().containsKey(root.getSchema());
+        // Mongo rejects an update that changes the same field with more than one operator
+        if (!fields.add(MongoFilterMapper.mapFieldName(root, false, isExtension)))
+            return false;
+        String field = MongoFilterMapper.mapFieldName(attr, false, isExtension);
+        Filter valueFilter = jpath.getTargetValueFilter();
+
+        if (!jpath.isMultiValue()) {
+            if (valueFilter != null)
+                return false;
+            switch (op.op) {
+                case JsonPatchOp.OP_ACTION_ADD:
+                case JsonPatchOp.OP_ACTION_REPLACE:
+                    Value val = parseValue(attr, op.jsonValue);
+                    if (val == null)
+                        return false;
+                    updates.add(Updates.set(field, MongoMapUtil.mapValue(val)));
+                    return true;
+                case JsonPatchOp.OP_ACTION_REMOVE:
+                    // removing the last sub-attribute also removes the parent value, which $unset does not do
+                    if (attr.isChild())
+                        return false;
+                    updates.add(Updates.unset(field));
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        if (!attr.getType().equals(Attribute.TYPE_Complex))
+            return false;
+
+        if (valueFilter == null) {
+            switch (op.op) {
+                case JsonPatchOp.OP_ACTION_ADD:
+                    Value val = parseValue(attr, op.jsonValue);
+                    if (val == null)
+                        return false;
+                    List<Object> items = new ArrayList<>();
+                    for (Value item : val instanceof MultiValue ? ((MultiValue) val).getRawValue() : new Value[]{val}) {
+                        // a new primary value resets the primary flag of the existing values
+                        if (item instanceof ComplexValue && ((ComplexValue) item).isPrimary())
+                            return false;
+                        items.add(MongoMapUtil.mapValue(item));
+                    }
+                    // multi-valued attributes hold distinct values
+                    updates.add(Updates.addEachToSet(field, items));
+                    return true;
+                case JsonPatchOp.OP_ACTION_REMOVE:
+                    updates.add(Updates.unset(field));
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        // value path filters are mapped relative to the value, which does not hold for extension attributes
+        if (isExtension)
+            return false;
+
+        if (!jpath.hasVpathSubAttr()) {
+            if (!op.op.equals(JsonPatchOp.OP_ACTION_REMOVE))
+                return false;
+            updates.add(Updates.pull(field, MongoFilterMapper.mapElementFilter(valueFilter, null)));
+            return true;
+        }
+
+        Attribute subAttr = jpath.getSubAttribute();
+        if (subAttr == null || subAttr.getName().equals("primary"))
+            return false;
+        if (op.jsonValue != null && op.jsonValue.isObject())
+            return false;
+
+        String identifier = "e" + arrayFilters.size();
+        String subField = field + ".$[" + identifier + "]." + MongoFilterMapper.mapFieldName(subAttr, true, false);
+        switch (op.op) {
+            case JsonPatchOp.OP_ACTION_ADD:
+            case JsonPatchOp.OP_ACTION_REPLACE:
+                Value val = parseValue(subAttr, op.jsonValue);
+                if (val == null)
+                    return false;
+                updates.add(Updates.set(subField, MongoMapUtil.mapValue(val)));
+                break;
+            case JsonPatchOp.OP_ACTION_REMOVE:
+                updates.add(Updates.unset(subField));
+                break;
+            default:
+                return false;
+        }
+        arrayFilters.add(MongoFilterMapper.mapElementFilter(valueFilter, identifier));
+        conditions.add(Filters.elemMatch(field, MongoFilterMapper.mapFilter(valueFilter, false, true)));
+        return true;
+    }
+
+    /**
+     * Parses a patch value. Parsing errors are left to be reported when the patch is applied to the loaded resource.
+     * @return The parsed value, or null if it could not be parsed
+     */
+    private Value parseValue(Attribute attr, JsonNode node) {
+        if (node == null)
+            return null;
+        try {
+            return ValueUtil.parseJson(target, attr, node, null);
+        } catch (SchemaException | ParseException e) {
+            return null;
+        }
+    }
+}
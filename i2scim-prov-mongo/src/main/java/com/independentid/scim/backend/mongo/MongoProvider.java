@@ -19,6 +19,7 @@ package com.independentid.scim.backend.mongo;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.independentid.scim.backend.BackendException;
 import com.independentid.scim.backend.IScimProvider;
+import com.independentid.scim.backend.TransactionFilter;
 import com.independentid.scim.core.ConfigMgr;
 import com.independentid.scim.core.err.*;
 import com.independentid.scim.protocol.*;
@@ -27,14 +28,23 @@ import com.independentid.scim.resource.PersistStateResource;
 import com.independentid.scim.resource.ScimResource;
 import com.independentid.scim.resource.TransactionRecord;
 import com.independentid.scim.schema.*;
+import com.mongodb.MongoCommandException;
 import com.mongodb.MongoWriteException;
 import com.mongodb.client.*;
+import com.mongodb.client.model.Collation;
+import com.mongodb.client.model.CountOptions;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
 import com.mongodb.client.model.IndexOptions;
 import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
 import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
 import io.quarkus.runtime.Startup;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
@@ -56,7 +66,10 @@ import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
 //@ApplicationScoped
 @Singleton
@@ -105,6 +118,21 @@ public class MongoProvider implements IScimProvider {
 
 	@ConfigProperty(name = ConfigMgr.SCIM_QUERY_MAX_RESULTSIZE, defaultValue= ConfigMgr.SCIM_QUERY_MAX_RESULTS_DEFAULT)
 	protected int maxResults;
+
+	@ConfigProperty(name = "scim.prov.mongo.count.max", defaultValue = "0")
+	protected int countMax;
+
+	@ConfigProperty(name = "scim.prov.mongo.txn.filter.hours", defaultValue = "0")
+	protected int txnFilterHours;
+
+	@ConfigProperty(name = "scim.prov.mongo.txn.filter.expected", defaultValue = "100000")
+	protected int txnFilterExpected;
+
+	// Replicated servers record transactions the filter never sees
+	@ConfigProperty(name = "scim.kafka.rep.enable", defaultValue = "false")
+	protected boolean replicationEnabled;
+
+	volatile TransactionFilter txnFilter = null;
 	
 	//@Value("${scim.mongodb.indexes: User:userName,User:emails.value,Group:displayName}")
 
@@ -169,6 +197,14 @@ public class MongoProvider implements IScimProvider {
 			}
 		}
 
+		if (txnFilterHours > 0) {
+			if (replicationEnabled)
+				logger.error("Transaction filter disabled: scim.prov.mongo.txn.filter.hours requires this server to be "
+						+ "the only database writer but scim.kafka.rep.enable is true.");
+			else
+				initTransactionFilter();
+		}
+
 		if (mclient != null) {
 			this.ready = true;
 			logger.info("====== SCIM Mongo Provider initialized =======");
@@ -263,6 +299,8 @@ public class MongoProvider implements IScimProvider {
 			throws ScimException {
 	
 		//Document orig = replacementResource.getOriginalDBObject();
+		if (replacementResource.isPartial())
+			throw new InternalException("A partially loaded resource cannot replace the stored resource");
 		ctx.setEncodeExtensions(true);
 		// Locate the correct Mongo Collection
 		String type = ctx.getResourceContainer();
@@ -340,6 +378,17 @@ public class MongoProvider implements IScimProvider {
 	@Override
 	public ScimResource getResource(RequestCtx ctx) throws ScimException,
 			BackendException {
+		return getResource(ctx, false);
+	}
+
+	/**
+	 * @param ctx     The SCIM request context
+	 * @param project True to read only the attributes needed to answer the request (see {@link #mapProjection}). The
+	 *                resource returned is then partial and must not be stored.
+	 * @return The requested ScimResource or null if not matched
+	 */
+	private ScimResource getResource(RequestCtx ctx, boolean project) throws ScimException,
+			BackendException {
 		//ctx.setEncodeExtensions(true);
 		Document query;
 				
@@ -352,14 +401,15 @@ public class MongoProvider implements IScimProvider {
 			
 		query = new Document();
 		
-		MongoCollection<Document> col = this.scimDb.getCollection(type);
+		MongoCollection<RawBsonDocument> col = this.scimDb.getCollection(type, RawBsonDocument.class);
 
 		if (ConfigResponse.isConfigEndpoint(ctx.getResourceContainer())) {
 			query.put("id",ctx.getPathId());
 		} else
 			query.put("_id", new ObjectId(ctx.getPathId()));
-		FindIterable<Document> iter = col.find(query);
-		Document res = iter.first();
+		Bson projection = project ? mapProjection(ctx, type) : null;
+		FindIterable<RawBsonDocument> iter = col.find(query).projection(projection);
+		RawBsonDocument res = iter.first();
 
 		if (res == null) {
 			return null;
@@ -367,7 +417,7 @@ public class MongoProvider implements IScimProvider {
 
 		//String json = JSON.serialize(res);
 		
-		ScimResource sres = mapUtil.mapScimResource(res,type);
+		ScimResource sres = mapUtil.mapScimResource(res, type, projection != null);
 		if (Filter.checkMatch(sres,ctx))
 			return sres;
 		return null;
@@ -382,7 +432,7 @@ public class MongoProvider implements IScimProvider {
 		if (ctx.getPathId() != null) {
 			// Query for 1 object
 
-			ScimResource res = getResource(ctx);
+			ScimResource res = getResource(ctx, true);
 			if (res == null && ctx.hasNoClientFilter()) {
 				return new ScimResponse(ScimResponse.ST_NOTFOUND,null,null);
 			}
@@ -423,29 +473,37 @@ public class MongoProvider implements IScimProvider {
 
 		Bson query;
 		Filter filt = ctx.getFilter();
+		// Case insensitive comparisons run with the collation of the case insensitive indexes so they can use them
+		Collation collation = MongoFilterMapper.useCaseIgnoreCollation(filt) ? MongoFilterMapper.CASE_IGNORE : null;
 		if (filt == null)
 			query = new Document();
 		else
-			query = MongoFilterMapper.mapFilter(filt, false, false);
+			query = MongoFilterMapper.mapFilter(filt, false, false, collation != null);
 		if (logger.isDebugEnabled())
 			logger.debug("Query: "+query.toString());
 		// TODO mapFilter could do imprecise mapping to handle unindexed
 
+		ScimResponse pageResp = getPage(ctx, containers, query, collation);
+		if (pageResp != null)
+			return pageResp;
+
+		// Sorting could not be done by the database, so read all results and sort in memory
 		for (String type : containers) { // check one or more containers
-			MongoCollection<Document> col = this.scimDb.getCollection(type);
+			MongoCollection<RawBsonDocument> col = this.scimDb.getCollection(type, RawBsonDocument.class);
 
-			FindIterable<Document> fiter = col.find(query);
-			MongoCursor<Document> iter = fiter.iterator();
+			Bson projection = mapProjection(ctx, type);
+			FindIterable<RawBsonDocument> fiter = col.find(query).projection(projection).collation(collation);
+			MongoCursor<RawBsonDocument> iter = fiter.iterator();
 			// If there are no results return empty set.
 			if (!iter.hasNext())
 				continue; // do the next type
 				//return new ListResponse(ctx, maxResults);
 
 			while (iter.hasNext()) {
-				Document res = iter.next();
+				RawBsonDocument res = iter.next();
 
 				try {
-					ScimResource sres = mapUtil.mapScimResource(res, type);
+					ScimResource sres = mapUtil.mapScimResource(res, type, projection != null);
 
 					// if (Filter.checkMatch(sres, ctx))
 					vals.add(sres);
@@ -462,6 +520,163 @@ public class MongoProvider implements IScimProvider {
 		return new ListResponse(vals, ctx,maxResults);
 	}
 
+	/**
+	 * Answers a search by having the database sort and page the results so that only the requested page is read.
+	 * totalResults is obtained with countDocuments, which stops counting once countMax is exceeded.
+	 * @param ctx        The request
+	 * @param containers The containers to be searched
+	 * @param query      The mapped search filter
+	 * @param collation  The collation the filter was mapped for, or null
+	 * @return The response, or null when the results must be sorted in memory (a sort across several containers or a
+	 * case insensitive sort combined with a case exact filter)
+	 */
+	private ScimResponse getPage(RequestCtx ctx, List<String> containers, Bson query, Collation collation)
+			throws ScimException, BackendException {
+		Bson sort = Sorts.ascending("_id");  // gives a stable order when paging unsorted results
+		if (ctx.getSortBy() != null) {
+			if (containers.size() > 1)
+				return null;
+			ResourceType resType = schemaManager.getResourceTypeByPath(containers.get(0));
+			List<Bson> keys = new ArrayList<>();
+			boolean sortById = false;
+			boolean ignoreCase = false;
+			for (String sortAttr : ctx.getSortBy().split(",")) {
+				Attribute attr = schemaManager.findAttribute(sortAttr.trim(), ctx);
+				if (attr == null)
+					continue;  // unknown attributes are ignored as when sorting in memory
+				boolean isExtension = resType != null && resType.getSchemaExtensions().containsKey(attr.getSchema());
+				String field = MongoFilterMapper.mapFieldName(attr, false, isExtension);
+				String attrType = attr.getType();
+				if (attrType.equals(Attribute.TYPE_Complex))
+					field = field + ".value";
+				keys.add(ctx.isSortDescending() ? Sorts.descending(field) : Sorts.ascending(field));
+				sortById |= field.equals("_id");
+				if (MongoFilterMapper.isCaseIgnore(attr))
+					ignoreCase = true;
+			}
+			if (ignoreCase && collation == null) {
+				if (!MongoFilterMapper.isCollationSafe(ctx.getFilter()))
+					return null;
+				collation = MongoFilterMapper.CASE_IGNORE;
+			}
+			if (!sortById)
+				keys.add(sort);
+			sort = Sorts.orderBy(keys);
+		}
+
+		int skip = Math.max(ctx.getStartIndex() - 1, 0);
+		int count = ctx.isCountOnly() ? 0
+				: (ctx.getCount() == 0 || ctx.getCount() > maxResults ? maxResults : ctx.getCount());
+		int maxTotal = countMax > 0 ? countMax : Integer.MAX_VALUE;
+
+		ArrayList<ScimResource> page = new ArrayList<>();
+		long total = 0;
+		for (String type : containers) {
+			MongoCollection<RawBsonDocument> col = this.scimDb.getCollection(type, RawBsonDocument.class);
+			CountOptions countOpts = new CountOptions().collation(collation);
+			if (countMax > 0)
+				countOpts.limit((int) (maxTotal - total + 1));
+			long cnt = col.countDocuments(query, countOpts);
+
+			if (page.size() < count && total + cnt > skip) {
+				Bson projection = mapProjection(ctx, type);
+				FindIterable<RawBsonDocument> fiter = col.find(query)
+						.projection(projection)
+						.sort(sort)
+						.collation(collation)
+						.skip((int) Math.max(0, skip - total))
+						.limit(count - page.size());
+				for (RawBsonDocument res : fiter) {
+					try {
+						page.add(mapUtil.mapScimResource(res, type, projection != null));
+					} catch (SchemaException e) {
+						logger.warn("Unhandled exception: "+e.getLocalizedMessage(),e);
+						return new ScimResponse(ScimResponse.ST_INTERNAL,e.getLocalizedMessage(),null);
+					}
+				}
+			}
+			total += cnt;
+			if (total > maxTotal)
+				break;  // too many results, the response is an error
+		}
+		return new ListResponse(page, (int) Math.min(total, Integer.MAX_VALUE), ctx, maxResults, maxTotal);
+	}
+
+	/**
+	 * Maps the attributes a read request needs into a projection so that the database does not return attributes that
+	 * would be removed when the response is serialized (e.g. large members arrays and meta.revisions). Attributes
+	 * that are always returned, and those used by the request filter (including ACI target filters) and sortBy, are
+	 * kept. Projection is done on top level attributes. Without an attributes parameter, only attributes the request
+	 * excludes (and meta.revisions) are left out. Attributes returned "never" or on "request" are still read because
+	 * internal callers depend on them (e.g. the password check of Basic authentication); serialization removes them
+	 * from responses.
+	 * @param ctx       The read request
+	 * @param container The container being read
+	 * @return The projection, or null if whole documents are to be returned
+	 */
+	private Bson mapProjection(RequestCtx ctx, String container) {
+		ResourceType resType = schemaManager.getResourceTypeByPath(container);
+		if (resType == null)
+			return null;
+
+		Set<Attribute> needed = new HashSet<>();
+		MongoFilterMapper.collectAttributes(ctx.getFilter(), needed);
+		if (ctx.getSortBy() != null)
+			for (String sortAttr : ctx.getSortBy().split(",")) {
+				Attribute attr = schemaManager.findAttribute(sortAttr.trim(), ctx);
+				if (attr != null)
+					needed.add(MongoFilterMapper.getRootAttribute(attr));
+			}
+		Set<Attribute> requested = new HashSet<>();
+		for (String name : ctx.getAttrNamesReq()) {
+			Attribute attr = schemaManager.findAttribute(name, ctx);
+			if (attr != null)
+				requested.add(MongoFilterMapper.getRootAttribute(attr));
+		}
+
+		Schema common = schemaManager.getSchemaById(ScimParams.SCHEMA_SCHEMA_Common);
+		Attribute revisions = common.getAttribute(Meta.META).getSubAttribute(Meta.META_REVISIONS);
+		boolean withRevisions = ctx.isAttrRequested(revisions);
+
+		List<String> fields = new ArrayList<>();
+		boolean include = !requested.isEmpty();
+		if (include) {
+			if (withRevisions)
+				fields.add(Meta.META);
+			else
+				for (String sub : new String[]{Meta.META_CREATED, Meta.META_LAST_MODIFIED, Meta.META_RESOURCE_TYPE,
+						Meta.META_LOCATION, Meta.META_VERSION})
+					fields.add(Meta.META + "." + sub);
+		} else if (!withRevisions)
+			fields.add(Meta.META + "." + Meta.META_REVISIONS);
+
+		List<Schema> schemas = new ArrayList<>();
+		schemas.add(common);
+		schemas.add(schemaManager.getSchemaById(resType.getSchema()));
+		for (String eid : resType.getSchemaExtension())
+			schemas.add(schemaManager.getSchemaById(eid));
+		for (Schema schema : schemas) {
+			if (schema == null)
+				continue;
+			boolean isExtension = resType.getSchemaExtensions().containsKey(schema.getId());
+			for (Attribute attr : schema.getAttributes()) {
+				String field = MongoFilterMapper.mapFieldName(attr, false, isExtension);
+				if (field.equals("_id") || attr.getName().equals(Meta.META))
+					continue;  // _id is always returned, meta is handled above
+				String returned = attr.getReturned();
+				boolean keep = needed.contains(attr) || returned.equals(Attribute.RETURNED_always);
+				if (include) {
+					if (keep || requested.contains(attr))
+						fields.add(field);
+				} else if (!keep && ctx.isAttrExcluded(attr))
+					fields.add(field);
+			}
+		}
+		if (include)
+			return Projections.include(fields);
+		return fields.isEmpty() ? null : Projections.exclude(fields);
+	}
+
 	@Override
 	public ScimResponse put(RequestCtx ctx, final ScimResource replaceResource)
 			throws ScimException, BackendException {
@@ -480,7 +695,13 @@ public class MongoProvider implements IScimProvider {
 	public ScimResponse patch(RequestCtx ctx, final JsonPatchRequest req)
 			throws ScimException, BackendException {
 		ctx.setEncodeExtensions(true);
+		ScimResponse resp = patchInPlace(ctx, req);
+		if (resp != null)
+			return resp;
+
 		MongoScimResource mres = (MongoScimResource) getResource(ctx);
+		if (mres == null)
+			return new ScimResponse(ScimResponse.ST_NOTFOUND, null, null);
 		if (mres.checkModPreConditionFail(ctx))
 			return new ScimResponse(new PreconditionFailException(
 					"Predcondition does not match"));
@@ -489,6 +710,91 @@ public class MongoProvider implements IScimProvider {
 		return this.putResource(mres, ctx);
 	}
 
+	/**
+	 * Applies a PATCH request with a single findOneAndUpdate, translating the operations into update operators (see
+	 * {@link MongoPatchMapper}) so the stored document is changed in place instead of being loaded and replaced.
+	 * The update is guarded by the request's If-Match version and filter. The new meta.version is calculated from the
+	 * updated document that is returned, then stored only if no later update has replaced the provisional version.
+	 * @param ctx The request context
+	 * @param req The patch request
+	 * @return The response, or null if the patch must be applied by loading and replacing the resource. This is the
+	 * case when the request cannot be translated, or when the guarded update matched nothing (the resource is
+	 * missing, a precondition failed, or a value path matched no value), so that the error is reported as usual.
+	 */
+	private ScimResponse patchInPlace(RequestCtx ctx, JsonPatchRequest req) throws ScimException, BackendException {
+		String type = ctx.getResourceContainer();
+		if (ctx.getPathId() == null || type == null || type.equals(SystemSchemas.TRANS_CONTAINER)
+				|| ConfigResponse.isConfigEndpoint(type) || ctx.getUnmodSince() != null)
+			return null;
+		ResourceType resType = schemaManager.getResourceTypeByPath(type);
+		if (resType == null)
+			return null;
+		String tranId = ctx.getTranId();
+		// duplicate transactions are reported by the full path
+		if (tranId == null || isTransactionPresent(tranId))
+			return null;
+
+		MongoPatchMapper mapper = new MongoPatchMapper(schemaManager, resType, ctx);
+		if (!mapper.mapRequest(req))
+			return null;
+
+		List<Bson> conditions = new ArrayList<>();
+		conditions.add(Filters.eq("_id", new ObjectId(ctx.getPathId())));
+		if (ctx.getFilter() != null) {
+			Set<Attribute> filterAttrs = new HashSet<>();
+			MongoFilterMapper.collectAttributes(ctx.getFilter(), filterAttrs);
+			for (Attribute attr : filterAttrs)
+				if (schemaManager.isVirtualAttr(attr))
+					return null;
+			conditions.add(MongoFilterMapper.mapFilter(ctx.getFilter(), false, false));
+		}
+		if (ctx.getIfMatch() != null)
+			conditions.add(Filters.eq(Meta.META + "." + Meta.META_VERSION, ctx.getIfMatch()));
+		conditions.add(Filters.ne(Meta.META + "." + Meta.META_REVISIONS + ".value", tranId));
+		conditions.addAll(mapper.getConditions());
+
+		Date modDate = new Date();
+		String provisional = new ObjectId().toHexString();
+		List<Bson> updates = new ArrayList<>(mapper.getUpdates());
+		updates.add(Updates.set(Meta.META + "." + Meta.META_LAST_MODIFIED, modDate));
+		updates.add(Updates.set(Meta.META + "." + Meta.META_VERSION, provisional));
+		updates.add(Updates.push(Meta.META + "." + Meta.META_REVISIONS,
+				new Document("date", modDate).append("value", tranId)));
+
+		FindOneAndUpdateOptions opts = new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER);
+		if (!mapper.getArrayFilters().isEmpty())
+			opts.arrayFilters(mapper.getArrayFilters());
+
+		MongoCollection<RawBsonDocument> col = getDbConnection().getCollection(type, RawBsonDocument.class);
+		RawBsonDocument updated;
+		try {
+			updated = col.findOneAndUpdate(Filters.and(conditions), Updates.combine(updates), opts);
+		} catch (MongoCommandException e) {
+			if (e.getErrorCode() == 11000)
+				return new ScimResponse(ScimResponse.ST_BAD_REQUEST, e.getErrorMessage(), ScimResponse.ERR_TYPE_UNIQUENESS);
+			// e.g. the stored value does not have the type the update expects
+			if (logger.isDebugEnabled())
+				logger.debug("Patch could not be applied in place: " + e.getErrorMessage());
+			return null;
+		}
+		if (updated == null)
+			return null;
+
+		ScimResource res = mapUtil.mapScimResource(updated, type, false);
+		String etag = res.calcVersionHash();
+		res.getMeta().setVersion(etag);
+		col.updateOne(Filters.and(Filters.eq("_id", updated.get("_id")),
+				Filters.eq(Meta.META + "." + Meta.META_VERSION, provisional)),
+				Updates.set(Meta.META + "." + Meta.META_VERSION, etag));
+
+		ctx.setEncodeExtensions(false);
+		ResourceResponse resp = new ResourceResponse(res, ctx);
+		resp.setStatus(ScimResponse.ST_OK);
+		resp.setLocation(res.getMeta().getLocation());
+		resp.setETag(etag);
+		return resp;
+	}
+
 	@Override
 	public ScimResponse bulkRequest(RequestCtx ctx, JsonNode node) {
 		return new ScimResponse(ScimResponse.ST_NOSUPPORT, null, null);
@@ -674,12 +980,14 @@ public class MongoProvider implements IScimProvider {
 			if (logger.isDebugEnabled())
 				logger.debug("Creating index for " + attr.getRelativePath() + ", unique: " + attr.getUniqueness());
 			// According to MongoDB driver, if index already exists this should not re-create it.
-			if (attr.getUniqueness().contentEquals(Attribute.UNIQUE_none))
-				col.createIndex(Indexes.ascending(attr.getRelativePath()));
-			else {
-				IndexOptions opt = new IndexOptions().unique(true);
-				col.createIndex(Indexes.ascending(attr.getRelativePath()), opt);
-			}
+			IndexOptions opt = new IndexOptions();
+			if (!attr.getUniqueness().contentEquals(Attribute.UNIQUE_none))
+				opt.unique(true);
+			// Case insensitive values are indexed (and kept unique) without regard to case, matching the collation
+			// that searches comparing them run with.
+			if (MongoFilterMapper.isCaseIgnore(attr))
+				opt.collation(MongoFilterMapper.CASE_IGNORE);
+			col.createIndex(Indexes.ascending(attr.getRelativePath()), opt);
 			if (logger.isDebugEnabled()) {
 				for (Document doc : col.listIndexes()) {
 					logger.debug(doc.toJson());
@@ -803,6 +1111,9 @@ public class MongoProvider implements IScimProvider {
 	 */
 	@Override
 	public boolean isTransactionPresent(String transid)  {
+		TransactionFilter filter = txnFilter;
+		if (filter != null && !filter.mightContain(transid))
+			return false;
 		Document query = new Document("_id", new ObjectId(transid));
 		String type = SystemSchemas.TRANS_CONTAINER;
 		MongoCollection<Document> col = this.scimDb.getCollection(type);
@@ -819,13 +1130,19 @@ public class MongoProvider implements IScimProvider {
 		MongoDatabase sDb = getDbConnection();
 		MongoCollection<Document> col = sDb.getCollection(SystemSchemas.TRANS_CONTAINER);
 
-		// Check if the transaction is already stored.
-		Document query = new Document();
-		query.put("_id", new ObjectId(record.getId()));
-		FindIterable<Document> iter = col.find(query);
-		Document doc = iter.first();
-		if (doc != null)
-			throw new DuplicateTxnException("Transaction id "+record.getId()+" already exists.");
+		// Check if the transaction is already stored. When the filter has not seen the id, the insert below
+		// still rejects a duplicate.
+		Document doc;
+		TransactionFilter filter = txnFilter;
+		boolean unseen = filter != null && !filter.mightContain(record.getId());
+		if (!unseen) {
+			Document query = new Document();
+			query.put("_id", new ObjectId(record.getId()));
+			FindIterable<Document> iter = col.find(query);
+			doc = iter.first();
+			if (doc != null)
+				throw new DuplicateTxnException("Transaction id "+record.getId()+" already exists.");
+		}
 
 		Meta meta = record.getMeta();
 		if (meta != null) {// Not needed for TransactionRecord type
@@ -853,8 +1170,47 @@ public class MongoProvider implements IScimProvider {
 			if (logger.isDebugEnabled())
 				logger.debug("Bad argument exception: "+e.getLocalizedMessage(),e);
 		} catch (MongoWriteException e) {
+			if (e.getCode() == 11000) {
+				if (unseen)
+					disableTransactionFilter(record.getId());
+				throw new DuplicateTxnException("Transaction id "+record.getId()+" already exists.");
+			}
 			logger.warn("Unexpected error writing transaction record. "+e.getMessage(),e);
 		}
+		filter = txnFilter;
+		if (filter != null)
+			filter.add(record.getId());
+	}
+
+	/**
+	 * Creates the transaction filter and loads it with the ids of transactions recorded within the filter window. The
+	 * filter only learns of transactions stored through this server, so it should only be enabled when this server is
+	 * the only writer to the database.
+	 */
+	private void initTransactionFilter() {
+		txnFilter = new TransactionFilter(txnFilterHours, txnFilterExpected);
+		Date cutoff = new Date(System.currentTimeMillis() - txnFilterHours * 3600000L);
+		// ObjectIds begin with their creation time so the _id index selects the window
+		MongoCollection<Document> col = this.scimDb.getCollection(SystemSchemas.TRANS_CONTAINER);
+		int cnt = 0;
+		for (Document doc : col.find(Filters.gte("_id", new ObjectId(cutoff))).projection(Projections.include("_id"))) {
+			txnFilter.add(doc.get("_id").toString());
+			cnt++;
+		}
+		logger.info("\tTransaction filter loaded with "+cnt+" recent transaction ids ("+txnFilterHours+" hours).");
+	}
+
+	/**
+	 * Called when the database already holds a transaction the filter has not seen. Another server is writing to the
+	 * database, so negative answers from the filter can no longer be trusted and it is turned off.
+	 * @param transid The transaction id that was stored by another writer
+	 */
+	private void disableTransactionFilter(String transid) {
+		if (txnFilter == null)
+			return;
+		txnFilter = null;
+		logger.error("Transaction filter disabled: transaction "+transid+" was stored by another database writer. "
+				+ "Set scim.prov.mongo.txn.filter.hours=0 when more than one server shares the database.");
 	}
 
 }
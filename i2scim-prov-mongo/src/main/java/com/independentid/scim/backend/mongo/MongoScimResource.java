@@ -23,7 +23,11 @@ import com.independentid.scim.schema.Attribute;
 import com.independentid.scim.schema.Schema;
 import com.independentid.scim.schema.SchemaException;
 import com.independentid.scim.schema.SchemaManager;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonReader;
+import org.bson.BsonType;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,7 +35,7 @@ import org.slf4j.LoggerFactory;
 import javax.validation.constraints.NotNull;
 import java.lang.reflect.InvocationTargetException;
 import java.text.ParseException;
-import java.util.Set;
+import java.util.*;
 
 /**
  * This class wraps the ScimResource class to enable mapping of BSON documents to JSON. This class uses {@link
@@ -43,6 +47,8 @@ public class MongoScimResource extends ScimResource {
 
     private Document originalResource;
 
+    private boolean partial = false;
+
     /**
      * MongoScimResource wraps ScimResource in order to provide direct Mongo BSON Document mapping.
      * @param schemaManager Handle to the SCIM server SchemaManager instance
@@ -74,6 +80,52 @@ public class MongoScimResource extends ScimResource {
 
     }
 
+    /**
+     * Parses a Mongo BSON Document that may have been read with a projection (see {@link #isPartial()}).
+     * @param schemaManager The SCIM {@link SchemaManager} which holds the Schema definitions
+     * @param dbResource    A Mongo {@link Document} object containing the Mongo record to be converted to ScimResource
+     * @param container     A String representing the Resource Type path (e.g. Users) for the object.
+     * @param partial       True if the document was read with a projection and may be missing attributes
+     * @throws SchemaException is thrown when unable to parse data not defined in SCIM {@link Schema} configuration
+     * @throws ParseException  is thrown when a known format is invalid (e.g. URI, Date, etc)
+     * @throws ScimException   is thrown when a general SCIM protocol error has occurred.
+     */
+    public MongoScimResource(SchemaManager schemaManager, Document dbResource, String container, boolean partial)
+            throws SchemaException, ParseException, ScimException {
+        this(schemaManager, dbResource, container);
+        this.partial = partial;
+    }
+
+    /**
+     * Decodes a raw BSON document straight into SCIM values using the schema, without first building a {@link
+     * Document} (see {@link MongoMapUtil#readBson(Attribute, BsonReader)}).
+     * @param schemaManager The SCIM {@link SchemaManager} which holds the Schema definitions
+     * @param dbResource    The raw Mongo document
+     * @param container     A String representing the Resource Type path (e.g. Users) for the object.
+     * @param partial       True if the document was read with a projection and may be missing attributes
+     * @throws SchemaException is thrown when unable to parse data not defined in SCIM {@link Schema} configuration
+     * @throws ParseException  is thrown when a known format is invalid (e.g. URI, Date, etc)
+     * @throws ScimException   is thrown when a general SCIM protocol error has occurred.
+     */
+    public MongoScimResource(SchemaManager schemaManager, RawBsonDocument dbResource, String container,
+                             boolean partial) throws SchemaException, ParseException, ScimException {
+        super(schemaManager);
+        this.smgr = schemaManager;
+        this.partial = partial;
+        setResourceType(container);
+        try (BsonBinaryReader reader = new BsonBinaryReader(dbResource.getByteBuffer().asNIO())) {
+            parseBson(reader);
+        }
+    }
+
+    /**
+     * @return true if the resource was loaded from a projected document holding only the attributes needed to answer
+     * a read. A partial resource must not be used to replace the stored document.
+     */
+    public boolean isPartial() {
+        return this.partial;
+    }
+
     protected void parseDocument(Document doc) throws ParseException, ScimException {
 
 
@@ -108,6 +160,100 @@ public class MongoScimResource extends ScimResource {
 
     }
 
+    protected void parseBson(BsonReader reader) throws ScimException, ParseException {
+        Map<String, Attribute> coreFields = MongoMapUtil.mapFieldNames(mainSchema.getAttributes());
+        Map<String, Schema> extFields = new HashMap<>();
+        for (String eid : type.getSchemaExtension())
+            extFields.put(MongoMapUtil.mapExtensionId(eid), smgr.getSchemaById(eid));
+
+        Map<Attribute, Value> coreVals = new HashMap<>();
+        Map<String, ExtensionValues> extVals = new HashMap<>();
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String name = reader.readName();
+            BsonType btype = reader.getCurrentBsonType();
+            switch (name) {
+                case "_id":
+                    if (btype == BsonType.OBJECT_ID)
+                        this.id = reader.readObjectId().toString();
+                    else
+                        reader.skipValue();
+                    break;
+
+                case "schemas":
+                    if (btype != BsonType.ARRAY) {
+                        reader.skipValue();
+                        break;
+                    }
+                    this.schemas = new ArrayList<>();
+                    reader.readStartArray();
+                    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT)
+                        this.schemas.add(reader.readString());
+                    reader.readEndArray();
+                    break;
+
+                case "externalId":
+                    if (btype == BsonType.STRING)
+                        this.externalId = reader.readString();
+                    else
+                        reader.skipValue();
+                    break;
+
+                case Meta.META:
+                    if (btype == BsonType.DOCUMENT)
+                        this.meta = parseMeta(reader);
+                    else
+                        reader.skipValue();
+                    break;
+
+                default:
+                    Attribute attr = coreFields.get(name);
+                    Schema ext = extFields.get(name);
+                    if (attr != null) {
+                        Value val = MongoMapUtil.readBson(attr, reader);
+                        if (val != null)
+                            coreVals.put(attr, val);
+                    } else if (ext != null && btype == BsonType.DOCUMENT)
+                        extVals.put(ext.getId(), MongoMapUtil.readBsonExtension(ext, reader));
+                    else
+                        reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+
+        if (this.schemas == null)
+            throw new SchemaException("Schemas attribute missing");
+        setAttributeValues(coreVals, extVals);
+    }
+
+    private Meta parseMeta(BsonReader reader) throws SchemaException {
+        Meta mval = new Meta();
+        Attribute rev = commonSchema.getAttribute(Meta.META).getSubAttribute(Meta.META_REVISIONS);
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String name = reader.readName();
+            BsonType btype = reader.getCurrentBsonType();
+            if (name.equals(Meta.META_REVISIONS)) {
+                Value val = MongoMapUtil.readBson(rev, reader);
+                if (val instanceof MultiValue)
+                    mval.setRevisions((MultiValue) val);
+            } else if (btype == BsonType.DATE_TIME && name.equals(Meta.META_CREATED))
+                mval.setCreatedDate(new Date(reader.readDateTime()));
+            else if (btype == BsonType.DATE_TIME && name.equals(Meta.META_LAST_MODIFIED))
+                mval.setLastModifiedDate(new Date(reader.readDateTime()));
+            else if (btype == BsonType.STRING && name.equals(Meta.META_RESOURCE_TYPE))
+                mval.setResourceType(reader.readString());
+            else if (btype == BsonType.STRING && name.equals(Meta.META_LOCATION))
+                mval.setLocation(reader.readString());
+            else if (btype == BsonType.STRING && name.equals(Meta.META_VERSION))
+                mval.setVersion(reader.readString());
+            else
+                reader.skipValue();
+        }
+        reader.readEndDocument();
+        return mval;
+    }
+
     protected void parseAttributes(Document doc) throws ScimException, ParseException {
         //ResourceType type = cfg.getResourceType(getResourceType());
         //String coreSchemaId = type.getSchema();
@@ -115,9 +261,32 @@ public class MongoScimResource extends ScimResource {
         // Look for all the core schema vals
         //Schema core = cfg.getSchemaById(coreSchemaId);
 
+        Map<Attribute, Value> coreVals = new HashMap<>();
+        for (Attribute attr : mainSchema.getAttributes()) {
+            Value val = MongoMapUtil.mapBsonDocument(attr, doc);
+            if (val != null)
+                coreVals.put(attr, val);
+        }
+
+        Map<String, ExtensionValues> extVals = new HashMap<>();
+        for (String eid : type.getSchemaExtension()) {
+            ExtensionValues val = MongoMapUtil.mapBsonExtension(smgr.getSchemaById(eid), doc);
+            if (val != null)
+                extVals.put(eid, val);
+        }
+        setAttributeValues(coreVals, extVals);
+    }
+
+    /**
+     * Sets the mapped attribute values in schema order, constructing virtual attribute values.
+     * @param coreVals The values of the resource type's core schema
+     * @param extVals  The values of each extension schema, keyed by schema id
+     */
+    private void setAttributeValues(Map<Attribute, Value> coreVals, Map<String, ExtensionValues> extVals)
+            throws ScimException {
         Attribute[] attrs = mainSchema.getAttributes();
         for (Attribute attr : attrs) {
-            Value val = MongoMapUtil.mapBsonDocument(attr, doc);
+            Value val = coreVals.get(attr);
             if (smgr.isVirtualAttr(attr)) {
                 try {  // convert from value type to virtual type
                     val = smgr.constructValue(this, attr, val);
@@ -134,8 +303,7 @@ public class MongoScimResource extends ScimResource {
 
         String[] eids = type.getSchemaExtension();
         for (String eid : eids) {
-            Schema schema = smgr.getSchemaById(eid);
-            ExtensionValues val = MongoMapUtil.mapBsonExtension(schema, doc);
+            ExtensionValues val = extVals.get(eid);
             if (val != null) {
                 this.extAttrVals.put(eid, val);
                 Set<Attribute> eattrs = val.getAttributeSet();
@@ -147,7 +315,8 @@ public class MongoScimResource extends ScimResource {
     }
 
     /**
-     * @return the original Mongo {@link Document} used to create this {@link ScimResource}.
+     * @return the original Mongo {@link Document} used to create this {@link ScimResource}, or null if the resource was
+     * decoded directly from raw BSON.
      */
     public Document getOriginalDBObject() {
         return this.originalResource;
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2021.  Independent Identity Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.independentid.scim.test.memory;
+
+import com.independentid.scim.backend.memory.DocBitmap;
+import com.independentid.scim.backend.memory.DocIdMap;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.PrimitiveIterator;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@TestMethodOrder(MethodOrderer.MethodName.class)
+public class DocBitmapTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(DocBitmapTest.class);
+
+    @Test
+    public void a_setOperations() {
+        logger.info("========== Doc Bitmap Tests ==========");
+        DocBitmap evens = new DocBitmap();
+        DocBitmap threes = new DocBitmap();
+        // Large enough to force dense (bitmap) chunks and span more than one chunk
+        for (int i = 0; i < 100000; i++) {
+            if (i % 2 == 0)
+                evens.add(i);
+            if (i % 3 == 0)
+                threes.add(i);
+        }
+        assertThat(evens.getCardinality()).isEqualTo(50000);
+        assertThat(evens.contains(4)).isTrue();
+        assertThat(evens.contains(5)).isFalse();
+
+        DocBitmap sixes = evens.and(threes);
+        assertThat(sixes.getCardinality())
+                .as("Intersection of evens and multiples of 3")
+                .isEqualTo(16667);
+        assertThat(sixes.contains(99996)).isTrue();
+
+        DocBitmap either = evens.or(threes);
+        assertThat(either.getCardinality()).isEqualTo(50000 + 33334 - 16667);
+
+        DocBitmap evensOnly = evens.andNot(threes);
+        assertThat(evensOnly.getCardinality()).isEqualTo(50000 - 16667);
+        assertThat(evensOnly.contains(6)).isFalse();
+
+        DocBitmap merged = new DocBitmap();
+        merged.add(1);
+        merged.addAll(threes);
+        assertThat(merged.getCardinality()).isEqualTo(33335);
+
+        // Removing values converts dense chunks back to sparse ones
+        for (int i = 0; i < 100000; i += 2)
+            if (i > 10)
+                evens.remove(i);
+        assertThat(evens.getCardinality()).isEqualTo(6);
+        PrimitiveIterator.OfInt iter = evens.iterator();
+        int expected = 0;
+        while (iter.hasNext()) {
+            assertThat(iter.nextInt()).isEqualTo(expected);
+            expected += 2;
+        }
+        assertThat(expected).isEqualTo(12);
+    }
+
+    @Test
+    public void b_docIdReuse() {
+        DocIdMap docIds = new DocIdMap();
+        int a = docIds.assign("a");
+        int b = docIds.assign("b");
+        assertThat(docIds.assign("a")).isEqualTo(a);
+        assertThat(docIds.getId(b)).isEqualTo("b");
+
+        docIds.release("a");
+        assertThat(docIds.getDoc("a")).isEqualTo(-1);
+        assertThat(docIds.getAll().getCardinality()).isEqualTo(1);
+
+        int c = docIds.assign("c");
+        assertThat(c)
+                .as("Released document numbers are re-used")
+                .isEqualTo(a);
+        assertThat(docIds.toIds(docIds.getAll())).containsExactlyInAnyOrder("b", "c");
+    }
+
+    @Test
+    public void c_reuseAfterRead() {
+        DocIdMap docIds = new DocIdMap();
+        int a = docIds.assign("a");
+        docIds.assign("b");
+
+        // A reader evaluates its candidates, then "a" is removed and its number re-used
+        long sequence = docIds.getSequence();
+        DocBitmap candidates = docIds.getAll();
+        docIds.release("a");
+        assertThat(docIds.assign("c")).isEqualTo(a);
+
+        assertThat(docIds.getId(a, sequence))
+                .as("A number re-used after the read began is not mapped to the new resource")
+                .isNull();
+        assertThat(docIds.toIds(candidates, sequence)).containsExactly("b");
+        assertThat(docIds.getId(a, docIds.getSequence())).isEqualTo("c");
+
+        // Assignments survive growth of the number space
+        for (int i = 0; i < 5000; i++)
+            docIds.assign("g" + i);
+        assertThat(docIds.getId(docIds.getDoc("g4999"))).isEqualTo("g4999");
+        assertThat(docIds.getId(a)).isEqualTo("c");
+    }
+}
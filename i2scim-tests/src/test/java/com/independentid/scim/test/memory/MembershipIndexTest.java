@@ -0,0 +1,71 @@
+/*
+ * Copyright 2021.  Independent Identity Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.independentid.scim.test.memory;
+
+import com.independentid.scim.backend.memory.MembershipIndex;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@TestMethodOrder(MethodOrderer.MethodName.class)
+public class MembershipIndexTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(MembershipIndexTest.class);
+
+    @Test
+    public void a_directMembership() {
+        logger.info("========== Membership Index Tests ==========");
+        MembershipIndex index = new MembershipIndex();
+        index.update("g1", new HashSet<>(Arrays.asList("u1", "u2")));
+        index.update("g2", Collections.singleton("u1"));
+
+        assertThat(index.getGroups("u1")).containsExactlyInAnyOrder("g1", "g2");
+        assertThat(index.getGroups("u2")).containsExactly("g1");
+
+        // u2 removed from g1, u3 added
+        index.update("g1", new HashSet<>(Arrays.asList("u1", "u3")));
+        assertThat(index.getGroups("u2")).isEmpty();
+        assertThat(index.getGroups("u3")).containsExactly("g1");
+
+        index.remove("g2");
+        assertThat(index.getGroups("u1")).containsExactly("g1");
+    }
+
+    @Test
+    public void b_nestedMembership() {
+        MembershipIndex index = new MembershipIndex();
+        index.update("team", Collections.singleton("u1"));
+        index.update("dept", Collections.singleton("team"));
+        index.update("company", new HashSet<>(Arrays.asList("dept", "u2")));
+        // a cycle must not cause the walk to loop
+        index.update("team", new HashSet<>(Arrays.asList("u1", "company")));
+
+        assertThat(index.getGroups("u1")).containsExactly("team");
+        assertThat(index.getIndirectGroups("u1"))
+                .as("Nested groups exclude the direct group")
+                .containsExactlyInAnyOrder("dept", "company");
+        assertThat(index.getIndirectGroups("u2")).containsExactlyInAnyOrder("team", "dept");
+    }
+}
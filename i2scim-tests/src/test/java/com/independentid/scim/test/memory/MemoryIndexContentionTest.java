@@ -0,0 +1,171 @@
+/*
+ * Copyright 2021.  Independent Identity Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.independentid.scim.test.memory;
+
+import com.independentid.scim.backend.memory.IndexResourceType;
+import com.independentid.scim.protocol.Filter;
+import com.independentid.scim.protocol.RequestCtx;
+import com.independentid.scim.resource.ScimResource;
+import com.independentid.scim.resource.StringValue;
+import com.independentid.scim.schema.Attribute;
+import com.independentid.scim.schema.ResourceType;
+import com.independentid.scim.schema.SchemaException;
+import com.independentid.scim.schema.SchemaManager;
+import com.independentid.scim.test.misc.TestUtils;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks index invariants while concurrent writers index and de-index their own resources and readers search the same
+ * indexes. Resources indexed before the writers start are never touched, so every search must keep finding them; once
+ * the writers finish, exactly the resources they left indexed must be found.
+ */
+@QuarkusTest
+@TestProfile(ScimMemoryTestProfile.class)
+@TestMethodOrder(MethodOrderer.MethodName.class)
+public class MemoryIndexContentionTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(MemoryIndexContentionTest.class);
+
+    private static final String testUserFile1 = "classpath:/schema/TestUser-bjensen.json";
+
+    private static final int RES_PER_THREAD = 200;
+    private static final int STABLE = 20;
+    private static final int READERS = 2;
+
+    @Inject
+    SchemaManager smgr;
+
+    @Inject
+    TestUtils testUtils;
+
+    @Test
+    public void a_concurrentIndexAndSearch() throws Exception {
+        logger.info("========== Memory Index Contention Tests ==========");
+        Attribute username = smgr.findAttribute("User:userName", null);
+        Attribute displayName = smgr.findAttribute("User:displayName", null);
+        Attribute emailvalue = smgr.findAttribute("User:emails.value", null);
+        ResourceType type = smgr.getResourceTypeByPath("Users");
+        RequestCtx ctx = new RequestCtx("/Users", null, null, smgr);
+
+        for (int threads : new int[]{4, 16}) {
+            IndexResourceType index = new IndexResourceType(smgr, type, new ConcurrentHashMap<>(),
+                    Arrays.asList(username, displayName, emailvalue), Collections.singletonList(username),
+                    Collections.singletonList(displayName));
+            for (int i = 0; i < STABLE; i++)
+                index.indexResource(makeUser(username, "stable-" + i));
+
+            List<List<ScimResource>> work = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                List<ScimResource> batch = new ArrayList<>();
+                for (int i = 0; i < RES_PER_THREAD; i++)
+                    batch.add(makeUser(username, "u" + t + "-" + i));
+                work.add(batch);
+            }
+
+            ExecutorService pool = Executors.newFixedThreadPool(threads + READERS);
+            CountDownLatch start = new CountDownLatch(1);
+            CountDownLatch writers = new CountDownLatch(threads);
+            List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+            for (List<ScimResource> batch : work)
+                pool.submit(() -> {
+                    try {
+                        start.await();
+                        for (ScimResource res : batch)
+                            index.indexResource(res);
+                        // remove every other resource again so removal of postings is also contended
+                        for (int i = 0; i < batch.size(); i += 2)
+                            index.deIndexResource(batch.get(i));
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    } finally {
+                        writers.countDown();
+                    }
+                });
+            Filter rangeFilter = Filter.parseFilter("userName ge \"stable\"", ctx);
+            Filter stableFilter = Filter.parseFilter("userName eq \"stable-0\"", ctx);
+            for (int r = 0; r < READERS; r++)
+                pool.submit(() -> {
+                    try {
+                        start.await();
+                        while (writers.getCount() > 0) {
+                            // scans are weakly consistent, but resources not being changed must always be found
+                            assertThat(index.getPotentialMatches(rangeFilter))
+                                    .as("Unchanged resources found by a range search during writes")
+                                    .hasSizeGreaterThanOrEqualTo(STABLE);
+                            assertThat(index.getPotentialMatches(stableFilter))
+                                    .as("Unchanged resource found by an equality search during writes")
+                                    .containsExactly("stable-0");
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                });
+
+            start.countDown();
+            pool.shutdown();
+            assertThat(pool.awaitTermination(5, TimeUnit.MINUTES)).isTrue();
+            assertThat(errors).isEmpty();
+
+            Set<String> expected = new HashSet<>();
+            for (int i = 0; i < STABLE; i++)
+                expected.add("stable-" + i);
+            for (List<ScimResource> batch : work)
+                for (int i = 1; i < batch.size(); i += 2)
+                    expected.add(batch.get(i).getId());
+            assertThat(index.getPotentialMatches(Filter.parseFilter("userName pr", ctx)))
+                    .as("Index holds exactly the remaining resources after " + threads + " concurrent writers")
+                    .isEqualTo(expected);
+            assertThat(index.getPotentialMatches(rangeFilter))
+                    .as("Range index holds exactly the remaining resources")
+                    .isEqualTo(expected);
+            for (List<ScimResource> batch : work)
+                for (int i = 0; i < batch.size(); i++) {
+                    String id = batch.get(i).getId();
+                    Set<String> found = index.getPotentialMatches(
+                            Filter.parseFilter("userName eq \"" + id + "\"", ctx));
+                    if (i % 2 == 0)
+                        assertThat(found).as("De-indexed " + id + " is not found").isEmpty();
+                    else
+                        assertThat(found).as("Indexed " + id + " is found").containsExactly(id);
+                }
+        }
+    }
+
+    private ScimResource makeUser(Attribute username, String name) throws SchemaException {
+        ScimResource res = testUtils.loadResource(testUserFile1, "Users");
+        res.setId(name);
+        res.removeValue(username);
+        res.addValue(new StringValue(username, name));
+        return res;
+    }
+}
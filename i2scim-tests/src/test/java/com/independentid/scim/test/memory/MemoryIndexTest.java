@@ -28,7 +28,9 @@ import com.independentid.scim.core.err.ScimException;
 import com.independentid.scim.protocol.Filter;
 import com.independentid.scim.protocol.ListResponse;
 import com.independentid.scim.protocol.RequestCtx;
+import com.independentid.scim.protocol.ScimParams;
 import com.independentid.scim.protocol.ScimResponse;
+import com.independentid.scim.resource.MultiValue;
 import com.independentid.scim.resource.ScimResource;
 import com.independentid.scim.resource.StringValue;
 import com.independentid.scim.resource.Value;
@@ -39,6 +41,7 @@ import com.independentid.scim.test.misc.TestUtils;
 import io.quarkus.test.junit.QuarkusTest;
 import io.quarkus.test.junit.TestProfile;
 import org.assertj.core.api.Assertions;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.junit.jupiter.api.MethodOrderer;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestMethodOrder;
@@ -51,8 +54,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
 import java.text.ParseException;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.AssertionsForClassTypes.assertThat;
 
@@ -82,6 +88,9 @@ public class MemoryIndexTest {
     @Inject
     TestUtils testUtils;
 
+    @ConfigProperty(name = ConfigMgr.SCIM_QUERY_MAX_RESULTSIZE, defaultValue = ConfigMgr.SCIM_QUERY_MAX_RESULTS_DEFAULT)
+    int maxResults;
+
     @Test
     public void a_initializeTest() {
         logger.info("==========   Memory Index Tests ==========");
@@ -183,6 +192,10 @@ public class MemoryIndexTest {
         assertThat(userIndex.checkUniqueAttr(uval))
                 .as(uval + " should be conflicted")
                 .isTrue();
+        StringValue upperVal = new StringValue(username, uval.getRawValue().toUpperCase());
+        assertThat(userIndex.checkUniqueAttr(upperVal))
+                .as(upperVal + " should be conflicted (userName is not caseExact)")
+                .isTrue();
     }
 
     @Test
@@ -264,6 +277,19 @@ public class MemoryIndexTest {
                 .isEqualTo(1);
         assertThat(candidates.contains("2819c223-7f76-453a-919d-413861904646")).isTrue();
 
+        String plan = userIndex.explain(filter);
+        logger.info("Plan:\n" + plan);
+        assertThat(plan)
+                .as("Plan drives from the exact userName index and verifies nickname")
+                .contains("exact: ")
+                .contains("verify: ");
+
+        filter = Filter.parseFilter("username eq nobody@example.com and nickname eq \"Babs\"", ctx);
+        candidates = userIndex.getPotentialMatches(filter);
+        assertThat(candidates)
+                .as("Empty indexed term short-circuits the and clause")
+                .isEmpty();
+
         filter = Filter.parseFilter("username eq bjensen@example.com or username eq jsmith@example.com", ctx);
         candidates = userIndex.getPotentialMatches(filter);
         assertThat(candidates.size())
@@ -291,6 +317,28 @@ public class MemoryIndexTest {
                 .as("Should be 1 candidate due GT clause")
                 .isEqualTo(2);
         assertThat(candidates.contains("2819c223-7f76-453a-919d-413861904646")).isTrue();
+
+        assertThat(userIndex.getGramAttrs().contains(username))
+                .as("Username is configured with trigram index")
+                .isTrue();
+        filter = Filter.parseFilter("username co \"JENSEN\"", ctx);
+        candidates = userIndex.getPotentialMatches(filter);
+        assertThat(candidates.size())
+                .as("Should be 1 candidate due to trigram match on co")
+                .isEqualTo(1);
+        assertThat(candidates.contains("2819c223-7f76-453a-919d-413861904646")).isTrue();
+
+        filter = Filter.parseFilter("username co \"example.com\"", ctx);
+        candidates = userIndex.getPotentialMatches(filter);
+        assertThat(candidates.size())
+                .as("Should be 2 candidates with co on common domain")
+                .isEqualTo(2);
+
+        filter = Filter.parseFilter("username co \"xyzzy\"", ctx);
+        candidates = userIndex.getPotentialMatches(filter);
+        assertThat(candidates)
+                .as("No candidates for unmatched trigrams")
+                .isEmpty();
     }
 
     @Test
@@ -318,6 +366,252 @@ public class MemoryIndexTest {
                 .isEqualTo(1);
     }
 
+    @Test
+    public void g_sortedPaging() throws ScimException, IOException {
+        // userName has an ordered index so the page is produced by walking the index
+        Map<String, String> params = new HashMap<>();
+        params.put(ScimParams.QUERY_sortby, "userName");
+        params.put(ScimParams.QUERY_startindex, "2");
+        params.put(ScimParams.QUERY_count, "1");
+        RequestCtx ctx = new RequestCtx(null, "Users", null, params, new HashMap<>(), null, smgr);
+        ScimResponse resp = provider.get(ctx);
+        assertThat(resp).isInstanceOf(ListResponse.class);
+        ListResponse lresp = (ListResponse) resp;
+        assertThat(lresp.getSize())
+                .as("One entry on the second page")
+                .isEqualTo(1);
+        assertThat(lresp.getResults().get(0).getValue(username))
+                .as("jsmith sorts after bjensen")
+                .isEqualTo(user2.getValue(username));
+        assertThat(getTotalResults(resp, ctx))
+                .as("totalResults counts all matches, not just the page")
+                .isEqualTo(2);
+
+        params.put(ScimParams.QUERY_sortorder, "descending");
+        params.put(ScimParams.QUERY_startindex, "1");
+        params.put(ScimParams.QUERY_filter, "userName pr");
+        ctx = new RequestCtx(null, "Users", null, params, new HashMap<>(), null, smgr);
+        lresp = (ListResponse) provider.get(ctx);
+        assertThat(lresp.getSize()).isEqualTo(1);
+        assertThat(lresp.getResults().get(0).getValue(username))
+                .as("jsmith is first when descending")
+                .isEqualTo(user2.getValue(username));
+
+        // An unindexed sort attribute uses a bounded top-K sort
+        params.clear();
+        params.put(ScimParams.QUERY_sortby, "name.givenName");
+        params.put(ScimParams.QUERY_count, "1");
+        ctx = new RequestCtx(null, "Users", null, params, new HashMap<>(), null, smgr);
+        lresp = (ListResponse) provider.get(ctx);
+        assertThat(lresp.getSize()).isEqualTo(1);
+        assertThat(lresp.getResults().get(0).getValue(username))
+                .as("Barbara sorts before Jim")
+                .isEqualTo(user1.getValue(username));
+    }
+
+    @Test
+    public void h_countOnly() throws ScimException, IOException {
+        Map<String, String> params = new HashMap<>();
+        params.put(ScimParams.QUERY_filter, "userName pr");
+        params.put(ScimParams.QUERY_count, "0");
+        RequestCtx ctx = new RequestCtx(null, "Users", null, params, new HashMap<>(), null, smgr);
+        ListResponse lresp = (ListResponse) provider.get(ctx);
+        assertThat(lresp.getSize())
+                .as("No resources returned for count=0")
+                .isEqualTo(0);
+        assertThat(getTotalResults(lresp, ctx))
+                .isEqualTo(2);
+
+        params.remove(ScimParams.QUERY_filter);
+        ctx = new RequestCtx(null, "Users", null, params, new HashMap<>(), null, smgr);
+        lresp = (ListResponse) provider.get(ctx);
+        assertThat(lresp.getSize()).isEqualTo(0);
+        assertThat(getTotalResults(lresp, ctx))
+                .as("Unfiltered count")
+                .isEqualTo(2);
+
+        // nickName is not indexed so each candidate is verified, but only the page is copied
+        params.put(ScimParams.QUERY_filter, "nickName pr");
+        params.put(ScimParams.QUERY_count, "1");
+        params.put(ScimParams.QUERY_startindex, "2");
+        ctx = new RequestCtx(null, "Users", null, params, new HashMap<>(), null, smgr);
+        lresp = (ListResponse) provider.get(ctx);
+        assertThat(lresp.getSize()).isEqualTo(1);
+        assertThat(getTotalResults(lresp, ctx))
+                .as("totalResults includes matches outside the page")
+                .isEqualTo(2);
+    }
+
+    @Test
+    public void i_deltaReindex() throws ScimException, ParseException {
+        IndexResourceType userIndex = provider.getIndexes().get("Users");
+        ScimResource stored = provider.getData().get(user1.getId());
+        String path = stored.getMeta().getLocation();
+        Value oldName = stored.getValue(username);
+        Value email = ((MultiValue) stored.getValue(emailvalue)).getRawValue()[0];
+        ValResMap emailPosting = userIndex.getOrderIndex(emailvalue).get(email);
+        assertThat(emailPosting).isNotNull();
+
+        ScimResource mod = stored.copy(null);
+        mod.removeValue(username);
+        mod.addValue(new StringValue(username, "bjensen-renamed"));
+        ScimResponse resp = provider.put(new RequestCtx(path, null, null, smgr), mod);
+        assertThat(resp.getStatus()).isEqualTo(ScimResponse.ST_OK);
+
+        assertThat(userIndex.getOrderIndex(username).get(oldName))
+                .as("Posting for the previous userName removed")
+                .isNull();
+        assertThat(userIndex.getOrderIndex(username).get(new StringValue(username, "bjensen-renamed")).containsId(user1.getId()))
+                .isTrue();
+        assertThat(userIndex.getOrderIndex(emailvalue).get(email))
+                .as("Unchanged attribute postings are not rebuilt")
+                .isSameAs(emailPosting);
+
+        // Re-submitting the same userName is not a conflict with itself, taking another user's name is
+        mod = provider.getData().get(user1.getId()).copy(null);
+        resp = provider.put(new RequestCtx(path, null, null, smgr), mod);
+        assertThat(resp.getStatus()).isEqualTo(ScimResponse.ST_OK);
+        ScimResource other = provider.getData().get(user2.getId()).copy(null);
+        other.removeValue(username);
+        other.addValue(new StringValue(username, "bjensen-renamed"));
+        resp = provider.put(new RequestCtx(other.getMeta().getLocation(), null, null, smgr), other);
+        assertThat(resp.getStatus())
+                .as("Uniqueness conflict on changed userName")
+                .isEqualTo(ScimResponse.ST_BAD_REQUEST);
+    }
+
+    @Test
+    public void j_onlineIndex() throws Exception {
+        IndexResourceType userIndex = provider.getIndexes().get("Users");
+        Attribute title = smgr.findAttribute("User:title", null);
+        assertThat(userIndex.isAttributeIndexed(title)).isFalse();
+
+        assertThat(provider.addIndex("User:title", false).get(1, TimeUnit.MINUTES))
+                .as("Index built and switched in")
+                .isTrue();
+        assertThat(userIndex.isAttributeIndexed(title)).isTrue();
+        assertThat(provider.getIndexBuildProgress()).isEqualTo(100);
+
+        RequestCtx ctx = new RequestCtx("/Users", null, null, smgr);
+        Filter filter = Filter.parseFilter("title eq \"Tour Guide\"", ctx);
+        Set<String> matches = userIndex.getPotentialMatches(filter);
+        assertThat(matches.contains(user1.getId())).isTrue();
+        for (String id : matches)
+            assertThat(((StringValue) provider.getData().get(id).getValue(title)).getRawValue())
+                    .isEqualToIgnoringCase("Tour Guide");
+
+        // the new index is maintained by later changes
+        ScimResource mod = provider.getData().get(user1.getId()).copy(null);
+        mod.removeValue(title);
+        mod.addValue(new StringValue(title, "Ski Instructor"));
+        provider.put(new RequestCtx(mod.getMeta().getLocation(), null, null, smgr), mod);
+        assertThat(userIndex.getPotentialMatches(filter).contains(user1.getId())).isFalse();
+        assertThat(userIndex.getPotentialMatches(Filter.parseFilter("title eq \"ski instructor\"", ctx))
+                .contains(user1.getId())).isTrue();
+
+        assertThat(provider.dropIndex("User:title")).isTrue();
+        assertThat(userIndex.isAttributeIndexed(title)).isFalse();
+        assertThat(provider.dropIndex("User:userName"))
+                .as("Unique attribute index cannot be dropped")
+                .isFalse();
+    }
+
+    /**
+     * A small page of an exactly indexed search succeeds even when the total number of matches exceeds maxResults.
+     * count=0 is a count-only request while an absent count is unlimited (up to maxResults).
+     */
+    @Test
+    public void k_pagingBeyondMaxResults() throws ScimException, BackendException, IOException {
+        // Every user loaded from the template has this email, which is answered exactly by the emails.value index
+        Map<String, String> params = new HashMap<>();
+        params.put(ScimParams.QUERY_filter, "emails.value eq \"babs@jensen.org\"");
+        params.put(ScimParams.QUERY_count, "0");
+        RequestCtx ctx = new RequestCtx(null, "Users", null, params, new HashMap<>(), null, smgr);
+        assertThat(ctx.isCountOnly()).isTrue();
+        int existing = getTotalResults(provider.get(ctx), ctx);
+
+        params.remove(ScimParams.QUERY_count);
+        assertThat(new RequestCtx(null, "Users", null, params, new HashMap<>(), null, smgr).isCountOnly())
+                .as("An absent count is not count-only")
+                .isFalse();
+
+        int added = maxResults + 10;
+        for (int i = 0; i < added; i++) {
+            ScimResource user = testUtils.loadResource(testUserFile1, "Users");
+            user.setId(null);
+            user.removeValue(username);
+            user.addValue(new StringValue(username, "page" + i + "@example.com"));
+            ScimResponse resp = provider.create(new RequestCtx("/Users", null, null, smgr), user);
+            assertThat(resp.getStatus()).isEqualTo(ScimResponse.ST_CREATED);
+        }
+
+        params.put(ScimParams.QUERY_count, "10");
+        params.put(ScimParams.QUERY_startindex, String.valueOf(maxResults + 1));
+        ctx = new RequestCtx(null, "Users", null, params, new HashMap<>(), null, smgr);
+        ScimResponse resp = provider.get(ctx);
+        assertThat(resp.getStatus())
+                .as("Page is returned although totalResults exceeds maxResults")
+                .isEqualTo(ScimResponse.ST_OK);
+        assertThat(((ListResponse) resp).getSize()).isEqualTo(10);
+        assertThat(getTotalResults(resp, ctx)).isEqualTo(existing + added);
+
+        params.put(ScimParams.QUERY_count, "0");
+        params.remove(ScimParams.QUERY_startindex);
+        ctx = new RequestCtx(null, "Users", null, params, new HashMap<>(), null, smgr);
+        resp = provider.get(ctx);
+        assertThat(((ListResponse) resp).getSize())
+                .as("count=0 returns only totalResults")
+                .isEqualTo(0);
+        assertThat(getTotalResults(resp, ctx)).isEqualTo(existing + added);
+    }
+
+    @Test
+    public void l_sortedPagingBeyondMaxResults() throws ScimException, IOException {
+        // Relies on the users added by k_pagingBeyondMaxResults, all of which match the exact emails.value filter
+        Map<String, String> params = new HashMap<>();
+        params.put(ScimParams.QUERY_filter, "emails.value eq \"babs@jensen.org\"");
+        params.put(ScimParams.QUERY_count, "0");
+        RequestCtx ctx = new RequestCtx(null, "Users", null, params, new HashMap<>(), null, smgr);
+        int total = getTotalResults(provider.get(ctx), ctx);
+        assertThat(total).isGreaterThan(maxResults + 1);
+
+        params.put(ScimParams.QUERY_sortby, "userName");
+        params.put(ScimParams.QUERY_count, "5");
+        params.put(ScimParams.QUERY_startindex, String.valueOf(maxResults + 1));
+        ctx = new RequestCtx(null, "Users", null, params, new HashMap<>(), null, smgr);
+        ScimResponse resp = provider.get(ctx);
+        assertThat(resp.getStatus())
+                .as("Sorted page is returned although totalResults exceeds maxResults")
+                .isEqualTo(ScimResponse.ST_OK);
+        int expected = Math.min(5, total - maxResults);
+        assertThat(((ListResponse) resp).getSize())
+                .as("Sorted page beyond maxResults is not empty")
+                .isEqualTo(expected);
+        assertThat(getTotalResults(resp, ctx)).isEqualTo(total);
+
+        // the page continues the sort order of the preceding page
+        params.put(ScimParams.QUERY_count, "1");
+        params.put(ScimParams.QUERY_startindex, String.valueOf(maxResults));
+        RequestCtx prevCtx = new RequestCtx(null, "Users", null, params, new HashMap<>(), null, smgr);
+        String prev = getUserNames(provider.get(prevCtx))[0];
+        String[] names = getUserNames(resp);
+        assertThat(names[0].compareToIgnoreCase(prev)).isGreaterThanOrEqualTo(0);
+        for (int i = 1; i < names.length; i++)
+            assertThat(names[i].compareToIgnoreCase(names[i - 1])).isGreaterThanOrEqualTo(0);
+    }
+
+    private String[] getUserNames(ScimResponse resp) {
+        List<ScimResource> results = ((ListResponse) resp).getResults();
+        String[] names = new String[results.size()];
+        for (int i = 0; i < names.length; i++)
+            names[i] = ((StringValue) results.get(i).getValue(username)).getRawValue();
+        return names;
+    }
+
+    private int getTotalResults(ScimResponse resp, RequestCtx ctx) throws IOException {
+        return JsonUtil.getJsonTree(getResponseBody(resp, ctx)).get(ListResponse.ATTR_TOTRES).asInt();
+    }
+
     public String getResponseBody(ScimResponse resp, RequestCtx ctx) throws IOException {
         StringWriter respWriter = new StringWriter();
         JsonGenerator gen = JsonUtil.getGenerator(respWriter, false);
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2021.  Independent Identity Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.independentid.scim.test.memory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.independentid.scim.backend.memory.MemoryJournal;
+import com.independentid.scim.resource.ScimResource;
+import com.independentid.scim.schema.SchemaManager;
+import com.independentid.scim.test.misc.TestUtils;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@QuarkusTest
+@TestProfile(ScimMemoryTestProfile.class)
+@TestMethodOrder(MethodOrderer.MethodName.class)
+public class MemoryJournalTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(MemoryJournalTest.class);
+
+    private static final String testUserFile1 = "classpath:/schema/TestUser-bjensen.json";
+
+    @Inject
+    SchemaManager smgr;
+
+    @Inject
+    TestUtils testUtils;
+
+    static class RecordingHandler implements MemoryJournal.IReplayHandler {
+        List<String> puts = new ArrayList<>();
+        List<String> deletes = new ArrayList<>();
+
+        @Override
+        public void replayPut(JsonNode resourceNode) {
+            puts.add(resourceNode.get("id").asText());
+        }
+
+        @Override
+        public void replayDelete(String container, String id) {
+            deletes.add(container + "/" + id);
+        }
+    }
+
+    @Test
+    public void a_appendAndReplay() throws IOException {
+        logger.info("========== Memory Journal Tests ==========");
+        File dir = Files.createTempDirectory("scimjournal").toFile();
+        ScimResource user = testUtils.loadResource(testUserFile1, "Users");
+
+        MemoryJournal journal = new MemoryJournal(dir, 1024 * 1024, 0);
+        journal.open();
+        journal.appendPut(user);
+        journal.appendDelete("Users", user.getId());
+        journal.close();
+
+        RecordingHandler handler = new RecordingHandler();
+        MemoryJournal recover = new MemoryJournal(dir, 1024 * 1024, 0);
+        int cnt = recover.replay(handler);
+        assertThat(cnt)
+                .as("Two records replayed")
+                .isEqualTo(2);
+        assertThat(handler.puts).containsExactly(user.getId());
+        assertThat(handler.deletes).containsExactly("Users/" + user.getId());
+
+        // Simulate a crash part way through writing the last record
+        List<File> segments = recover.listSegments();
+        try (FileWriter writer = new FileWriter(segments.get(segments.size() - 1), true)) {
+            writer.write("{\"op\":\"put\",\"data\":{\"schemas\":[");
+        }
+        handler = new RecordingHandler();
+        cnt = recover.replay(handler);
+        assertThat(cnt)
+                .as("Partial tail record is skipped")
+                .isEqualTo(2);
+    }
+
+    @Test
+    public void b_checkpointAndPurge() throws IOException {
+        File dir = Files.createTempDirectory("scimjournal").toFile();
+        ScimResource user = testUtils.loadResource(testUserFile1, "Users");
+
+        MemoryJournal journal = new MemoryJournal(dir, 1024 * 1024, 10);
+        journal.open();
+        journal.appendPut(user);
+        long checkpoint = journal.checkpoint();
+        journal.appendDelete("Users", user.getId());
+        journal.sync();
+
+        assertThat(journal.listSegments().size())
+                .as("Checkpoint started a second segment")
+                .isEqualTo(2);
+
+        journal.purge(checkpoint);
+        RecordingHandler handler = new RecordingHandler();
+        journal.replay(handler);
+        assertThat(handler.puts)
+                .as("Records before the checkpoint were purged")
+                .isEmpty();
+        assertThat(handler.deletes).hasSize(1);
+        journal.close();
+    }
+
+    @Test
+    public void c_deferredCommit() throws IOException {
+        File dir = Files.createTempDirectory("scimjournal").toFile();
+        ScimResource user = testUtils.loadResource(testUserFile1, "Users");
+
+        MemoryJournal journal = new MemoryJournal(dir, 1024 * 1024, 0);
+        journal.open();
+        for (int i = 0; i < 100; i++)
+            journal.appendPut(user, true);  // as written within a bulk batch
+        journal.appendDelete("Users", user.getId(), true);
+        journal.commit();
+        journal.close();
+
+        RecordingHandler handler = new RecordingHandler();
+        int cnt = new MemoryJournal(dir, 1024 * 1024, 0).replay(handler);
+        assertThat(cnt)
+                .as("All deferred records are replayed after commit")
+                .isEqualTo(101);
+        assertThat(handler.deletes).hasSize(1);
+    }
+}
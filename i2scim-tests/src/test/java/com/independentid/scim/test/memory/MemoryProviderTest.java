@@ -19,19 +19,25 @@ package com.independentid.scim.test.memory;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.independentid.scim.backend.BackendException;
 import com.independentid.scim.backend.BackendHandler;
 import com.independentid.scim.backend.memory.MemoryProvider;
 import com.independentid.scim.core.ConfigMgr;
 import com.independentid.scim.core.err.ScimException;
 import com.independentid.scim.protocol.RequestCtx;
+import com.independentid.scim.protocol.ResourceResponse;
 import com.independentid.scim.protocol.ScimParams;
 import com.independentid.scim.protocol.ScimResponse;
 import com.independentid.scim.resource.ExtensionValues;
+import com.independentid.scim.resource.Meta;
 import com.independentid.scim.resource.ScimResource;
 import com.independentid.scim.resource.StringValue;
+import com.independentid.scim.resource.TransactionRecord;
+import com.independentid.scim.resource.Value;
 import com.independentid.scim.schema.Attribute;
 import com.independentid.scim.schema.SchemaManager;
+import com.independentid.scim.schema.SystemSchemas;
 import com.independentid.scim.serializer.JsonUtil;
 import com.independentid.scim.test.misc.TestUtils;
 import io.quarkus.test.junit.QuarkusTest;
@@ -48,6 +54,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
 import java.text.ParseException;
+import java.util.Date;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.fail;
@@ -442,5 +449,100 @@ public class MemoryProviderTest {
         }
     }
 
+    /**
+     * Stored resources are immutable versions. Reads share the stored values and a modification replaces the version
+     * rather than changing it.
+     */
+    @Test
+    public void i_versionIsolationTest() throws ScimException, BackendException, ParseException {
+        logger.info("\tI. Stored version isolation");
+        ScimResource user = testUtils.loadResource(testUserFile1, "Users");
+        user.setId(null);
+        RequestCtx ctx = new RequestCtx("/Users", null, null, smgr);
+        ScimResponse resp = mp.create(ctx, user);
+        assertThat(resp.getStatus()).isEqualTo(ScimResponse.ST_CREATED);
+        String path = resp.getLocation();
+        String id = path.substring(path.lastIndexOf('/') + 1);
+        ScimResource stored = mp.getData().get(id);
+        Attribute username = smgr.findAttribute("userName", null);
+        Attribute displayName = smgr.findAttribute("displayName", null);
+        Value origName = stored.getValue(displayName);
+
+        resp = mp.get(new RequestCtx(path, null, null, smgr));
+        ScimResource read = ((ResourceResponse) resp).getResultResource();
+        assertThat(read.getValue(username))
+                .as("Read shares the stored value rather than a copy")
+                .isSameAs(stored.getValue(username));
+        assertThat(read.getMeta()).isSameAs(stored.getMeta());
+
+        ScimResource replacement = stored.copy(null);
+        replacement.removeValue(displayName);
+        replacement.addValue(new StringValue(displayName, "Version Two"));
+        resp = mp.put(new RequestCtx(path, null, null, smgr), replacement);
+        assertThat(resp.getStatus()).isEqualTo(ScimResponse.ST_OK);
+
+        assertThat(mp.getData().get(id))
+                .as("Modify swaps in a new version")
+                .isNotSameAs(stored);
+        assertThat(stored.getValue(displayName))
+                .as("Previous version is unchanged")
+                .isSameAs(origName);
+        assertThat(read.getValue(displayName).toString()).isEqualTo(origName.toString());
+
+        mp.delete(new RequestCtx(path, null, null, smgr));
+    }
+
+    /**
+     * Compaction removes transaction records outside the retention window and trims long revision histories.
+     */
+    @Test
+    public void j_retentionTest() throws ScimException, BackendException, ParseException {
+        logger.info("\tJ. Transaction and revision retention");
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            ObjectNode node = JsonUtil.getMapper().createObjectNode();
+            node.putArray(ScimParams.ATTR_SCHEMAS).add(ScimParams.SCHEMA_SCHEMA_SYNCREC);
+            node.put("id", "retain-txn-" + i);
+            node.put(SystemSchemas.SYNC_DATE, Meta.ScimDateFormat.format(new Date(now - i * 3600000L)));
+            mp.storeTransactionRecord(new TransactionRecord(smgr, node, SystemSchemas.TRANS_CONTAINER));
+        }
+        assertThat(mp.isTransactionPresent("retain-txn-4")).isTrue();
+
+        int removed = mp.compactTransactions(new Date(now - 150 * 60000L), 0);
+        assertThat(removed)
+                .as("Records older than the cutoff are removed")
+                .isEqualTo(2);
+        assertThat(mp.isTransactionPresent("retain-txn-2")).isTrue();
+        assertThat(mp.isTransactionPresent("retain-txn-3")).isFalse();
+
+        removed = mp.compactTransactions(null, 1);
+        assertThat(removed).isEqualTo(2);
+        assertThat(mp.isTransactionPresent("retain-txn-0"))
+                .as("Newest record is kept when limiting by count")
+                .isTrue();
+        assertThat(mp.isTransactionPresent("retain-txn-1")).isFalse();
+
+        ScimResource user = testUtils.loadResource(testUserFile1, "Users");
+        user.setId(null);
+        ScimResponse resp = mp.create(new RequestCtx("/Users", null, null, smgr), user);
+        String path = resp.getLocation();
+        String id = path.substring(path.lastIndexOf('/') + 1);
+        for (int i = 0; i < 4; i++)
+            mp.put(new RequestCtx(path, null, null, smgr), mp.getData().get(id).copy(null));
+        ScimResource stored = mp.getData().get(id);
+        assertThat(stored.getMeta().getRevisions().size()).isEqualTo(5);
+
+        assertThat(mp.compactRevisions(null, 2)).isGreaterThanOrEqualTo(1);
+        ScimResource trimmed = mp.getData().get(id);
+        assertThat(trimmed)
+                .as("Trimming stores a new version")
+                .isNotSameAs(stored);
+        assertThat(trimmed.getMeta().getRevisions().size()).isEqualTo(2);
+        assertThat(stored.getMeta().getRevisions().size()).isEqualTo(5);
+        assertThat(trimmed.getMeta().getVersion()).isEqualTo(stored.getMeta().getVersion());
+
+        mp.delete(new RequestCtx(path, null, null, smgr));
+    }
+
 
 }
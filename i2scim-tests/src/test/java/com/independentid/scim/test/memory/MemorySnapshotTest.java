@@ -0,0 +1,239 @@
+/*
+ * Copyright 2021.  Independent Identity Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.independentid.scim.test.memory;
+
+import com.independentid.scim.backend.BackendException;
+import com.independentid.scim.backend.BackendHandler;
+import com.independentid.scim.backend.memory.MemoryProvider;
+import com.independentid.scim.backend.memory.MemorySnapshot;
+import com.independentid.scim.core.err.ScimException;
+import com.independentid.scim.protocol.RequestCtx;
+import com.independentid.scim.protocol.ScimResponse;
+import com.independentid.scim.resource.ScimResource;
+import com.independentid.scim.resource.StringValue;
+import com.independentid.scim.schema.Attribute;
+import com.independentid.scim.schema.SchemaManager;
+import com.independentid.scim.test.misc.TestUtils;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+@QuarkusTest
+@TestProfile(ScimMemoryTestProfile.class)
+@TestMethodOrder(MethodOrderer.MethodName.class)
+public class MemorySnapshotTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(MemorySnapshotTest.class);
+
+    private static final String testUserFile1 = "classpath:/schema/TestUser-bjensen.json";
+
+    @Inject
+    SchemaManager smgr;
+
+    @Inject
+    BackendHandler handler;
+
+    @Inject
+    TestUtils testUtils;
+
+    @Test
+    public void a_writeAndLoad() throws IOException {
+        logger.info("========== Memory Snapshot Tests ==========");
+        File file = new File(Files.createTempDirectory("scimsnap").toFile(), "test.snap");
+
+        // Enough records to force the load to be split across several tasks.
+        List<ScimResource> resources = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            ScimResource user = testUtils.loadResource(testUserFile1, "Users");
+            user.setId("snap" + i);
+            resources.add(user);
+        }
+        int written = MemorySnapshot.write(file, resources);
+        assertThat(written).isEqualTo(2000);
+
+        Set<String> ids = ConcurrentHashMap.newKeySet();
+        int cnt = MemorySnapshot.load(file, new ForkJoinPool(4), node -> ids.add(node.get("id").asText()));
+        assertThat(cnt)
+                .as("All records loaded")
+                .isEqualTo(2000);
+        assertThat(ids)
+                .hasSize(2000)
+                .contains("snap0", "snap1999");
+    }
+
+    @Test
+    public void b_truncatedSnapshot() throws IOException {
+        File file = new File(Files.createTempDirectory("scimsnap").toFile(), "test.snap");
+        List<ScimResource> resources = new ArrayList<>();
+        resources.add(testUtils.loadResource(testUserFile1, "Users"));
+        MemorySnapshot.write(file, resources);
+
+        // Simulate an interrupted write
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 4);
+        }
+        try {
+            MemorySnapshot.load(file, ForkJoinPool.commonPool(), node -> {
+            });
+            fail("Truncated snapshot should not load");
+        } catch (IOException e) {
+            logger.info("Truncated snapshot rejected: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writers keep updating and deleting resources while a snapshot is written. Step k deletes pool resource k and
+     * then sets the displayName of update resource (k % UPD_CNT) to k, so a point-in-time capture that contains
+     * update k must contain every earlier step and none of the later ones.
+     */
+    @Test
+    public void c_concurrentCapture() throws ScimException, BackendException, IOException, InterruptedException, ExecutionException {
+        final int UPD_CNT = 100, POOL_CNT = 20000, BULK_CNT = 5000;
+        testUtils.resetProvider(true);
+        MemoryProvider mp = (MemoryProvider) handler.getProvider();
+        assertThat(mp.isBinarySnapshot()).isTrue();
+        Attribute userName = smgr.findAttribute("userName", null);
+        Attribute displayName = smgr.findAttribute("displayName", null);
+
+        // Bulk resources make serialization take long enough to observe writers progressing during it.
+        for (int i = 0; i < BULK_CNT; i++)
+            createUser(mp, "bulk" + i, userName, displayName, "bulk");
+        for (int i = 0; i < UPD_CNT; i++)
+            createUser(mp, "upd" + i, userName, displayName, "init");
+        for (int i = 0; i < POOL_CNT; i++)
+            createUser(mp, "del" + i, userName, displayName, "pool");
+
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicInteger steps = new AtomicInteger(0);
+        List<long[]> opTimes = new ArrayList<>();  // start and end nanos of each write
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        Future<?> writer = exec.submit(() -> {
+            for (int k = 0; !stop.get(); k++) {
+                long begin = System.nanoTime();
+                if (k < POOL_CNT) {
+                    ScimResponse resp = mp.delete(new RequestCtx("/Users/del" + k, null, null, smgr));
+                    assertThat(resp.getStatus()).isEqualTo(ScimResponse.ST_NOCONTENT);
+                }
+                String id = "upd" + (k % UPD_CNT);
+                ScimResource replacement = mp.getData().get(id).copy(null);
+                replacement.removeValue(displayName);
+                replacement.addValue(new StringValue(displayName, String.valueOf(k)));
+                ScimResponse resp = mp.put(new RequestCtx("/Users/" + id, null, null, smgr), replacement);
+                assertThat(resp.getStatus()).isEqualTo(ScimResponse.ST_OK);
+                opTimes.add(new long[]{begin, System.nanoTime()});
+                steps.incrementAndGet();
+            }
+            return null;
+        });
+
+        while (steps.get() < 50 && !writer.isDone())
+            Thread.sleep(1);
+        long start = System.nanoTime();
+        mp.writeDatabase();
+        long end = System.nanoTime();
+        stop.set(true);
+        writer.get();  // rethrows any writer failure
+        exec.shutdown();
+
+        int during = 0;
+        long maxLatency = 0;
+        for (long[] op : opTimes)
+            if (op[0] >= start && op[1] <= end) {
+                during++;
+                maxLatency = Math.max(maxLatency, op[1] - op[0]);
+            }
+        logger.info("\tSnapshot took " + (end - start) / 1000000 + "ms while " + during + " writes completed (max "
+                + maxLatency / 1000000 + "ms)");
+        assertThat(during)
+                .as("Writers progressed while the snapshot was serialized")
+                .isGreaterThan(1);
+        assertThat(maxLatency)
+                .as("No writer was blocked for the length of the snapshot")
+                .isLessThan(end - start);
+
+        Map<String, String> names = new ConcurrentHashMap<>();
+        MemorySnapshot.load(mp.getSnapshotFile(), ForkJoinPool.commonPool(), node -> {
+            if (node.has("displayName"))
+                names.put(node.get("id").asText(), node.get("displayName").asText());
+        });
+
+        int last = -1;
+        for (int i = 0; i < UPD_CNT; i++) {
+            String val = names.get("upd" + i);
+            assertThat(val).as("Update resource upd" + i + " is in the snapshot").isNotNull();
+            if (!val.equals("init"))
+                last = Math.max(last, Integer.parseInt(val));
+        }
+        assertThat(last)
+                .as("Snapshot includes writes made before it began")
+                .isGreaterThanOrEqualTo(49);
+        for (int i = 0; i < UPD_CNT; i++) {
+            // The last step at or before the newest captured step that updated resource i
+            int expected = last - Math.floorMod(last - i, UPD_CNT);
+            assertThat(names.get("upd" + i))
+                    .as("upd" + i + " reflects the same point in time as the newest captured update")
+                    .isEqualTo(expected < 0 ? "init" : String.valueOf(expected));
+        }
+        for (int j = 0; j < POOL_CNT; j++) {
+            // del(last + 1) may or may not have been deleted when the capture began
+            if (j <= last)
+                assertThat(names).as("del" + j + " was deleted before the capture").doesNotContainKey("del" + j);
+            else if (j > last + 1)
+                assertThat(names).as("del" + j + " was deleted after the capture").containsKey("del" + j);
+        }
+        for (int i = 0; i < BULK_CNT; i++)
+            assertThat(names).containsKey("bulk" + i);
+
+        testUtils.resetProvider(true);
+    }
+
+    private void createUser(MemoryProvider mp, String id, Attribute userName, Attribute displayName, String name) throws ScimException, BackendException {
+        ScimResource user = testUtils.loadResource(testUserFile1, "Users");
+        user.setId(id);
+        user.removeValue(userName);
+        user.addValue(new StringValue(userName, id + "@example.com"));
+        user.removeValue(displayName);
+        user.addValue(new StringValue(displayName, name));
+        ScimResponse resp = mp.create(new RequestCtx("/Users", null, null, smgr), user);
+        assertThat(resp.getStatus()).isEqualTo(ScimResponse.ST_CREATED);
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2021.  Independent Identity Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.independentid.scim.test.memory;
+
+import com.independentid.scim.backend.BackendHandler;
+import com.independentid.scim.backend.memory.MemoryProvider;
+import com.independentid.scim.protocol.Filter;
+import com.independentid.scim.protocol.RequestCtx;
+import com.independentid.scim.protocol.ScimResponse;
+import com.independentid.scim.resource.ScimResource;
+import com.independentid.scim.resource.StringValue;
+import com.independentid.scim.schema.Attribute;
+import com.independentid.scim.schema.SchemaException;
+import com.independentid.scim.schema.SchemaManager;
+import com.independentid.scim.test.misc.TestUtils;
+import io.quarkus.test.junit.QuarkusTest;
+import io.quarkus.test.junit.TestProfile;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Races concurrent creates and renames for the same userName and checks that exactly one succeeds each time, while
+ * creates for distinct names all succeed. Also races modifications of a single resource and checks that the userName
+ * index tracks the stored version.
+ */
+@QuarkusTest
+@TestProfile(ScimMemoryTestProfile.class)
+@TestMethodOrder(MethodOrderer.MethodName.class)
+public class MemoryUniquenessStressTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(MemoryUniquenessStressTest.class);
+
+    private static final String testUserFile1 = "classpath:/schema/TestUser-bjensen.json";
+
+    private static final int THREADS = 16;
+    private static final int ROUNDS = 50;
+
+    @Inject
+    SchemaManager smgr;
+
+    @Inject
+    BackendHandler handler;
+
+    @Inject
+    TestUtils testUtils;
+
+    @Test
+    public void a_concurrentCreates() throws Exception {
+        logger.info("========== Memory Uniqueness Stress Test ==========");
+        testUtils.resetProvider(true);
+        MemoryProvider mp = (MemoryProvider) handler.getProvider();
+        Attribute username = smgr.findAttribute("User:userName", null);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                String name = "race-" + round;
+                List<Callable<Integer>> tasks = new ArrayList<>();
+                CountDownLatch start = new CountDownLatch(1);
+                for (int t = 0; t < THREADS; t++) {
+                    // half the threads race for the same name, the others use their own
+                    ScimResource res = makeUser(username, t % 2 == 0 ? name : name + "-" + t);
+                    tasks.add(() -> {
+                        start.await();
+                        return mp.create(new RequestCtx("/Users", null, null, smgr), res).getStatus();
+                    });
+                }
+                List<Future<Integer>> results = new ArrayList<>();
+                for (Callable<Integer> task : tasks)
+                    results.add(pool.submit(task));
+                start.countDown();
+
+                int created = 0;
+                for (Future<Integer> result : results)
+                    if (result.get(1, TimeUnit.MINUTES) == ScimResponse.ST_CREATED)
+                        created++;
+                assertThat(created)
+                        .as("One racing create plus every distinct create succeeds in round " + round)
+                        .isEqualTo(1 + THREADS / 2);
+                assertThat(countUsers(mp, name)).isEqualTo(1);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void b_concurrentRenames() throws Exception {
+        MemoryProvider mp = (MemoryProvider) handler.getProvider();
+        Attribute username = smgr.findAttribute("User:userName", null);
+        List<String> paths = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            ScimResponse resp = mp.create(new RequestCtx("/Users", null, null, smgr), makeUser(username, "rename-" + t));
+            assertThat(resp.getStatus()).isEqualTo(ScimResponse.ST_CREATED);
+            paths.add(resp.getLocation());
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            AtomicInteger renamed = new AtomicInteger();
+            List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+            for (String path : paths)
+                pool.submit(() -> {
+                    try {
+                        String id = path.substring(path.lastIndexOf('/') + 1);
+                        ScimResource mod = mp.getData().get(id).copy(null);
+                        mod.removeValue(username);
+                        mod.addValue(new StringValue(username, "rename-target"));
+                        start.await();
+                        if (mp.put(new RequestCtx(path, null, null, smgr), mod).getStatus() == ScimResponse.ST_OK)
+                            renamed.incrementAndGet();
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                });
+            start.countDown();
+            pool.shutdown();
+            assertThat(pool.awaitTermination(1, TimeUnit.MINUTES)).isTrue();
+
+            assertThat(errors).isEmpty();
+            assertThat(renamed.get())
+                    .as("Exactly one rename to the same userName succeeds")
+                    .isEqualTo(1);
+            assertThat(countUsers(mp, "rename-target")).isEqualTo(1);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void c_concurrentModifySameResource() throws Exception {
+        MemoryProvider mp = (MemoryProvider) handler.getProvider();
+        Attribute username = smgr.findAttribute("User:userName", null);
+        ScimResponse resp = mp.create(new RequestCtx("/Users", null, null, smgr), makeUser(username, "modify-base"));
+        assertThat(resp.getStatus()).isEqualTo(ScimResponse.ST_CREATED);
+        String path = resp.getLocation();
+        String id = path.substring(path.lastIndexOf('/') + 1);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+            try {
+                CountDownLatch start = new CountDownLatch(1);
+                List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+                List<String> names = new ArrayList<>();
+                for (int t = 0; t < THREADS; t++) {
+                    String name = "modify-" + round + "-" + t;
+                    names.add(name);
+                    ScimResource mod = mp.getData().get(id).copy(null);
+                    mod.removeValue(username);
+                    mod.addValue(new StringValue(username, name));
+                    pool.submit(() -> {
+                        try {
+                            start.await();
+                            assertThat(mp.put(new RequestCtx(path, null, null, smgr), mod).getStatus())
+                                    .isEqualTo(ScimResponse.ST_OK);
+                        } catch (Throwable e) {
+                            errors.add(e);
+                        }
+                    });
+                }
+                start.countDown();
+                pool.shutdown();
+                assertThat(pool.awaitTermination(1, TimeUnit.MINUTES)).isTrue();
+                assertThat(errors).isEmpty();
+
+                // the index must hold exactly the stored userName and release every name it replaced
+                String current = ((StringValue) mp.getData().get(id).getValue(username)).getRawValue();
+                for (String name : names) {
+                    Set<String> matches = findUsers(mp, name);
+                    if (name.equals(current))
+                        assertThat(matches)
+                                .as("Stored userName is indexed in round " + round)
+                                .containsExactly(id);
+                    else
+                        assertThat(matches)
+                                .as("Replaced userName " + name + " is not indexed")
+                                .isEmpty();
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        // a replaced name is free for reuse, the current one is not
+        String current = ((StringValue) mp.getData().get(id).getValue(username)).getRawValue();
+        String replaced = current.equals("modify-base") ? "modify-0-0" : "modify-base";
+        assertThat(mp.create(new RequestCtx("/Users", null, null, smgr), makeUser(username, replaced)).getStatus())
+                .isEqualTo(ScimResponse.ST_CREATED);
+        assertThat(mp.create(new RequestCtx("/Users", null, null, smgr), makeUser(username, current)).getStatus())
+                .isEqualTo(ScimResponse.ST_BAD_REQUEST);
+    }
+
+    private Set<String> findUsers(MemoryProvider mp, String name) throws Exception {
+        RequestCtx ctx = new RequestCtx("/Users", null, null, smgr);
+        return mp.evaluateFilter(Filter.parseFilter("userName eq \"" + name + "\"", ctx), "Users");
+    }
+
+    private int countUsers(MemoryProvider mp, String name) throws Exception {
+        RequestCtx ctx = new RequestCtx("/Users", null, null, smgr);
+        return mp.evaluateFilter(Filter.parseFilter("userName eq \"" + name + "\"", ctx), "Users").size();
+    }
+
+    private ScimResource makeUser(Attribute username, String name) throws SchemaException {
+        ScimResource res = testUtils.loadResource(testUserFile1, "Users");
+        res.setId(null);
+        res.removeValue(username);
+        res.addValue(new StringValue(username, name));
+        return res;
+    }
+}
@@ -40,6 +40,7 @@ public class ScimMemoryTestProfile implements QuarkusTestProfile {
         cmap.putAll(Map.of(
                 "scim.security.enable", "false",
                 "scim.event.enable","false",
+                "scim.prov.memory.search.parallel.min","1",  // exercise parallel candidate verification
                 "scim.root.dir","."  //enables local debug testing
 
         ));
@@ -170,11 +170,17 @@ public class TestUtils {
         // Reset the memory provider
         logger.warn("\t*** Resetting Memory database files in " + storeDir + " ***");
         File memdir = new File(storeDir);
-        File[] files = memdir.listFiles();
+        deleteFiles(memdir);
+    }
+
+    private void deleteFiles(File dir) {
+        File[] files = dir.listFiles();
         if (files != null)
-            for (File afile : files)
+            for (File afile : files) {
+                if (afile.isDirectory())
+                    deleteFiles(afile);  // e.g. the journal directory
                 afile.delete();
-
+            }
     }
 
     public ScimResource loadResource(String jsonfilepath, String container) {
@@ -20,21 +20,38 @@ package com.independentid.scim.test.mongo;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.independentid.scim.backend.BackendException;
 import com.independentid.scim.backend.BackendHandler;
+import com.independentid.scim.backend.mongo.MongoFilterMapper;
+import com.independentid.scim.backend.mongo.MongoMapUtil;
 import com.independentid.scim.backend.mongo.MongoProvider;
+import com.independentid.scim.backend.mongo.MongoScimResource;
 import com.independentid.scim.core.ConfigMgr;
 import com.independentid.scim.core.err.ScimException;
 import com.independentid.scim.protocol.*;
+import com.independentid.scim.resource.ComplexValue;
 import com.independentid.scim.resource.ExtensionValues;
+import com.independentid.scim.resource.MultiValue;
 import com.independentid.scim.resource.ScimResource;
 import com.independentid.scim.resource.StringValue;
+import com.independentid.scim.resource.Value;
 import com.independentid.scim.schema.Attribute;
 import com.independentid.scim.schema.SchemaManager;
+import com.independentid.scim.security.ScimBasicIdentityProvider;
 import com.independentid.scim.serializer.JsonUtil;
 import com.independentid.scim.test.misc.TestUtils;
+import io.quarkus.security.AuthenticationFailedException;
+import io.quarkus.security.credential.PasswordCredential;
+import io.quarkus.security.identity.SecurityIdentity;
+import io.quarkus.security.identity.request.UsernamePasswordAuthenticationRequest;
 import io.quarkus.test.junit.QuarkusTest;
 import io.quarkus.test.junit.TestProfile;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.MethodOrderer;
@@ -48,6 +65,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
 import java.text.ParseException;
+import java.util.Collections;
+import java.util.HashMap;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -67,6 +86,9 @@ public class MongoProviderTest {
     @Inject
     TestUtils testUtils;
 
+    @Inject
+    ScimBasicIdentityProvider basicProvider;
+
     @ConfigProperty(name = "scim.mongodb.dbname", defaultValue = "testSCIM")
     String scimDbName;
 
@@ -488,4 +510,264 @@ public class MongoProviderTest {
         }
     }
 
+    @Test
+    public void j_PagedSearchTest() throws ScimException, BackendException, IOException {
+        logger.info("\tJ. Paged Search Test");
+        Attribute username = smgr.findAttribute("User:userName", null);
+        for (int i = 0; i < 5; i++) {
+            ScimResource res = testUtils.loadResource(testUserFile1, "Users");
+            res.setId(null);
+            res.removeValue(username);
+            res.addValue(new StringValue(username, "page-" + i + "@example.com"));
+            ScimResponse resp = mp.create(new RequestCtx("/Users", null, null, smgr), res);
+            assertThat(resp.getStatus()).isEqualTo(ScimResponse.ST_CREATED);
+        }
+
+        RequestCtx ctx = new RequestCtx("/Users", null, "userName sw page-", smgr);
+        ctx.setStartIndex("4");
+        ctx.setCount("2");
+        ScimResponse resp = mp.get(ctx);
+        assertThat(resp).isInstanceOf(ListResponse.class);
+        assertThat(((ListResponse) resp).getSize())
+                .as("Only the requested page is returned")
+                .isEqualTo(2);
+        assertThat(JsonUtil.getJsonTree(getResponseBody(resp, ctx)).get(ListResponse.ATTR_TOTRES).asInt())
+                .as("totalResults counts all matches")
+                .isEqualTo(5);
+
+        ctx = new RequestCtx("/Users", null, "userName sw page-", smgr);
+        ctx.setCount("0");
+        resp = mp.get(ctx);
+        assertThat(((ListResponse) resp).getSize()).isEqualTo(0);
+        assertThat(JsonUtil.getJsonTree(getResponseBody(resp, ctx)).get(ListResponse.ATTR_TOTRES).asInt())
+                .as("Count only request returns totalResults")
+                .isEqualTo(5);
+    }
+
+    @Test
+    public void k_ProjectionTest() throws ScimException, BackendException, IOException {
+        logger.info("\tK. Attribute Projection Test");
+        RequestCtx ctx = new RequestCtx(grpurl, null, null, smgr);
+        ctx.setAttributes("displayName");
+        ScimResponse resp = mp.get(ctx);
+        assertThat(resp.getStatus()).isEqualTo(ScimResponse.ST_OK);
+        String body = getResponseBody(resp, ctx);
+        assertThat(body)
+                .as("Requested attribute returned")
+                .contains("TEST Tour Guides");
+        assertThat(body)
+                .as("Members not requested")
+                .doesNotContain("members");
+
+        ctx = new RequestCtx("/Groups", null, "displayName eq \"TEST Tour Guides\"", smgr);
+        ctx.setExcludedAttrs("members");
+        resp = mp.get(ctx);
+        assertThat(resp).isInstanceOf(ListResponse.class);
+        ScimResource grp = ((ListResponse) resp).getResults().get(0);
+        assertThat(grp.getValue(smgr.findAttribute("Group:members", null)))
+                .as("Excluded attribute is not read from the database")
+                .isNull();
+        assertThat(((MongoScimResource) grp).isPartial()).isTrue();
+
+        ScimResource full = mp.getResource(new RequestCtx(grpurl, null, null, smgr));
+        assertThat(full.getValue(smgr.findAttribute("Group:members", null)))
+                .as("Resources read for modification are complete")
+                .isNotNull();
+    }
+
+    @Test
+    public void l_DirectDecodeTest() throws Exception {
+        logger.info("\tL. Direct BSON Decode Test");
+        ScimResource res = testUtils.loadResource(testUserFile1, "Users");
+        res.setId(new ObjectId().toString());
+        RawBsonDocument raw = new RawBsonDocument(MongoMapUtil.mapResource(res), new DocumentCodec());
+
+        MongoScimResource viaDoc = new MongoScimResource(smgr, raw.decode(new DocumentCodec()), "Users");
+        MongoScimResource viaRaw = new MongoScimResource(smgr, raw, "Users", false);
+        assertThat(viaRaw.toJsonString())
+                .as("Direct decoding gives the same resource as decoding a Document")
+                .isEqualTo(viaDoc.toJsonString());
+
+        int rounds = 5000;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++)
+            new MongoScimResource(smgr, raw.decode(new DocumentCodec()), "Users");
+        long docNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++)
+            new MongoScimResource(smgr, raw, "Users", false);
+        long rawNanos = System.nanoTime() - start;
+        logger.info("\t\tDecode " + rounds + " resources via Document: " + docNanos / 1000000 + "ms, direct: "
+                + rawNanos / 1000000 + "ms");
+    }
+
+    @Test
+    public void m_PatchInPlaceTest() throws Exception {
+        logger.info("\tM. Patch In Place Test");
+        Attribute members = smgr.findAttribute("Group:members", null);
+        String version = mp.getResource(new RequestCtx(grpurl, null, null, smgr)).getMeta().getVersion();
+        String newId = new ObjectId().toString();
+
+        RequestCtx ctx = ifMatchCtx(version);
+        JsonPatchRequest req = patchRequest(ctx, "{\"op\":\"add\",\"path\":\"members\",\"value\":[{\"value\":\"" + newId + "\"}]},"
+                + "{\"op\":\"replace\",\"path\":\"displayName\",\"value\":\"Patched Tour Guides\"}");
+        ScimResponse resp = mp.patch(ctx, req);
+        assertThat(resp.getStatus()).isEqualTo(ScimResponse.ST_OK);
+
+        ScimResource grp = mp.getResource(new RequestCtx(grpurl, null, null, smgr));
+        assertThat(((MultiValue) grp.getValue(members)).size())
+                .as("Member added")
+                .isEqualTo(3);
+        assertThat(grp.getValue(smgr.findAttribute("Group:displayName", null)).toString())
+                .isEqualTo("Patched Tour Guides");
+        assertThat(grp.getMeta().getVersion())
+                .as("Stored version is the hash of the patched resource")
+                .isEqualTo(grp.calcVersionHash())
+                .isEqualTo(((ResourceResponse) resp).getETag())
+                .isNotEqualTo(version);
+
+        ctx = new RequestCtx(grpurl, null, null, smgr);
+        resp = mp.patch(ctx, patchRequest(ctx, "{\"op\":\"remove\",\"path\":\"members[value eq \\\"" + newId + "\\\"]\"}"));
+        assertThat(resp.getStatus()).isEqualTo(ScimResponse.ST_OK);
+        grp = mp.getResource(new RequestCtx(grpurl, null, null, smgr));
+        assertThat(((MultiValue) grp.getValue(members)).size())
+                .as("Member removed")
+                .isEqualTo(2);
+
+        ctx = ifMatchCtx(version);
+        resp = mp.patch(ctx, patchRequest(ctx, "{\"op\":\"replace\",\"path\":\"displayName\",\"value\":\"Stale\"}"));
+        assertThat(resp.getStatus())
+                .as("Patch with a stale version is rejected")
+                .isEqualTo(ScimResponse.ST_PRECONDITION);
+    }
+
+    @Test
+    public void n_CaseIgnoreIndexTest() throws ScimException, BackendException {
+        logger.info("\tN. Case Insensitive Index Test");
+        Document userNameIndex = null;
+        for (Document index : mp.getDbConnection().getCollection("Users").listIndexes())
+            if (index.get("key", Document.class).containsKey("userName"))
+                userNameIndex = index;
+        assertThat(userNameIndex).isNotNull();
+        assertThat(userNameIndex.get("collation", Document.class).getInteger("strength"))
+                .as("userName is indexed with a case insensitive collation")
+                .isEqualTo(2);
+
+        RequestCtx ctx = new RequestCtx("/Users", null, "userName eq \"PAGE-1@Example.COM\"", smgr);
+        assertThat(MongoFilterMapper.useCaseIgnoreCollation(ctx.getFilter())).isTrue();
+        ScimResponse resp = mp.get(ctx);
+        assertThat(((ListResponse) resp).getSize())
+                .as("Case insensitive eq matches using the collation")
+                .isEqualTo(1);
+
+        ctx = new RequestCtx("/Users", null, "userName sw \"PAGE-\"", smgr);
+        assertThat(MongoFilterMapper.useCaseIgnoreCollation(ctx.getFilter())).isFalse();
+        resp = mp.get(ctx);
+        assertThat(((ListResponse) resp).getSize()).isEqualTo(5);
+    }
+
+    /**
+     * Basic authentication of SCIM users reads the user without an attributes parameter and then checks the password,
+     * which is returned "never". The projection must not leave it out.
+     */
+    @Test
+    public void o_BasicAuthTest() throws ScimException, BackendException, IOException {
+        logger.info("\tO. Basic Authentication Test");
+        ScimResource user = testUtils.loadResource(testUserFile1, "Users");
+        user.setId(null);
+        Attribute userName = smgr.findAttribute("userName", null);
+        user.removeValue(userName);
+        user.addValue(new StringValue(userName, "auth-user@example.com"));
+        ScimResponse resp = mp.create(new RequestCtx("/Users", null, null, smgr), user);
+        assertThat(resp.getStatus()).isEqualTo(ScimResponse.ST_CREATED);
+
+        SecurityIdentity identity = basicProvider.authenticate(new UsernamePasswordAuthenticationRequest(
+                "auth-user@example.com", new PasswordCredential("t1meMa$heen".toCharArray())), null)
+                .await().indefinitely();
+        assertThat(identity.getPrincipal().getName()).isEqualTo("auth-user@example.com");
+        assertThat(identity.getRoles()).contains("user");
+
+        Assertions.assertThrows(AuthenticationFailedException.class, () ->
+                basicProvider.authenticate(new UsernamePasswordAuthenticationRequest(
+                        "auth-user@example.com", new PasswordCredential("wrong".toCharArray())), null)
+                        .await().indefinitely());
+
+        RequestCtx ctx = new RequestCtx("/Users", null, "userName eq \"auth-user@example.com\"", smgr);
+        resp = mp.get(ctx);
+        assertThat(getResponseBody(resp, ctx))
+                .as("Password is read but not returned")
+                .doesNotContain("t1meMa$heen");
+    }
+
+    /**
+     * A value path filter selects every matching value, whether the patch is applied by the database (array filters
+     * and $pull) or to the loaded resource.
+     */
+    @Test
+    public void p_PatchAllMatchesTest() throws Exception {
+        logger.info("\tP. Patch All Matching Values Test");
+        InputStream userStream = ConfigMgr.findClassLoaderResource(testUserFile1);
+        assert userStream != null;
+        ObjectNode node = (ObjectNode) JsonUtil.getJsonTree(userStream);
+        node.remove("id");
+        node.put("userName", "multi-work@example.com");
+        ObjectNode email = ((ArrayNode) node.get("emails")).addObject();
+        email.put("value", "bjensen@work.example.com");
+        email.put("type", "work");
+        ScimResponse resp = mp.create(new RequestCtx("/Users", null, null, smgr), new ScimResource(smgr, node, "Users"));
+        assertThat(resp.getStatus()).isEqualTo(ScimResponse.ST_CREATED);
+        String path = resp.getLocation();
+        Attribute emails = smgr.findAttribute("User:emails", null);
+        Attribute display = smgr.findAttribute("User:emails.display", null);
+
+        RequestCtx ctx = new RequestCtx(path, null, null, smgr);
+        JsonPatchRequest req = patchRequest(ctx, "{\"op\":\"replace\",\"path\":\"emails[type eq \\\"work\\\"].display\",\"value\":\"Work\"}");
+        ScimResource expected = mp.getResource(ctx).copy(null);
+        expected.modifyResource(req, ctx);
+        resp = mp.patch(ctx, req);
+        assertThat(resp.getStatus()).isEqualTo(ScimResponse.ST_OK);
+
+        ScimResource stored = mp.getResource(new RequestCtx(path, null, null, smgr));
+        int updated = 0;
+        for (Value val : ((MultiValue) stored.getValue(emails)).values()) {
+            ComplexValue cval = (ComplexValue) val;
+            boolean isWork = cval.getValue(smgr.findAttribute("User:emails.type", null)).toString().equals("work");
+            Value dval = cval.getValue(display);
+            if (isWork) {
+                assertThat(dval).isNotNull();
+                assertThat(dval.toString()).isEqualTo("Work");
+                updated++;
+            } else
+                assertThat(dval).isNull();
+        }
+        assertThat(updated)
+                .as("Both work emails were updated")
+                .isEqualTo(2);
+        assertThat(stored.getValue(emails))
+                .as("Database update agrees with the patch applied to the loaded resource")
+                .isEqualTo(expected.getValue(emails));
+
+        ctx = new RequestCtx(path, null, null, smgr);
+        req = patchRequest(ctx, "{\"op\":\"remove\",\"path\":\"emails[type eq \\\"work\\\"]\"}");
+        expected = mp.getResource(ctx).copy(null);
+        expected.modifyResource(req, ctx);
+        resp = mp.patch(ctx, req);
+        assertThat(resp.getStatus()).isEqualTo(ScimResponse.ST_OK);
+        stored = mp.getResource(new RequestCtx(path, null, null, smgr));
+        assertThat(((MultiValue) stored.getValue(emails)).size())
+                .as("Both work emails were removed")
+                .isEqualTo(1);
+        assertThat(((MultiValue) expected.getValue(emails)).size()).isEqualTo(1);
+    }
+
+    private RequestCtx ifMatchCtx(String version) throws ScimException {
+        String id = grpurl.substring(grpurl.lastIndexOf('/') + 1);
+        return new RequestCtx(null, "Groups", id, new HashMap<>(),
+                Collections.singletonMap(ScimParams.HEADER_IFMATCH, version), null, smgr);
+    }
+
+    private JsonPatchRequest patchRequest(RequestCtx ctx, String ops) throws Exception {
+        return new JsonPatchRequest(JsonUtil.getJsonTree("{\"schemas\":[\"" + ScimParams.SCHEMA_API_PatchOp
+                + "\"],\"" + ScimParams.ATTR_PATCH_OPS + "\":[" + ops + "]}"), ctx);
+    }
 }
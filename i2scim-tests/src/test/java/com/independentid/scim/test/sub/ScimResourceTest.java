@@ -275,6 +275,17 @@ public class ScimResourceTest {
 			assertThat(thediff.operation)
 					.as("Is an equality match").isEqualTo(DiffMatchPatch.Operation.EQUAL);
 
+			// The copy must not share mutable values with the original
+			Attribute nameAttr = smgr.findAttribute("name",null);
+			ComplexValue copyName = (ComplexValue) copyRes.getValue(nameAttr);
+			copyName.removeValue("givenName");
+			copyRes.getMeta().setVersion("changed");
+			ComplexValue origName = (ComplexValue) user1.getValue(nameAttr);
+			assertThat(origName.getValue("givenName"))
+					.as("Original sub-attribute unchanged by copy modification").isNotNull();
+			assertThat(user1.getMeta().getVersion()).isNotEqualTo("changed");
+			assertThat(user1.toString()).isEqualTo(original);
+
 			RequestCtx ctx = new RequestCtx("/Users",null,null,smgr);
 			ctx.setAttributes("id,meta,name,x509certificates");
 			ScimResource limitedCopy = user1.copy(ctx);
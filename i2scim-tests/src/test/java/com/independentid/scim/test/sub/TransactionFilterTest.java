@@ -0,0 +1,82 @@
+/*
+ * Copyright 2021.  Independent Identity Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.independentid.scim.test.sub;
+
+import com.independentid.scim.backend.TransactionFilter;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@TestMethodOrder(MethodOrderer.MethodName.class)
+public class TransactionFilterTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(TransactionFilterTest.class);
+
+    @Test
+    public void a_membership() {
+        logger.info("========== Transaction Filter Tests ==========");
+        TransactionFilter filter = new TransactionFilter(1, 10000);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            String id = new ObjectId().toString();
+            ids.add(id);
+            filter.add(id);
+        }
+        for (String id : ids)
+            assertThat(filter.mightContain(id))
+                    .as("No false negatives")
+                    .isTrue();
+
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++)
+            if (filter.mightContain(new ObjectId().toString()))
+                falsePositives++;
+        logger.info("\tFalse positives: " + falsePositives + " of 10000");
+        assertThat(falsePositives)
+                .as("False positive rate near the configured 1%")
+                .isLessThan(300);
+    }
+
+    @Test
+    public void b_expiry() {
+        AtomicLong now = new AtomicLong(1000);
+        TransactionFilter filter = new TransactionFilter(200, 2, 1000, 0.01, now::get);
+        filter.add("tran-1");
+        assertThat(filter.mightContain("tran-1")).isTrue();
+        now.addAndGet(120);
+        assertThat(filter.mightContain("tran-1"))
+                .as("Still within the window after one partition rotation")
+                .isTrue();
+        now.addAndGet(79);
+        assertThat(filter.mightContain("tran-1"))
+                .as("Still within the window before the second rotation")
+                .isTrue();
+        now.addAndGet(1);
+        assertThat(filter.mightContain("tran-1"))
+                .as("Aged out of the window")
+                .isFalse();
+    }
+}